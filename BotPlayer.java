@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class BotPlayer is a headless Nim player. It listens to a model proxy and,
+ * whenever the turn is its own, takes a random legal number of markers from
+ * a random non-empty heap. It starts a new game when it wins and joins again
+ * when its session ends. It times every move from sending the take to
+ * hearing the turn change.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class BotPlayer implements ModelListener {
+
+	// Hidden data members.
+	private ViewListener proxy;
+	private String name;
+	private LatencyHistogram latency;
+	private int id;
+	private int[] heaps = new int [] { 3, 4, 5 };
+	private long sent;
+	private int version = -1;
+
+	private volatile long moves;
+	private volatile long games;
+	private volatile long quits;
+	private volatile long errors;
+
+	// Exported constructors.
+	/**
+	 * Construct a new bot player.
+	 *
+	 * @param  proxy    Model proxy (or any view listener) to play through.
+	 * @param  name     Player name.
+	 * @param  latency  Histogram the bot records move latencies in.
+	 */
+	public BotPlayer (ViewListener proxy, String name,
+					  LatencyHistogram latency) {
+		this.proxy = proxy;
+		this.name = name;
+		this.latency = latency;
+	}
+
+	// Exported operations.
+	/**
+	 * Join a session.
+	 */
+	public void join() {
+		try {
+			proxy.join( null, name );
+		} catch (IOException exc) {
+			++ errors;
+		}
+	}
+
+	/**
+	 * Returns the number of moves whose turn change was heard.
+	 */
+	public long getMoves() {
+		return moves;
+	}
+
+	/**
+	 * Returns the number of games won by either player.
+	 */
+	public long getGames() {
+		return games;
+	}
+
+	/**
+	 * Returns the number of sessions ended by the server.
+	 */
+	public long getQuits() {
+		return quits;
+	}
+
+	/**
+	 * Returns the number of requests that could not be sent.
+	 */
+	public long getErrors() {
+		return errors;
+	}
+
+	/**
+	 * Report the player's id
+	 * @param  i      Player id
+	 */
+	public synchronized void id( int i ) {
+		id = i;
+	}
+
+	/**
+	 * Report the identity of a player
+	 * @param  i      Player id
+	 * @param  n      Player name
+	 */
+	public void name(int i, String n) {
+	}
+
+	/**
+	 * Report the score of a player
+	 * @param  i      Player id
+	 * @param  s      Score
+	 */
+	public void score(int i, int s) {
+	}
+
+	/**
+	 * Report the state of a heap.
+	 * @param  h      Heap id
+	 * @param  m      Number of markers
+	 */
+	public synchronized void heap(int h, int m) {
+		if (h < 0) return;
+		if (h >= heaps.length) heaps = Arrays.copyOf( heaps, h + 1 );
+		heaps[h] = m;
+	}
+
+	/**
+	 * Report who's turn it is, and move if it is this bot's turn.
+	 * @param  i      Player id
+	 */
+	public synchronized void turn(int i) {
+		// While this bot's take is on its way, being told it is still this
+		// bot's turn is stale news.
+		if (sent != 0 && i == id) return;
+		if (sent != 0) {
+			latency.record( System.nanoTime() - sent );
+			sent = 0;
+			++ moves;
+		}
+		if (i != id) return;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		int start = random.nextInt( heaps.length );
+		for (int k = 0; k < heaps.length; k++) {
+			int h = (start + k) % heaps.length;
+			if (heaps[h] > 0) {
+				try {
+					sent = System.nanoTime();
+					proxy.take( null, h, 1 + random.nextInt( heaps[h] ) );
+				} catch (IOException exc) {
+					sent = 0;
+					++ errors;
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Report a player has won, and start a new game if it was this bot.
+	 * @param  i      Player id
+	 */
+	public synchronized void win(int i) {
+		++ games;
+		if (i != id) return;
+		try {
+			proxy.newGame();
+		} catch (IOException exc) {
+			++ errors;
+		}
+	}
+
+	/**
+	 * Take on the fields of the session that changed, and move if the turn
+	 * changed to this bot.
+	 * @param  base   Version the changes are relative to
+	 * @param  v      Version after the changes
+	 * @param  t      Id of the player whose turn it is, or -1
+	 * @param  scores Player scores, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  h      Ids of the heaps that changed
+	 * @param  m      Markers left in each heap that changed
+	 */
+	public synchronized void delta(int base, int v, int t, int[] scores,
+								   int n, int[] h, int[] m) {
+		version = v;
+		for (int k = 0; k < n; k++) {
+			heap( h[k], m[k] );
+		}
+		if (t >= 0) turn( t );
+	}
+	
+	/**
+	 * Take on the whole state of the session, unless the bot already has
+	 * it, and move if it is this bot's turn. A newer snapshot, such as one
+	 * from a server that recovered the session after a restart, also
+	 * supersedes a move on its way.
+	 * @param  v      Version
+	 * @param  i      This bot's id
+	 * @param  t      Id of the player whose turn it is
+	 * @param  h      Markers in each heap
+	 * @param  names  Player names
+	 * @param  scores Player scores
+	 */
+	public synchronized void snapshot(int v, int i, int t, int[] h,
+									  String[] names, int[] scores) {
+		if (version >= 0 && v - version <= 0) return;
+		version = v;
+		id = i;
+		heaps = Arrays.copyOf( h, h.length );
+		sent = 0;
+		turn( t );
+	}
+	
+	/**
+	 * Report the game has ended, and join another one.
+	 */
+	public synchronized void quit() {
+		++ quits;
+		sent = 0;
+		version = -1;
+		heaps = new int [] { 3, 4, 5 };
+		join();
+	}
+
+	/**
+	 * Deliver the events reported so far; the bot needs no batching.
+	 */
+	public void flush() {
+	}
+}
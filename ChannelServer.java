@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class ChannelServer reads datagrams from a non-blocking datagram channel
+ * with a selector loop and hands them to a pool of worker threads. Clients
+ * are sharded across the workers by address and tag, so every datagram
+ * from one client is processed in order by the same worker and its own
+ * MailboxManager, while different clients are processed in parallel.
+ * Game operations then run on the session's stripe of a session executor.
+ * Behind a NimRouter, clients are sharded by the address in the route
+ * header of each datagram, not the router's.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ChannelServer {
+
+	// Hidden data members.
+	private DatagramChannel channel;
+	private Selector selector;
+	private Worker[] workers;
+	private SessionManager sessionManager;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect
+		(MessageCodec.MAX_REQUEST);
+	private SocketAddress router;
+
+	// Exported constructors.
+	/**
+	 * Construct a new channel server.
+	 *
+	 * @param  channel     Bound datagram channel.
+	 * @param  numWorkers  Number of worker threads.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public ChannelServer (DatagramChannel channel, int numWorkers)
+			throws IOException {
+		this.channel = channel;
+		channel.configureBlocking (false);
+		selector = Selector.open();
+		channel.register (selector, SelectionKey.OP_READ);
+		sessionManager = new SessionManager (new SessionExecutor (numWorkers));
+		workers = new Worker [numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new Worker
+				(new MailboxManager (channel, sessionManager));
+			workers[i].setName ("NimServer-worker-" + i);
+		}
+	}
+
+	// Exported operations.
+	/**
+	 * Apply a server configuration: its session settings once to the
+	 * session manager the workers share, and its client settings to each
+	 * worker, which keeps an even share of the proxy limit. Must be called
+	 * before run().
+	 *
+	 * @param  config  Server configuration.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void configure (ServerConfig config) throws IOException {
+		sessionManager.configure (config);
+		router = config.router;
+		int perWorker = (config.maxProxies + workers.length - 1) /
+			workers.length;
+		for (Worker worker : workers) {
+			worker.manager.setMaxProxies (perWorker);
+			worker.manager.setRouter (config.router);
+			worker.manager.setIdleTimeout (config.idleTimeout);
+		}
+	}
+
+	/**
+	 * Restore the sessions recovered from an event log, giving each player
+	 * a proxy on the worker that will hear from its client, and send each
+	 * player a snapshot. Must be called before run().
+	 *
+	 * @param  recovery  Recovered sessions.
+	 * @return  The number of sessions restored.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public int recover (Recovery recovery) throws IOException {
+		return sessionManager.recover (recovery, new Recovery.Binder() {
+			public ViewProxy bind (SocketAddress address, int tag) {
+				return workers[workerFor (address, tag)].manager.adopt
+					(address, tag);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of live proxies.
+	 */
+	public int getProxyCount() {
+		int count = 0;
+		for (Worker worker : workers) {
+			count += worker.manager.getProxyCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of clients evicted so far.
+	 */
+	public long getEvictions() {
+		long count = 0;
+		for (Worker worker : workers) {
+			count += worker.manager.getEvictions();
+		}
+		return count;
+	}
+
+	/**
+	 * Start the workers and run the selector loop forever.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void run() throws IOException {
+		for (Worker worker : workers) {
+			worker.start();
+		}
+		for (;;) {
+			selector.select();
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				keys.next();
+				keys.remove();
+				drain();
+			}
+		}
+	}
+
+	// Hidden operations.
+	/**
+	 * Read every datagram currently queued on the channel and hand each one
+	 * to the worker that owns its sender, copied into a packet the worker
+	 * has finished with, if it has one.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void drain() throws IOException {
+		SocketAddress clientAddress;
+		buffer.clear();
+		while ((clientAddress = channel.receive (buffer)) != null) {
+			buffer.flip();
+			SocketAddress owner = clientAddress;
+			ByteBuffer message = buffer;
+			if (router != null && MessageCodec.isRouted (buffer) &&
+					router.equals (clientAddress)) {
+				message = buffer.duplicate();
+				try {
+					owner = MessageCodec.decodeRoute (message);
+				} catch (IOException exc) {
+					ServerMetrics.get().badMessage();
+					buffer.clear();
+					continue;
+				}
+			}
+			int worker = workerFor (owner,
+				MessageCodec.isTagged (message) ?
+					message.getInt (message.position() + 1) : -1);
+			DatagramPacket packet = workers[worker].free.poll();
+			if (packet == null) {
+				byte[] payload = new byte [MessageCodec.MAX_REQUEST];
+				packet = new DatagramPacket (payload, payload.length);
+			}
+			packet.setLength (buffer.remaining());
+			buffer.get (packet.getData(), 0, packet.getLength());
+			buffer.clear();
+			packet.setSocketAddress (clientAddress);
+			workers[worker].queue.add (packet);
+		}
+	}
+
+	/**
+	 * Pick the worker responsible for a client.
+	 *
+	 * @param  clientAddress  Client's mailbox address.
+	 * @param  tag            Client's tag, or -1 if untagged.
+	 * @return  Worker index.
+	 */
+	private int workerFor (SocketAddress clientAddress, int tag) {
+		int hash = clientAddress.hashCode();
+		if (tag >= 0) hash = hash*31 + tag;
+		return (hash & 0x7fffffff) % workers.length;
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Worker processes the datagrams of its shard of clients, and
+	 * hands each packet back for reuse once it has been dispatched.
+	 */
+	private static class Worker extends Thread {
+		private static final int POOL = 256;
+
+		private LinkedBlockingQueue<DatagramPacket> queue =
+			new LinkedBlockingQueue<DatagramPacket>();
+		private ArrayBlockingQueue<DatagramPacket> free =
+			new ArrayBlockingQueue<DatagramPacket> (POOL);
+		private MailboxManager manager;
+
+		public Worker (MailboxManager manager) {
+			this.manager = manager;
+			setDaemon (true);
+		}
+
+		public void run() {
+			for (;;) {
+				try {
+					long interval = manager.sweepInterval();
+					DatagramPacket packet = interval > 0
+						? queue.poll (interval, TimeUnit.MILLISECONDS)
+						: queue.take();
+					if (packet != null) {
+						try {
+							manager.dispatch (packet);
+						} finally {
+							free.offer (packet);
+						}
+					}
+					manager.tick();
+				} catch (IOException exc) {
+					System.err.println ("IOException: " + exc.getMessage());
+				} catch (RuntimeException exc) {
+					System.err.println ("RuntimeException: " + exc);
+				} catch (InterruptedException exc) {
+					return;
+				}
+			}
+		}
+	}
+}
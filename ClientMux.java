@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Class ClientMux lets many model proxies share one socket and one reader
+ * thread. Each proxy is given a token, its datagrams are tagged with it,
+ * and the reader hands every tagged reply to the proxy the token names.
+ * Tokens are handed out in sequence, so finding a proxy is an array index.
+ * A malformed datagram is counted and dropped; the reader stops only when
+ * the socket is closed.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ClientMux {
+
+	// Hidden data members.
+	private DatagramSocket mailbox;
+	private SocketAddress destination;
+	private volatile ModelProxy[] proxies = new ModelProxy [16];
+	private int count;
+	private volatile long badMessages;
+
+	// Exported constructors.
+	/**
+	 * Construct a new client mux.
+	 *
+	 * @param  mailbox      Socket shared by the proxies.
+	 * @param  destination  Server's address.
+	 */
+	public ClientMux (DatagramSocket mailbox, SocketAddress destination) {
+		this.mailbox = mailbox;
+		this.destination = destination;
+	}
+
+	// Exported operations.
+	/**
+	 * Returns the shared socket.
+	 */
+	public DatagramSocket getMailbox() {
+		return mailbox;
+	}
+
+	/**
+	 * Returns the server's address.
+	 */
+	public SocketAddress getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Returns the number of datagrams dropped because they were malformed
+	 * or meant for no proxy.
+	 */
+	public long getBadMessages() {
+		return badMessages;
+	}
+
+	/**
+	 * Create a model proxy that shares this mux's socket.
+	 *
+	 * @return  Model proxy.
+	 */
+	public synchronized ModelProxy newProxy() {
+		if (count == proxies.length) {
+			proxies = Arrays.copyOf (proxies, 2*count);
+		}
+		ModelProxy proxy = new ModelProxy (this, count);
+		proxies[count++] = proxy;
+		return proxy;
+	}
+
+	/**
+	 * Start the reader thread.
+	 *
+	 * @param  factory  Thread factory, or null for a platform thread.
+	 */
+	public void start (ThreadFactory factory) {
+		if (factory == null) {
+			new Thread (new Reader()) . start();
+		} else {
+			factory.newThread (new Reader()) . start();
+		}
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Reader receives tagged frames from the network and hands each
+	 * one to the proxy it is tagged for.
+	 */
+	private class Reader implements Runnable {
+		public void run() {
+			byte[] payload = new byte [MessageCodec.MAX_DATAGRAM];
+			DatagramPacket packet =
+				new DatagramPacket (payload, payload.length);
+			ByteBuffer message = ByteBuffer.wrap (payload);
+			for (;;) {
+				packet.setLength (payload.length);
+				try {
+					mailbox.receive (packet);
+				} catch (IOException exc) {
+					// The socket was closed, or can no longer be read.
+					mailbox.close();
+					return;
+				}
+				message.clear();
+				message.limit (packet.getLength());
+				ModelProxy proxy = null;
+				if (MessageCodec.isTagged (message)) {
+					int token = MessageCodec.decodeTag (message);
+					ModelProxy[] table = proxies;
+					if (token >= 0 && token < table.length)
+						proxy = table[token];
+				}
+				boolean ok;
+				try {
+					ok = proxy != null && proxy.process (message);
+				} catch (IOException | RuntimeException exc) {
+					// A bad frame costs only itself, not the other proxies.
+					ok = false;
+				}
+				if (!ok) {
+					++ badMessages;
+					System.err.println ("Bad message");
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class ComputerPlayer is a server-side Nim player that sits in a session
+ * as player 2 when there is no one to pair a player with. It plays the
+ * optimal move: the one that leaves a nim-sum of zero, found from the
+ * model's running nim-sum in one pass over the heaps. On a board small
+ * enough, the move for every position is worked out once and shared by
+ * all computer players on that board, so a move is one table lookup. With
+ * a difficulty below 1, some moves are random instead. It starts a new
+ * game when it wins.
+ * <P>
+ * A computer player has no thread. It hears the model's events on the
+ * session's thread and, when the turn becomes its own, hands its move to
+ * an executor that runs it on that same thread after the current
+ * operation, so thousands of computer players can share a few threads.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ComputerPlayer implements ModelListener {
+
+	/**
+	 * Name the computer player plays under.
+	 */
+	public static final String NAME = "Computer";
+
+	// Hidden data members.
+	private static final int TABLE_STATES = 1 << 14;
+	private static ConcurrentHashMap<String,long[]> tables =
+		new ConcurrentHashMap<String,long[]>();
+
+	private NimModel model;
+	private Executor executor;
+	private double difficulty;
+	private int[] board;
+	private long[] table;
+	private int id;
+	private int turn;
+	private boolean scheduled;
+	private boolean startNewGame;
+	private boolean quit;
+
+	// Exported constructors.
+	/**
+	 * Construct a new computer player for a session. Add it to the model
+	 * with addPlayer().
+	 *
+	 * @param  model       Session's model.
+	 * @param  executor    Executor that runs a task on the session's thread
+	 *                     after the current operation.
+	 * @param  difficulty  Fraction of moves that are optimal, from 0 (all
+	 *                     random) to 1 (all optimal).
+	 */
+	public ComputerPlayer (NimModel model, Executor executor,
+						   double difficulty) {
+		this.model = model;
+		this.executor = executor;
+		this.difficulty = difficulty;
+		this.board = model.getBoard();
+		this.table = tableFor( board );
+	}
+
+	// Exported operations.
+	/**
+	 * Note this player's id.
+	 * @param  i      Player id
+	 */
+	public void id(int i) {
+		id = i;
+	}
+
+	/**
+	 * Ignore a player's name.
+	 * @param  i      Player id
+	 * @param  n      Player name
+	 */
+	public void name(int i, String n) {
+	}
+
+	/**
+	 * Ignore a player's score.
+	 * @param  i      Player id
+	 * @param  s      Score
+	 */
+	public void score(int i, int s) {
+	}
+
+	/**
+	 * Ignore a heap; the model is read directly when it is time to move.
+	 * @param  h      Heap id
+	 * @param  m      Number of markers
+	 */
+	public void heap(int h, int m) {
+	}
+
+	/**
+	 * Note whose turn it is.
+	 * @param  i      Player id
+	 */
+	public void turn(int i) {
+		turn = i;
+	}
+
+	/**
+	 * Report a player has won, and start a new game if it was this player.
+	 * @param  i      Player id
+	 */
+	public void win(int i) {
+		if (i == id) startNewGame = true;
+	}
+
+	/**
+	 * Note whose turn it is, if that changed.
+	 * @param  base   Version the changes are relative to
+	 * @param  v      Version after the changes
+	 * @param  t      Id of the player whose turn it is, or -1
+	 * @param  scores Player scores, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  heaps  Ids of the heaps that changed
+	 * @param  markers Markers left in each heap that changed
+	 */
+	public void delta(int base, int v, int t, int[] scores,
+					  int n, int[] heaps, int[] markers) {
+		if (t >= 0) turn = t;
+	}
+
+	/**
+	 * Note this player's id and whose turn it is.
+	 * @param  v      Version
+	 * @param  i      Player id
+	 * @param  t      Id of the player whose turn it is
+	 * @param  heaps  Markers left in each heap
+	 * @param  names  Player names
+	 * @param  scores Player scores
+	 */
+	public void snapshot(int v, int i, int t, int[] heaps,
+						 String[] names, int[] scores) {
+		id = i;
+		turn = t;
+	}
+
+	/**
+	 * Report the session has ended; make no more moves.
+	 */
+	public void quit() {
+		quit = true;
+	}
+
+	/**
+	 * At the end of each operation on the model, schedule a move if it is
+	 * this player's turn, or a new game if this player just won.
+	 */
+	public void flush() {
+		if (scheduled || quit) return;
+		if (!startNewGame && turn != id) return;
+		scheduled = true;
+		executor.execute( new Runnable() {
+			public void run() {
+				scheduled = false;
+				try {
+					play();
+				} catch (IOException exc) {
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the move this player would make now, with the heap number in
+	 * the upper 32 bits and the markers to take in the lower, or -1 if no
+	 * marker is left. Must run on the session's thread.
+	 */
+	public long chooseMove() {
+		if (model.getRemaining() == 0) return -1;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if (difficulty < 1 && random.nextDouble() >= difficulty) {
+			return randomMove( random );
+		}
+		if (table != null) {
+			int state = 0;
+			for (int h = 0; h < board.length; h++) {
+				state = state*(board[h] + 1) + model.getMarkers( h );
+			}
+			return table[state];
+		}
+		int s = model.getNimSum();
+		if (s == 0) {
+			// Every move loses against best play; play on at random.
+			return randomMove( random );
+		}
+		for (int h = 0; h < board.length; h++) {
+			int m = model.getMarkers( h );
+			if ((m ^ s) < m) return move( h, m - (m ^ s) );
+		}
+		return -1;
+	}
+
+	// Hidden operations.
+	/**
+	 * Make this player's move, or start the new game it won.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void play() throws IOException {
+		if (quit) return;
+		if (startNewGame) {
+			startNewGame = false;
+			model.newGame();
+			return;
+		}
+		if (turn != id) return;
+		long move = chooseMove();
+		if (move < 0) return;
+		model.move( this, (int) (move >>> 32), (int) move );
+	}
+
+	/**
+	 * Returns a random legal move.
+	 * @param  random  Random number generator.
+	 */
+	private long randomMove( ThreadLocalRandom random ) {
+		int start = random.nextInt( board.length );
+		for (int k = 0; k < board.length; k++) {
+			int h = (start + k) % board.length;
+			int m = model.getMarkers( h );
+			if (m > 0) return move( h, 1 + random.nextInt( m ) );
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns a move encoded as chooseMove() returns it.
+	 * @param  h    Heap number
+	 * @param  m    Markers to take
+	 */
+	private static long move( int h, int m ) {
+		return ((long) h << 32) | m;
+	}
+
+	/**
+	 * Returns the move table for a board, working it out the first time,
+	 * or null if the board has too many positions for a table. A position's
+	 * index reads the markers in each heap as the digits of a number whose
+	 * digit h is in base board[h] + 1.
+	 * @param  board  Markers in each heap at the start of a game.
+	 */
+	private static long[] tableFor( int[] board ) {
+		long states = 1;
+		for (int m : board) {
+			states *= m + 1;
+			if (states > TABLE_STATES) return null;
+		}
+		String key = Arrays.toString( board );
+		long[] table = tables.get( key );
+		if (table == null) {
+			table = new long[(int) states];
+			int[] markers = new int[board.length];
+			for (int state = 0; state < table.length; state++) {
+				int rest = state;
+				int s = 0;
+				for (int h = board.length - 1; h >= 0; h--) {
+					markers[h] = rest % (board[h] + 1);
+					rest /= board[h] + 1;
+					s ^= markers[h];
+				}
+				table[state] = -1;
+				for (int h = 0; h < board.length; h++) {
+					int m = markers[h];
+					if (s != 0 && (m ^ s) < m) {
+						table[state] = move( h, m - (m ^ s) );
+						break;
+					}
+					if (s == 0 && m > 0 && table[state] < 0) {
+						// A losing position; take one and hope.
+						table[state] = move( h, 1 );
+					}
+				}
+			}
+			long[] old = tables.putIfAbsent( key, table );
+			if (old != null) table = old;
+		}
+		return table;
+	}
+}
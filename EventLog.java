@@ -0,0 +1,924 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Class EventLog appends the events of every session -- start, join, take,
+ * win, new game and quit -- to a directory of fixed-size, memory-mapped
+ * segment files, so games and scores outlive their sessions and the server.
+ * <P>
+ * Appending never does I/O. An event is encoded into a pending buffer under
+ * a short lock, a few varints, so the receive loop and session threads pay
+ * about as much as for a metrics counter. A writer thread takes everything
+ * appended since its last commit, copies it into the current segment as one
+ * frame with a length and a CRC32C, and forces the segment to disk once
+ * for the whole frame. Events appended while a commit is in progress wait
+ * for the next one, so under load each commit covers more events rather
+ * than the server waiting on the disk more often. If the disk falls so far
+ * behind that 64 buffers are waiting for the writer, appending
+ * blocks until the writer takes them, so the backlog stays bounded and no
+ * event is dropped; the backlog is exported as a metric. A frame torn by
+ * a crash fails its checksum, and reading stops there.
+ * <P>
+ * A full segment is closed with an index file listing each session started
+ * in it and the offset of its start event, and a new segment is begun.
+ * Segments are never appended to again once closed or after a restart.
+ * <P>
+ * A checkpoint writes the whole state of every live session into the log,
+ * between a begin and an end marker, each session's state appended on the
+ * session's own thread in order with its events. The begin marker starts a
+ * frame, and once the end marker is on disk the begin marker's position is
+ * written to a <TT>checkpoint</TT> file. Recovering from there needs only
+ * the log after it: a session's events ahead of its state are already in
+ * the state, and a session started after the marker has its start there.
+ * <P>
+ * Record format, after the frame header: a type byte, the session id as a
+ * varint, then per type: 'S' the number of heaps and the markers in each;
+ * 'J' the player id byte, the name as a varint length and UTF-8 bytes, and
+ * the player's address; 'T' the heap and markers taken; 'W' the winner's
+ * id byte; 'N' and 'Q' nothing; 'C' the version, the turn byte, the two
+ * scores, the number of heaps, the markers each heap starts a game with
+ * and has left, the number of players, and for each its name and address;
+ * 'B' and 'E' nothing, with the checkpoint number in place of a session
+ * id. An address is its length byte, 0 for none, the IP address, the port
+ * as two bytes and the tag plus one as a varint, 0 if untagged.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class EventLog {
+
+	/**
+	 * Interface EventLog.Visitor specifies the object told of each event
+	 * read back from a log.
+	 */
+	public static interface Visitor {
+		/**
+		 * Report a session started.
+		 * @param  session  Session id.
+		 * @param  board    Markers in each heap at the start of a game.
+		 */
+		public void start (int session, int[] board);
+
+		/**
+		 * Report a player joined.
+		 * @param  session  Session id.
+		 * @param  id       Player id.
+		 * @param  name     Player name.
+		 * @param  address  Player's client address, or null for a player
+		 *                  on the server, such as a computer player.
+		 * @param  tag      Player's tag, or -1 if untagged.
+		 */
+		public void join (int session, int id, String name,
+						  SocketAddress address, int tag);
+
+		/**
+		 * Report a take.
+		 * @param  session  Session id.
+		 * @param  h        Heap number.
+		 * @param  m        Markers taken.
+		 */
+		public void take (int session, int h, int m);
+
+		/**
+		 * Report a win.
+		 * @param  session  Session id.
+		 * @param  id       Winner's id.
+		 */
+		public void win (int session, int id);
+
+		/**
+		 * Report a new game.
+		 * @param  session  Session id.
+		 */
+		public void newGame (int session);
+
+		/**
+		 * Report a session ended.
+		 * @param  session  Session id.
+		 */
+		public void quit (int session);
+
+		/**
+		 * Report the whole state of a session at a checkpoint.
+		 * @param  session    Session id.
+		 * @param  version    Session version.
+		 * @param  turn       Id of the player whose turn it is.
+		 * @param  scores     Player scores.
+		 * @param  board      Markers in each heap at the start of a game.
+		 * @param  markers    Markers left in each heap.
+		 * @param  names      Player names, one per player.
+		 * @param  addresses  Player addresses, null for a player on the
+		 *                    server.
+		 * @param  tags       Player tags, -1 if untagged.
+		 */
+		public void checkpoint (int session, int version, int turn,
+								int[] scores, int[] board, int[] markers,
+								String[] names, SocketAddress[] addresses,
+								int[] tags);
+	}
+
+	// Hidden data members.
+	private static final byte START = 'S';
+	private static final byte JOIN = 'J';
+	private static final byte TAKE = 'T';
+	private static final byte WIN = 'W';
+	private static final byte NEW_GAME = 'N';
+	private static final byte QUIT = 'Q';
+	private static final byte CHECKPOINT = 'C';
+	private static final byte BEGIN = 'B';
+	private static final byte END = 'E';
+	private static final int MAX_ADDRESS = 24;
+	private static final int FRAME_HEADER = 8;
+	private static final int MIN_SEGMENT = 1 << 16;
+	private static final int MAX_BUFFER = 1 << 18;
+	private static final int MAX_FULL = 64;
+
+	private File dir;
+	private long segmentSize;
+	private long commitNanos;
+	private int bufferSize;
+	private Thread writer;
+
+	// Appender state, guarded by this.
+	private Batch pending;
+	private long pendingSince;
+	private ArrayDeque<Batch> full = new ArrayDeque<Batch>();
+	private ArrayDeque<Batch> spare = new ArrayDeque<Batch>();
+	private int nextSession;
+	private int nextCheckpoint;
+	private boolean closed;
+	private boolean drained;
+
+	// Writer state, confined to the writer thread.
+	private int segmentNumber;
+	private RandomAccessFile segmentFile;
+	private MappedByteBuffer segment;
+	private ByteBuffer index = ByteBuffer.allocate (1024);
+	private int lastIndexed;
+	private int beginNumber = -1;
+	private long beginPosition;
+	private CRC32C crc = new CRC32C();
+
+	// Exported constructors.
+	/**
+	 * Open an event log in a directory, creating the directory if need be,
+	 * and start its writer thread. Events go to a new segment after any
+	 * already there; session ids carry on from the highest already used.
+	 *
+	 * @param  dir           Directory of segment files.
+	 * @param  segmentSize   Size of each segment file, in bytes.
+	 * @param  commitMillis  Longest an event waits for its commit to begin,
+	 *                       in milliseconds, or 0 to commit as soon as the
+	 *                       previous commit is done.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the segment size is under 64 KiB.
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public EventLog (File dir, long segmentSize, long commitMillis)
+			throws IOException {
+		if (segmentSize < MIN_SEGMENT || segmentSize > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException
+				("Bad segment size: " + segmentSize);
+		}
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException ("Cannot create " + dir);
+		}
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.commitNanos = commitMillis*1000000L;
+		this.bufferSize = (int) Math.min (MAX_BUFFER, segmentSize/4);
+		int[] numbers = segments (dir);
+		segmentNumber = numbers.length == 0 ? 0 : numbers[numbers.length-1];
+		nextSession = lastSession (dir, numbers) + 1;
+		pending = new Batch (bufferSize);
+		writer = new Thread ("NimServer-eventlog") {
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon (true);
+		writer.start();
+	}
+
+	// Exported operations -- appending.
+	/**
+	 * Append a session's start and assign it an id.
+	 *
+	 * @param  board  Markers in each heap at the start of a game.
+	 * @return  Session id.
+	 */
+	public synchronized int start (int[] board) {
+		ByteBuffer out = reserve (11 + 5*board.length);
+		int session = nextSession++;
+		pending.started (session, out.position());
+		out.put (START);
+		MessageCodec.putVarint (out, session);
+		MessageCodec.putVarint (out, board.length);
+		for (int m : board) {
+			MessageCodec.putVarint (out, m);
+		}
+		return session;
+	}
+
+	/**
+	 * Append a player's join.
+	 *
+	 * @param  session  Session id.
+	 * @param  id       Player id.
+	 * @param  name     Player name.
+	 * @param  player   Player's model listener; its client address is
+	 *                  logged if it is a view proxy.
+	 */
+	public void join (int session, int id, String name,
+					  ModelListener player) {
+		byte[] utf = name.getBytes (StandardCharsets.UTF_8);
+		synchronized (this) {
+			ByteBuffer out = reserve (12 + utf.length + MAX_ADDRESS);
+			out.put (JOIN);
+			MessageCodec.putVarint (out, session);
+			out.put ((byte) id);
+			MessageCodec.putVarint (out, utf.length);
+			out.put (utf);
+			putAddress (out, player);
+		}
+	}
+
+	/**
+	 * Append a take.
+	 *
+	 * @param  session  Session id.
+	 * @param  h        Heap number.
+	 * @param  m        Markers taken.
+	 */
+	public synchronized void take (int session, int h, int m) {
+		ByteBuffer out = reserve (16);
+		out.put (TAKE);
+		MessageCodec.putVarint (out, session);
+		MessageCodec.putVarint (out, h);
+		MessageCodec.putVarint (out, m);
+	}
+
+	/**
+	 * Append a win.
+	 *
+	 * @param  session  Session id.
+	 * @param  id       Winner's id.
+	 */
+	public synchronized void win (int session, int id) {
+		ByteBuffer out = reserve (7);
+		out.put (WIN);
+		MessageCodec.putVarint (out, session);
+		out.put ((byte) id);
+	}
+
+	/**
+	 * Append a new game.
+	 *
+	 * @param  session  Session id.
+	 */
+	public synchronized void newGame (int session) {
+		ByteBuffer out = reserve (6);
+		out.put (NEW_GAME);
+		MessageCodec.putVarint (out, session);
+	}
+
+	/**
+	 * Append a session's end.
+	 *
+	 * @param  session  Session id.
+	 */
+	public synchronized void quit (int session) {
+		ByteBuffer out = reserve (6);
+		out.put (QUIT);
+		MessageCodec.putVarint (out, session);
+	}
+
+	/**
+	 * Begin a checkpoint: append its begin marker at the start of a new
+	 * frame. Append each live session's state with checkpoint(), then end
+	 * it with endCheckpoint().
+	 *
+	 * @return  Checkpoint number.
+	 */
+	public synchronized int beginCheckpoint() {
+		if (pending.data.position() > 0) {
+			awaitRoom();
+			if (pending.data.position() > 0) handOff();
+		}
+		int number = nextCheckpoint++;
+		ByteBuffer out = reserve (6);
+		pending.begin = number;
+		out.put (BEGIN);
+		MessageCodec.putVarint (out, number);
+		return number;
+	}
+
+	/**
+	 * Append the whole state of a session to the current checkpoint.
+	 *
+	 * @param  session  Session id.
+	 * @param  version  Session version.
+	 * @param  turn     Id of the player whose turn it is.
+	 * @param  scores   Player scores.
+	 * @param  board    Markers in each heap at the start of a game.
+	 * @param  markers  Markers left in each heap.
+	 * @param  names    Player names, one per player.
+	 * @param  players  Players' model listeners; the client address of
+	 *                  each view proxy is logged.
+	 */
+	public void checkpoint (int session, int version, int turn,
+							int[] scores, int[] board, int[] markers,
+							String[] names, ModelListener[] players) {
+		byte[][] utf = new byte [names.length][];
+		int size = 28 + 10*board.length;
+		for (int p = 0; p < names.length; p++) {
+			utf[p] = names[p].getBytes (StandardCharsets.UTF_8);
+			size += 5 + utf[p].length + MAX_ADDRESS;
+		}
+		synchronized (this) {
+			ByteBuffer out = reserve (size);
+			out.put (CHECKPOINT);
+			MessageCodec.putVarint (out, session);
+			MessageCodec.putVarint (out, version);
+			out.put ((byte) turn);
+			MessageCodec.putVarint (out, scores[0]);
+			MessageCodec.putVarint (out, scores[1]);
+			MessageCodec.putVarint (out, board.length);
+			for (int h = 0; h < board.length; h++) {
+				MessageCodec.putVarint (out, board[h]);
+				MessageCodec.putVarint (out, markers[h]);
+			}
+			out.put ((byte) names.length);
+			for (int p = 0; p < names.length; p++) {
+				MessageCodec.putVarint (out, utf[p].length);
+				out.put (utf[p]);
+				putAddress (out, players[p]);
+			}
+		}
+	}
+
+	/**
+	 * End a checkpoint. Once the end marker is on disk, recovery starts
+	 * from this checkpoint.
+	 *
+	 * @param  number  Checkpoint number.
+	 */
+	public synchronized void endCheckpoint (int number) {
+		ByteBuffer out = reserve (6);
+		pending.end = number;
+		out.put (END);
+		MessageCodec.putVarint (out, number);
+	}
+
+	/**
+	 * Commit everything appended so far, stop the writer thread and close
+	 * the current segment. Events appended afterwards are dropped.
+	 *
+	 * @exception  InterruptedException
+	 *     Thrown if interrupted while waiting for the writer.
+	 */
+	public void close() throws InterruptedException {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		writer.join();
+	}
+
+	// Exported operations -- reading.
+	/**
+	 * Read back every event in a log directory, oldest first.
+	 *
+	 * @param  dir      Directory of segment files.
+	 * @param  visitor  Visitor told of each event.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public static void replay (File dir, Visitor visitor) throws IOException {
+		for (int number : segments (dir)) {
+			scan (segmentFile (dir, number), 0, visitor);
+		}
+	}
+
+	/**
+	 * Read back the events in a log directory from the start of its last
+	 * complete checkpoint, oldest first, or every event if it has none.
+	 *
+	 * @param  dir      Directory of segment files.
+	 * @param  visitor  Visitor told of each event.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public static void recover (File dir, Visitor visitor)
+			throws IOException {
+		long from = 0;
+		File file = new File (dir, "checkpoint");
+		if (file.exists()) {
+			from = ByteBuffer.wrap (Files.readAllBytes (file.toPath()))
+				.getLong();
+		}
+		int first = (int) (from >>> 32);
+		for (int number : segments (dir)) {
+			if (number < first) continue;
+			scan (segmentFile (dir, number),
+				number == first ? (int) from : 0, visitor);
+		}
+	}
+
+	// Hidden operations -- appending.
+	/**
+	 * Returns the pending buffer with room for a record, handing a full
+	 * buffer to the writer if need be. Must be called holding the lock.
+	 *
+	 * @param  size  Largest size of the record.
+	 */
+	private ByteBuffer reserve (int size) {
+		ServerMetrics.get().eventLogged();
+		if (drained) {
+			// Closed; drop the event.
+			pending.clear();
+		}
+		if (pending.data.remaining() < size) {
+			awaitRoom();
+			if (pending.data.remaining() < size) handOff();
+		}
+		if (pending.data.position() == 0) {
+			pendingSince = System.nanoTime();
+			if (commitNanos == 0) notifyAll();
+		}
+		return pending.data;
+	}
+
+	/**
+	 * Wait while MAX_FULL buffers are waiting for the writer, unless the
+	 * writer has stopped. Must be called holding the lock.
+	 */
+	private void awaitRoom() {
+		if (full.size() < MAX_FULL) return;
+		ServerMetrics.get().logStall();
+		boolean interrupted = false;
+		while (full.size() >= MAX_FULL && !drained && writer.isAlive()) {
+			try {
+				wait();
+			} catch (InterruptedException exc) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Hand the pending buffer to the writer and start a new one. Must be
+	 * called holding the lock.
+	 */
+	private void handOff() {
+		full.add (pending);
+		ServerMetrics.get().logBacklog (1);
+		Batch next = spare.poll();
+		pending = next != null ? next : new Batch (bufferSize);
+		notifyAll();
+	}
+
+	/**
+	 * Wait until a commit is due, then take every buffer to commit.
+	 * Returns null once the log is closed and nothing is left.
+	 */
+	private synchronized List<Batch> takeBatches()
+			throws InterruptedException {
+		for (;;) {
+			boolean any = pending.data.position() > 0;
+			long wait = commitNanos - (System.nanoTime() - pendingSince);
+			if (!full.isEmpty() || (any && (closed || wait <= 0))) break;
+			if (closed) {
+				drained = true;
+				return null;
+			}
+			if (any) {
+				wait (Math.max (1, wait/1000000L));
+			} else {
+				wait();
+			}
+		}
+		List<Batch> batches = new ArrayList<Batch> (full);
+		ServerMetrics.get().logBacklog (-full.size());
+		full.clear();
+		// Appenders may be waiting for room.
+		notifyAll();
+		if (pending.data.position() > 0) {
+			batches.add (pending);
+			Batch next = spare.poll();
+			pending = next != null ? next : new Batch (bufferSize);
+		}
+		return batches;
+	}
+
+	/**
+	 * Return committed buffers for reuse.
+	 */
+	private synchronized void recycle (List<Batch> batches) {
+		for (Batch batch : batches) {
+			batch.clear();
+			if (spare.size() < 4) spare.add (batch);
+		}
+	}
+
+	// Hidden operations -- writing.
+	/**
+	 * Body of the writer thread: commit batches until closed.
+	 */
+	private void write() {
+		try {
+			List<Batch> batches;
+			while ((batches = takeBatches()) != null) {
+				try {
+					commit (batches);
+				} catch (IOException exc) {
+					System.err.println ("IOException: " + exc.getMessage());
+				}
+				recycle (batches);
+			}
+			if (segment != null) closeSegment();
+		} catch (InterruptedException exc) {
+		} catch (IOException exc) {
+			System.err.println ("IOException: " + exc.getMessage());
+		}
+	}
+
+	/**
+	 * Write each batch to the current segment as one frame, starting a new
+	 * segment when one does not fit, and force the segment to disk.
+	 */
+	private void commit (List<Batch> batches) throws IOException {
+		long start = System.nanoTime();
+		long bytes = 0;
+		for (Batch batch : batches) {
+			ByteBuffer data = batch.data;
+			int length = data.position();
+			if (segment == null ||
+					segment.remaining() < FRAME_HEADER + length) {
+				if (segment != null) closeSegment();
+				openSegment();
+			}
+			data.flip();
+			crc.reset();
+			crc.update (data.array(), 0, length);
+			int offset = segment.position() + FRAME_HEADER;
+			if (batch.begin >= 0) {
+				beginNumber = batch.begin;
+				beginPosition = ((long) segmentNumber << 32) |
+					segment.position();
+			}
+			segment.putInt (length);
+			segment.putInt ((int) crc.getValue());
+			segment.put (data);
+			for (int i = 0; i < batch.startCount; i++) {
+				indexStart (batch.starts[2*i], offset + batch.starts[2*i+1]);
+			}
+			bytes += FRAME_HEADER + length;
+		}
+		segment.force();
+		ServerMetrics.get().logCommit (bytes, System.nanoTime() - start);
+		for (Batch batch : batches) {
+			if (batch.end >= 0 && batch.end == beginNumber) {
+				writeCheckpoint (beginPosition);
+			}
+		}
+	}
+
+	/**
+	 * Replace the checkpoint file with the position of a checkpoint's
+	 * begin marker: its segment number in the upper 32 bits and its
+	 * frame's offset in the lower.
+	 */
+	private void writeCheckpoint (long position) throws IOException {
+		File tmp = new File (dir, "checkpoint.tmp");
+		try (FileOutputStream out = new FileOutputStream (tmp)) {
+			out.write (ByteBuffer.allocate (8).putLong (position).array());
+			out.getFD().sync();
+		}
+		Files.move (tmp.toPath(), new File (dir, "checkpoint").toPath(),
+			StandardCopyOption.REPLACE_EXISTING,
+			StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Append a player's address: none unless the player is a view proxy.
+	 */
+	private static void putAddress (ByteBuffer out, ModelListener player) {
+		SocketAddress address = player instanceof ViewProxy ?
+			((ViewProxy) player).getClientAddress() : null;
+		if (!(address instanceof InetSocketAddress) ||
+				((InetSocketAddress) address).isUnresolved()) {
+			out.put ((byte) 0);
+			return;
+		}
+		InetSocketAddress inet = (InetSocketAddress) address;
+		byte[] ip = inet.getAddress().getAddress();
+		out.put ((byte) ip.length);
+		out.put (ip);
+		out.putShort ((short) inet.getPort());
+		MessageCodec.putVarint (out, ((ViewProxy) player).getTag() + 1);
+	}
+
+	/**
+	 * Read an address; returns null for none. Its tag goes in tags[p].
+	 */
+	private static SocketAddress getAddress (ByteBuffer in, int[] tags,
+											 int p) {
+		int length = in.get();
+		tags[p] = -1;
+		if (length == 0) return null;
+		byte[] ip = new byte [length];
+		in.get (ip);
+		int port = in.getShort() & 0xFFFF;
+		tags[p] = MessageCodec.getVarint (in) - 1;
+		try {
+			return new InetSocketAddress
+				(InetAddress.getByAddress (ip), port);
+		} catch (IOException exc) {
+			throw new BufferUnderflowException();
+		}
+	}
+
+	/**
+	 * Begin the next segment file.
+	 */
+	private void openSegment() throws IOException {
+		++ segmentNumber;
+		segmentFile = new RandomAccessFile
+			(segmentFile (dir, segmentNumber), "rw");
+		segment = segmentFile.getChannel().map
+			(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		index.clear();
+		lastIndexed = 0;
+	}
+
+	/**
+	 * Force the current segment to disk, write its index and close it.
+	 */
+	private void closeSegment() throws IOException {
+		segment.force();
+		segmentFile.close();
+		segment = null;
+		index.flip();
+		try (OutputStream out = new FileOutputStream
+				(indexFile (dir, segmentNumber))) {
+			out.write (index.array(), 0, index.limit());
+		}
+	}
+
+	/**
+	 * Note in the segment index that a session started at an offset.
+	 */
+	private void indexStart (int session, int offset) {
+		if (index.remaining() < 10) {
+			index = ByteBuffer.allocate (2*index.capacity())
+				.put (index.flip());
+		}
+		MessageCodec.putVarint (index, session - lastIndexed);
+		MessageCodec.putVarint (index, offset);
+		lastIndexed = session;
+	}
+
+	// Hidden operations -- reading.
+	/**
+	 * Read the events of one segment, stopping at the first frame that is
+	 * empty, torn or fails its checksum.
+	 *
+	 * @param  file     Segment file.
+	 * @param  from     Offset of the first frame to read.
+	 * @param  visitor  Visitor told of each event.
+	 */
+	private static void scan (File file, int from, Visitor visitor)
+			throws IOException {
+		ByteBuffer in;
+		try (RandomAccessFile raf = new RandomAccessFile (file, "r")) {
+			in = raf.getChannel().map
+				(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+		in.position (Math.min (from, in.limit()));
+		CRC32C check = new CRC32C();
+		while (in.remaining() >= FRAME_HEADER) {
+			int length = in.getInt();
+			int sum = in.getInt();
+			if (length <= 0 || length > in.remaining()) return;
+			ByteBuffer frame = in.slice();
+			frame.limit (length);
+			check.reset();
+			check.update (frame.duplicate());
+			if ((int) check.getValue() != sum) return;
+			in.position (in.position() + length);
+			try {
+				while (frame.hasRemaining()) {
+					record (frame, visitor);
+				}
+			} catch (BufferUnderflowException exc) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Read one record and report it to a visitor.
+	 */
+	private static void record (ByteBuffer in, Visitor visitor) {
+		byte type = in.get();
+		int session = MessageCodec.getVarint (in);
+		switch (type) {
+			case START:
+				int[] board = new int [MessageCodec.getVarint (in)];
+				for (int h = 0; h < board.length; h++) {
+					board[h] = MessageCodec.getVarint (in);
+				}
+				visitor.start (session, board);
+				break;
+			case JOIN:
+				int id = in.get();
+				String name = getName (in);
+				int[] tag = new int [1];
+				SocketAddress address = getAddress (in, tag, 0);
+				visitor.join (session, id, name, address, tag[0]);
+				break;
+			case TAKE:
+				visitor.take (session, MessageCodec.getVarint (in),
+					MessageCodec.getVarint (in));
+				break;
+			case WIN:
+				visitor.win (session, in.get());
+				break;
+			case NEW_GAME:
+				visitor.newGame (session);
+				break;
+			case QUIT:
+				visitor.quit (session);
+				break;
+			case CHECKPOINT:
+				int version = MessageCodec.getVarint (in);
+				int turn = in.get();
+				int[] scores = new int []
+					{ MessageCodec.getVarint (in), MessageCodec.getVarint (in) };
+				int heaps = MessageCodec.getVarint (in);
+				if (heaps > in.remaining()) throw new BufferUnderflowException();
+				int[] initial = new int [heaps];
+				int[] markers = new int [heaps];
+				for (int h = 0; h < heaps; h++) {
+					initial[h] = MessageCodec.getVarint (in);
+					markers[h] = MessageCodec.getVarint (in);
+				}
+				int players = in.get();
+				String[] names = new String [players];
+				SocketAddress[] addresses = new SocketAddress [players];
+				int[] tags = new int [players];
+				for (int p = 0; p < players; p++) {
+					names[p] = getName (in);
+					addresses[p] = getAddress (in, tags, p);
+				}
+				visitor.checkpoint (session, version, turn, scores,
+					initial, markers, names, addresses, tags);
+				break;
+			case BEGIN:
+			case END:
+				break;
+			default:
+				throw new BufferUnderflowException();
+		}
+	}
+
+	/**
+	 * Read a name: a varint length and UTF-8 bytes.
+	 */
+	private static String getName (ByteBuffer in) {
+		int length = MessageCodec.getVarint (in);
+		if (length > in.remaining()) throw new BufferUnderflowException();
+		byte[] utf = new byte [length];
+		in.get (utf);
+		return new String (utf, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the highest session id in a log, or 0 if there is none: from
+	 * the newest segment's index, or by reading the newest segment if it
+	 * has none because the server stopped without closing it.
+	 */
+	private static int lastSession (File dir, int[] numbers)
+			throws IOException {
+		for (int k = numbers.length - 1; k >= 0; k--) {
+			File idx = indexFile (dir, numbers[k]);
+			int last = 0;
+			if (idx.exists()) {
+				ByteBuffer in = ByteBuffer.wrap (Files.readAllBytes
+					(idx.toPath()));
+				while (in.hasRemaining()) {
+					last += MessageCodec.getVarint (in);
+					MessageCodec.getVarint (in);
+				}
+			} else {
+				final int[] max = new int [1];
+				scan (segmentFile (dir, numbers[k]), 0, new Visitor() {
+					public void start (int session, int[] board) {
+						max[0] = Math.max (max[0], session);
+					}
+					public void join (int session, int id, String name,
+									  SocketAddress address, int tag) {}
+					public void take (int session, int h, int m) {}
+					public void win (int session, int id) {}
+					public void newGame (int session) {}
+					public void quit (int session) {}
+					public void checkpoint (int session, int version,
+							int turn, int[] scores, int[] board,
+							int[] markers, String[] names,
+							SocketAddress[] addresses, int[] tags) {}
+				});
+				last = max[0];
+			}
+			if (last > 0) return last;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the numbers of the segments in a directory, in order.
+	 */
+	private static int[] segments (File dir) {
+		String[] names = dir.list();
+		if (names == null) return new int [0];
+		int[] numbers = new int [names.length];
+		int n = 0;
+		for (String name : names) {
+			if (name.startsWith ("events-") && name.endsWith (".log")) {
+				try {
+					int number = Integer.parseInt
+						(name.substring (7, name.length() - 4));
+					numbers[n++] = number;
+				} catch (NumberFormatException exc) {
+				}
+			}
+		}
+		numbers = Arrays.copyOf (numbers, n);
+		Arrays.sort (numbers);
+		return numbers;
+	}
+
+	private static File segmentFile (File dir, int number) {
+		return new File (dir, String.format ("events-%08d.log", number));
+	}
+
+	private static File indexFile (File dir, int number) {
+		return new File (dir, String.format ("events-%08d.idx", number));
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Batch is a buffer of appended records and the sessions started
+	 * in it, with the offset of each start.
+	 */
+	private static class Batch {
+		public ByteBuffer data;
+		public int[] starts = new int [32];
+		public int startCount;
+		public int begin = -1;
+		public int end = -1;
+
+		public Batch (int size) {
+			data = ByteBuffer.allocate (size);
+		}
+
+		public void started (int session, int offset) {
+			if (2*startCount == starts.length) {
+				starts = Arrays.copyOf (starts, 2*starts.length);
+			}
+			starts[2*startCount] = session;
+			starts[2*startCount+1] = offset;
+			++ startCount;
+		}
+
+		public void clear() {
+			data.clear();
+			startCount = 0;
+			begin = -1;
+			end = -1;
+		}
+	}
+}
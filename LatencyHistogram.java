@@ -0,0 +1,93 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Class LatencyHistogram counts latency samples in logarithmic buckets,
+ * each power of two split into eight linear sub-buckets, so any sample is
+ * placed within 12.5% of its value in a fixed 4 KB table. Recording is
+ * lock-free and allocation-free and may be done from many threads.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class LatencyHistogram {
+
+	// Hidden data members.
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private AtomicLongArray counts = new AtomicLongArray (64*SUB_BUCKETS);
+
+	// Exported constructors.
+	/**
+	 * Construct a new, empty latency histogram.
+	 */
+	public LatencyHistogram() {}
+
+	// Exported operations.
+	/**
+	 * Record one sample.
+	 * @param  nanos  Latency in nanoseconds.
+	 */
+	public void record (long nanos) {
+		counts.incrementAndGet (bucket (Math.max (0, nanos)));
+	}
+
+	/**
+	 * Add every sample of another histogram to this one.
+	 * @param  other  Histogram to add.
+	 */
+	public void add (LatencyHistogram other) {
+		for (int i = 0; i < counts.length(); i++) {
+			long n = other.counts.get (i);
+			if (n != 0) counts.addAndGet (i, n);
+		}
+	}
+
+	/**
+	 * Returns the number of samples recorded.
+	 */
+	public long count() {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) total += counts.get (i);
+		return total;
+	}
+
+	/**
+	 * Returns the latency at or below which the given fraction of samples
+	 * fall, to within the bucket precision, or 0 if there are no samples.
+	 * @param  p  Fraction, from 0 to 1.
+	 */
+	public long percentile (double p) {
+		long total = count();
+		if (total == 0) return 0;
+		long rank = Math.max (1, (long) Math.ceil (p*total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get (i);
+			if (seen >= rank) return highest (i);
+		}
+		return highest (counts.length() - 1);
+	}
+
+	// Hidden operations.
+	/**
+	 * Returns the bucket holding a value.
+	 */
+	private static int bucket (long v) {
+		int mag = 63 - Long.numberOfLeadingZeros (v | 1);
+		if (mag < SUB_BITS) return (int) v;
+		return (mag - SUB_BITS + 1)*SUB_BUCKETS +
+			(int) ((v >>> (mag - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * Returns the largest value a bucket holds.
+	 */
+	private static long highest (int b) {
+		if (b < SUB_BUCKETS) return b;
+		int mag = b/SUB_BUCKETS + SUB_BITS - 1;
+		long base = 1L << mag;
+		long width = 1L << (mag - SUB_BITS);
+		return base + ((b % SUB_BUCKETS) + 1)*width - 1;
+	}
+}
@@ -0,0 +1,63 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class LossyDatagramSocket is a datagram socket that silently drops a
+ * given fraction of the datagrams sent and received through it, standing
+ * in for a lossy network when testing and benchmarking on loopback.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class LossyDatagramSocket extends DatagramSocket {
+
+	// Hidden data members.
+	private double loss;
+
+	// Exported constructors.
+	/**
+	 * Construct a new lossy datagram socket.
+	 *
+	 * @param  address  Local address to bind to.
+	 * @param  loss     Probability of dropping each datagram, 0 to 1.
+	 *
+	 * @exception  SocketException
+	 *     Thrown if the socket could not be opened or bound.
+	 */
+	public LossyDatagramSocket (SocketAddress address, double loss)
+			throws SocketException {
+		super (address);
+		this.loss = loss;
+	}
+
+	// Exported operations.
+	/**
+	 * Send a datagram, unless it is dropped.
+	 */
+	public void send (DatagramPacket packet) throws IOException {
+		if (drop()) return;
+		super.send (packet);
+	}
+
+	/**
+	 * Receive the next datagram that is not dropped.
+	 */
+	public synchronized void receive (DatagramPacket packet)
+			throws IOException {
+		int length = packet.getLength();
+		for (;;) {
+			super.receive (packet);
+			if (!drop()) return;
+			packet.setLength (length);
+		}
+	}
+
+	// Hidden operations.
+	private boolean drop() {
+		return ThreadLocalRandom.current().nextDouble() < loss;
+	}
+}
@@ -1,18 +1,76 @@
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UTFDataFormatException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Class MailboxManager keeps one view proxy per client address and hands
+ * each received datagram to the proxy of the client that sent it.
+ * <P>
+ * Proxies are kept in least-recently-heard order. If an idle timeout is
+ * set, clients not heard from within it are evicted: their proxy is
+ * dropped and their session ended, which tells the opponent the game has
+ * ended. Each sweep only looks at the clients that actually expire. If a
+ * proxy limit is set, the least recently heard client is evicted to make
+ * room for a new one.
+ * <P>
+ * Clients that share one socket tag their datagrams; each tag gets its own
+ * proxy, which tags its replies the same way.
+ * <P>
+ * If a router is set, the server is one shard behind a NimRouter: a
+ * datagram from the router carries a route header naming the client it
+ * came from, the client gets a proxy as if it had sent the datagram
+ * itself, and the proxy replies through the router. The manager reports
+ * the number of players waiting for an opponent to the router whenever it
+ * changes, and at least every second while anyone waits, and tells the
+ * router whenever it drops a client that quit or was evicted.
+ * <P>
+ * Managers reading sockets that share one port take over the proxies of
+ * recovered clients from a map they share: the first to hear from such a
+ * client keeps its proxy. Proxies not taken over within the idle timeout
+ * are evicted.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
 public class MailboxManager {
 	// Hidden data members.
 	private DatagramSocket mailbox;
-	private HashMap<SocketAddress,ViewProxy> proxyMap =
-		new HashMap<SocketAddress,ViewProxy>();
+	private DatagramChannel channel;
+	private LinkedHashMap<SocketAddress,Client> proxyMap =
+		new LinkedHashMap<SocketAddress,Client> (16, 0.75f, true);
+
+	private byte[] payload =
+		new byte [MessageCodec.MAX_REQUEST];
+	private DatagramPacket packet =
+		new DatagramPacket (payload, payload.length);
+	private ByteBuffer message = ByteBuffer.wrap (payload);
+	private SessionManager sessionManager;
+
+	private long idleTimeout;
+	private long nextSweep;
+	private int maxProxies;
+	private volatile int proxyCount;
+	private volatile long evictions;
+
+	private SocketAddress router;
+	private int reported = -1;
+	private long nextReport;
+	private ByteBuffer report =
+		ByteBuffer.allocate (MessageCodec.WAITING_LENGTH);
+	private static final long REPORT_MILLIS = 1000;
+
+	private Map<SocketAddress,ViewProxy> unclaimed;
+	private long unclaimedSince;
 
-	private byte[] payload = new byte [128];
-	private SessionManager sessionManager = new SessionManager();
-	
 	// Exported constructors.
 	/**
 	 * Construct a new mailbox manager.
@@ -21,28 +79,484 @@ public class MailboxManager {
 	 */
 	public MailboxManager (DatagramSocket mailbox) {
 		this.mailbox = mailbox;
+		this.sessionManager = new SessionManager();
+	}
+
+	/**
+	 * Construct a new mailbox manager that shares a session manager with
+	 * the managers of other sockets bound to the same port.
+	 *
+	 * @param  mailbox         Mailbox used to read datagrams.
+	 * @param  sessionManager  Session manager shared by all managers.
+	 */
+	public MailboxManager (DatagramSocket mailbox,
+						   SessionManager sessionManager) {
+		this.mailbox = mailbox;
+		this.sessionManager = sessionManager;
+	}
+
+	/**
+	 * Construct a new mailbox manager that dispatches datagrams read by
+	 * someone else from a datagram channel. Several managers may share one
+	 * session manager, each owning the proxies of its own clients.
+	 *
+	 * @param  channel         Channel used to reply to clients.
+	 * @param  sessionManager  Session manager shared by all managers.
+	 */
+	public MailboxManager (DatagramChannel channel,
+						   SessionManager sessionManager) {
+		this.channel = channel;
+		this.sessionManager = sessionManager;
 	}
 
 	// Exported operations.
 	/**
-	 * Receive and process the next datagram.
+	 * Apply a server configuration: its session settings to this manager's
+	 * own session manager, and its client settings to this manager. A
+	 * server whose managers share a session manager configures it itself
+	 * and sets each manager's client settings instead.
+	 *
+	 * @param  config  Server configuration.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public void configure (ServerConfig config) throws IOException {
+		sessionManager.configure (config);
+		setMaxProxies (config.maxProxies);
+		setRouter (config.router);
+		setIdleTimeout (config.idleTimeout);
+	}
+
+	/**
+	 * Set how long a client may stay silent before it is evicted.
+	 *
+	 * @param  millis  Idle timeout in milliseconds, or 0 for none.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public void setIdleTimeout (long millis) throws IOException {
+		this.idleTimeout = millis;
+		if (mailbox != null) {
+			mailbox.setSoTimeout ((int) sweepInterval());
+		}
+	}
+
+	/**
+	 * Serve clients through a router, as one of its shards.
+	 *
+	 * @param  router  Router's address, or null for none.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public void setRouter (SocketAddress router) throws IOException {
+		this.router = router;
+		if (mailbox != null) {
+			mailbox.setSoTimeout ((int) sweepInterval());
+		}
+	}
+
+	/**
+	 * Restore the sessions recovered from an event log, giving each of
+	 * their players a proxy here, and send each player a snapshot.
+	 *
+	 * @param  recovery  Recovered sessions.
+	 * @return  The number of sessions restored.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public int recover (Recovery recovery) throws IOException {
+		return sessionManager.recover (recovery, new Recovery.Binder() {
+			public ViewProxy bind (SocketAddress address, int tag) {
+				return adopt (address, tag);
+			}
+		});
+	}
+
+	/**
+	 * Returns the proxy of a client, creating it if need be, as if the
+	 * client had just been heard from.
+	 *
+	 * @param  clientAddress  Client's mailbox address.
+	 * @param  tag            Client's tag, or -1 if untagged.
+	 */
+	public ViewProxy adopt (SocketAddress clientAddress, int tag) {
+		SocketAddress key = tag >= 0 ?
+			new TaggedAddress (clientAddress, tag) : clientAddress;
+		Client client = proxyMap.get (key);
+		if (client == null) {
+			client = newClient (key, clientAddress, tag >= 0, tag,
+				router != null);
+		}
+		client.lastActivity = System.currentTimeMillis();
+		return client.proxy;
+	}
+
+	/**
+	 * Take over the proxies of recovered clients from a map shared with
+	 * other managers, on first hearing from each.
+	 *
+	 * @param  unclaimed  Proxies of recovered clients, keyed as share()
+	 *                    keys them; a concurrent map.
+	 */
+	public void setUnclaimed (Map<SocketAddress,ViewProxy> unclaimed) {
+		this.unclaimed = unclaimed;
+		this.unclaimedSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns a new proxy for a recovered client, left in the map of
+	 * unclaimed proxies for whichever manager first hears from the client.
+	 *
+	 * @param  clientAddress  Client's mailbox address.
+	 * @param  tag            Client's tag, or -1 if untagged.
+	 */
+	public ViewProxy share (SocketAddress clientAddress, int tag) {
+		SocketAddress key = tag >= 0 ?
+			new TaggedAddress (clientAddress, tag) : clientAddress;
+		ViewProxy proxy = newProxy (clientAddress, tag >= 0, tag,
+			router != null);
+		unclaimed.put (key, proxy);
+		ServerMetrics.get().proxies (1);
+		return proxy;
+	}
+
+	/**
+	 * Set the largest number of proxies to keep.
+	 *
+	 * @param  max  Proxy limit, or 0 for none.
+	 */
+	public void setMaxProxies (int max) {
+		this.maxProxies = max;
+	}
+
+	/**
+	 * Returns how often idle clients should be swept, queued players
+	 * paired and waiting players reported to the router, in milliseconds,
+	 * or 0 if there is no idle timeout, no matchmaking and no router.
+	 */
+	public long sweepInterval() {
+		long interval = idleTimeout <= 0 ? 0 :
+			Math.max (1, Math.min (1000, idleTimeout/4));
+		long tick = sessionManager.tickInterval();
+		if (tick > 0 && (interval == 0 || tick < interval)) {
+			interval = tick;
+		}
+		if (router != null && (interval == 0 || REPORT_MILLIS < interval)) {
+			interval = REPORT_MILLIS;
+		}
+		return interval;
+	}
+
+	/**
+	 * Returns the number of live proxies.
+	 */
+	public int getProxyCount() {
+		return proxyCount;
+	}
+
+	/**
+	 * Returns the number of clients evicted so far.
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Receive and process the next datagram. If an idle timeout is set,
+	 * this returns after a sweep interval even if nothing was received.
 	 *
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurrs
 	 */
 	public void receiveMessage() throws IOException {
-		DatagramPacket packet = new DatagramPacket (payload, payload.length);
-		mailbox.receive (packet);
-		SocketAddress clientAddress = packet.getSocketAddress();
-		ViewProxy proxy = proxyMap.get (clientAddress);
-		if (proxy == null) {
+		packet.setLength (payload.length);
+		try {
+			mailbox.receive (packet);
+		} catch (SocketTimeoutException exc) {
+			tick();
+			return;
+		}
+		message.clear();
+		message.limit (packet.getLength());
+		dispatch (packet.getSocketAddress(), message);
+		tick();
+	}
+
+	/**
+	 * Process a datagram that has already been received, handing it to the
+	 * view proxy of the client that sent it.
+	 *
+	 * @param  packet  Received datagram.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public void dispatch (DatagramPacket packet) throws IOException {
+		dispatch (packet.getSocketAddress(),
+			ByteBuffer.wrap (packet.getData(), 0, packet.getLength()));
+	}
+
+	/**
+	 * Do the periodic work due: evict idle clients and pair queued players.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public void tick() throws IOException {
+		expire();
+		sessionManager.tick();
+		if (router != null) report();
+	}
+
+	/**
+	 * Evict the clients that have been idle longer than the idle timeout.
+	 * Does nothing if there is no idle timeout or the last sweep was less
+	 * than a sweep interval ago.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	public void expire() throws IOException {
+		if (idleTimeout <= 0) return;
+		long now = System.currentTimeMillis();
+		if (now < nextSweep) return;
+		nextSweep = now + sweepInterval();
+		Iterator<Client> clients = proxyMap.values().iterator();
+		while (clients.hasNext()) {
+			Client client = clients.next();
+			if (now - client.lastActivity < idleTimeout) break;
+			clients.remove();
+			evict (client);
+		}
+		if (unclaimed != null && !unclaimed.isEmpty() &&
+				now - unclaimedSince >= idleTimeout) {
+			for (Map.Entry<SocketAddress,ViewProxy> entry :
+					unclaimed.entrySet()) {
+				if (unclaimed.remove (entry.getKey(), entry.getValue())) {
+					++ evictions;
+					ServerMetrics.get().proxies (-1);
+					ServerMetrics.get().eviction();
+					drop (entry.getValue());
+				}
+			}
+		}
+	}
+
+	// Hidden operations.
+	/**
+	 * Hand a message to the view proxy of the client that sent it,
+	 * creating the proxy on first contact. A truncated or malformed
+	 * message is counted and dropped.
+	 *
+	 * @param  clientAddress  Client's mailbox address.
+	 * @param  message        Buffer holding the message.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	private void dispatch (SocketAddress clientAddress, ByteBuffer message)
+			throws IOException {
+		ServerMetrics.get().datagramIn();
+		boolean routed = false;
+		if (router != null && MessageCodec.isRouted (message) &&
+				router.equals (clientAddress)) {
+			try {
+				clientAddress = MessageCodec.decodeRoute (message);
+			} catch (IOException exc) {
+				ServerMetrics.get().badMessage();
+				return;
+			}
+			routed = true;
+		}
+		SocketAddress key = clientAddress;
+		boolean tagged = MessageCodec.isTagged (message);
+		int token = 0;
+		if (tagged) {
+			token = MessageCodec.decodeTag (message);
+			key = new TaggedAddress (clientAddress, token);
+		}
+		Client client = proxyMap.get (key);
+		if (client == null && unclaimed != null && !unclaimed.isEmpty()) {
+			ViewProxy proxy = unclaimed.remove (key);
+			if (proxy != null) {
+				client = new Client (proxy);
+				proxyMap.put (key, client);
+				proxyCount = proxyMap.size();
+			}
+		}
+		if (client == null) {
+			if (maxProxies > 0 && proxyMap.size() >= maxProxies) {
+				Iterator<Client> eldest = proxyMap.values().iterator();
+				Client victim = eldest.next();
+				eldest.remove();
+				evict (victim);
+			}
+			client = newClient (key, clientAddress, tagged, token, routed);
+		}
+		client.lastActivity = System.currentTimeMillis();
+		boolean discard;
+		try {
+			discard = client.proxy.process (message);
+		} catch (EOFException | UTFDataFormatException | RuntimeException
+				exc) {
+			// A truncated or malformed request costs only its datagram.
+			ServerMetrics.get().badMessage();
+			return;
+		}
+		if (discard) {
+			drop (client.proxy);
+			proxyMap.remove (key);
+			proxyCount = proxyMap.size();
+			ServerMetrics.get().proxies (-1);
+		}
+	}
+
+	/**
+	 * Create a client's proxy and add it to the proxy map.
+	 *
+	 * @param  key            Proxy map key.
+	 * @param  clientAddress  Client's mailbox address.
+	 * @param  tagged         True if the client tags its datagrams.
+	 * @param  token          Client's tag.
+	 * @param  routed         True if the client is reached through the
+	 *                        router.
+	 */
+	private Client newClient (SocketAddress key, SocketAddress clientAddress,
+							  boolean tagged, int token, boolean routed) {
+		ViewProxy proxy = newProxy (clientAddress, tagged, token, routed);
+		Client client = new Client (proxy);
+		proxyMap.put (key, client);
+		proxyCount = proxyMap.size();
+		ServerMetrics.get().proxies (1);
+		return client;
+	}
+
+	/**
+	 * Returns a new proxy for a client, reporting to the session manager.
+	 *
+	 * @param  clientAddress  Client's mailbox address.
+	 * @param  tagged         True if the client tags its datagrams.
+	 * @param  token          Client's tag.
+	 * @param  routed         True if the client is reached through the
+	 *                        router.
+	 */
+	private ViewProxy newProxy (SocketAddress clientAddress, boolean tagged,
+								int token, boolean routed) {
+		ViewProxy proxy;
+		if (channel != null) {
+			proxy = new ViewProxy (channel, clientAddress);
+		} else {
 			proxy = new ViewProxy (mailbox, clientAddress);
-			proxy.setViewListener (sessionManager);
-			proxyMap.put (clientAddress, proxy);
 		}
-		if (proxy.process (packet)) {
-			sessionManager.prepareQuit(proxy);
-			proxyMap.remove (clientAddress);
+		if (tagged) {
+			proxy.setTag (token);
+		}
+		if (routed) {
+			proxy.setRoute (router);
+		}
+		proxy.setViewListener (sessionManager);
+		return proxy;
+	}
+
+	/**
+	 * End the session of a client that has already been removed from the
+	 * proxy map.
+	 *
+	 * @param  client  Evicted client.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	private void evict (Client client) throws IOException {
+		proxyCount = proxyMap.size();
+		++ evictions;
+		ServerMetrics.get().proxies (-1);
+		ServerMetrics.get().eviction();
+		drop (client.proxy);
+	}
+
+	/**
+	 * End the session of a client whose proxy is being dropped, and tell
+	 * the router, if any, that the client is gone from this server.
+	 *
+	 * @param  proxy  Client's proxy.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	private void drop (ViewProxy proxy) throws IOException {
+		sessionManager.prepareQuit (proxy);
+		proxy.sendGone();
+	}
+
+	/**
+	 * Report the number of players waiting for an opponent to the router,
+	 * if it changed or a report is due.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurrs
+	 */
+	private void report() throws IOException {
+		int waiting = sessionManager.waitingCount();
+		long now = System.currentTimeMillis();
+		if (waiting == reported && (waiting == 0 || now < nextReport))
+			return;
+		reported = waiting;
+		nextReport = now + REPORT_MILLIS;
+		report.clear();
+		MessageCodec.encodeWaiting (report, waiting);
+		report.flip();
+		if (channel != null) {
+			channel.send (report, router);
+		} else {
+			mailbox.send (new DatagramPacket
+				(report.array(), report.limit(), router));
+		}
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Client records a client's proxy and when it was last heard from.
+	 */
+	private static class Client {
+		public ViewProxy proxy;
+		public long lastActivity;
+
+		public Client (ViewProxy proxy) {
+			this.proxy = proxy;
+		}
+	}
+
+	/**
+	 * Class TaggedAddress identifies one of the clients sharing a socket.
+	 */
+	private static class TaggedAddress extends SocketAddress {
+		private static final long serialVersionUID = 1L;
+
+		private SocketAddress address;
+		private int token;
+
+		public TaggedAddress (SocketAddress address, int token) {
+			this.address = address;
+			this.token = token;
+		}
+
+		public boolean equals (Object obj) {
+			if (!(obj instanceof TaggedAddress)) return false;
+			TaggedAddress other = (TaggedAddress) obj;
+			return token == other.token && address.equals (other.address);
+		}
+
+		public int hashCode() {
+			return address.hashCode()*31 + token;
+		}
+
+		public String toString() {
+			return address + "#" + token;
 		}
 	}
-}
\ No newline at end of file
+}
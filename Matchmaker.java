@@ -0,0 +1,243 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Class Matchmaker keeps the players waiting for an opponent and pairs
+ * them in batches, once per tick, rather than each with whoever happens to
+ * be waiting when it joins.
+ * <P>
+ * Each tick sorts the queue by rating bucket and then by time joined, an
+ * O(n log n) pass, and pairs neighbours in the same bucket, longest
+ * waiting first. A player left alone in its bucket widens its reach by
+ * one bucket either side for each whole tick it has waited, and is paired
+ * with the next player left alone in a higher bucket if each is within
+ * the other's reach. Every player still alone after the fallback wait is
+ * handed over to play the computer, if there is one.
+ * <P>
+ * A matchmaker is not thread safe; the session manager calls it under its
+ * own lock.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class Matchmaker {
+
+	/**
+	 * Interface Matchmaker.Listener specifies the object told of each
+	 * match a tick makes.
+	 */
+	public static interface Listener {
+		/**
+		 * Report a match.
+		 * @param  a      First player, the longer waiting.
+		 * @param  nameA  First player's name.
+		 * @param  b      Second player, or null to play the computer.
+		 * @param  nameB  Second player's name, or null.
+		 */
+		public void match (ViewProxy a, String nameA,
+						   ViewProxy b, String nameB);
+	}
+
+	// Hidden data members.
+	private static final Comparator<Ticket> ORDER = new Comparator<Ticket>() {
+		public int compare (Ticket x, Ticket y) {
+			if (x.bucket != y.bucket) return x.bucket < y.bucket ? -1 : 1;
+			return Long.compare (x.since, y.since);
+		}
+	};
+
+	private long tickNanos;
+	private long fallbackNanos;
+	private int bucketWidth;
+	private Ticket[] queue = new Ticket [16];
+	private int length;
+	private int cancelled;
+	private HashMap<ViewProxy,Ticket> tickets =
+		new HashMap<ViewProxy,Ticket>();
+
+	// Exported constructors.
+	/**
+	 * Construct a new matchmaker.
+	 *
+	 * @param  tickMillis      Time between ticks, in milliseconds.
+	 * @param  fallbackMillis  Time a player waits before playing the
+	 *                         computer, in milliseconds, or 0 never to.
+	 * @param  bucketWidth     Width of a rating bucket, or 0 for one bucket.
+	 */
+	public Matchmaker (long tickMillis, long fallbackMillis, int bucketWidth) {
+		this.tickNanos = tickMillis*1000000L;
+		this.fallbackNanos = fallbackMillis*1000000L;
+		this.bucketWidth = bucketWidth;
+	}
+
+	// Exported operations.
+	/**
+	 * Add a player to the queue.
+	 *
+	 * @param  proxy    Player's view proxy.
+	 * @param  name     Player's name.
+	 * @param  rating   Player's rating.
+	 * @param  now      Current time, from System.nanoTime().
+	 */
+	public void enqueue (ViewProxy proxy, String name, int rating, long now) {
+		if (tickets.containsKey (proxy)) return;
+		Ticket ticket = new Ticket (proxy, name,
+			bucketWidth > 0 ? Math.floorDiv (rating, bucketWidth) : 0, now);
+		if (length == queue.length) {
+			queue = Arrays.copyOf (queue, 2*length);
+		}
+		queue[length++] = ticket;
+		tickets.put (proxy, ticket);
+		ServerMetrics.get().queued (1);
+	}
+
+	/**
+	 * Take a player off the queue.
+	 *
+	 * @param  proxy    Player's view proxy.
+	 * @return  True if the player was queued, false otherwise.
+	 */
+	public boolean cancel (ViewProxy proxy) {
+		Ticket ticket = tickets.remove (proxy);
+		if (ticket == null) return false;
+		// Dropped from the array on the next tick.
+		ticket.proxy = null;
+		++ cancelled;
+		ServerMetrics.get().queued (-1);
+		return true;
+	}
+
+	/**
+	 * Returns true if a player is queued.
+	 *
+	 * @param  proxy    Player's view proxy.
+	 */
+	public boolean contains (ViewProxy proxy) {
+		return tickets.containsKey (proxy);
+	}
+
+	/**
+	 * Returns the number of players queued.
+	 */
+	public int size() {
+		return length - cancelled;
+	}
+
+	/**
+	 * Returns the time between ticks, in milliseconds.
+	 */
+	public long tickMillis() {
+		return tickNanos/1000000L;
+	}
+
+	/**
+	 * Pair the queued players and report every match.
+	 *
+	 * @param  now       Current time, from System.nanoTime().
+	 * @param  listener  Listener told of each match.
+	 */
+	public void tick (long now, Listener listener) {
+		if (cancelled > 0) compact();
+		Arrays.sort (queue, 0, length, ORDER);
+		// A player alone in its bucket, waiting for the next such player
+		// within reach.
+		Ticket alone = null;
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			Ticket t = queue[i];
+			if (i + 1 < length && queue[i+1].bucket == t.bucket) {
+				match (t, queue[++i], now, listener);
+			} else if (now - t.since < tickNanos) {
+				queue[kept++] = t;
+			} else if (alone != null && t.bucket - alone.bucket <=
+					Math.min (reach (alone, now), reach (t, now))) {
+				if (t.since - alone.since < 0) {
+					match (t, alone, now, listener);
+				} else {
+					match (alone, t, now, listener);
+				}
+				alone = null;
+			} else {
+				// Buckets only rise from here, so the previous player
+				// alone has no one left within reach this tick.
+				if (alone != null) kept = keep (alone, kept, now, listener);
+				alone = t;
+			}
+		}
+		if (alone != null) kept = keep (alone, kept, now, listener);
+		Arrays.fill (queue, kept, length, null);
+		length = kept;
+	}
+
+	// Hidden operations.
+	/**
+	 * Returns how many buckets either side of its own a player waiting
+	 * since the given time may be paired across.
+	 */
+	private long reach (Ticket t, long now) {
+		return (now - t.since)/tickNanos;
+	}
+
+	/**
+	 * Hand a player no one was paired with this tick to the computer if it
+	 * has waited long enough, or keep it queued.
+	 *
+	 * @return  Number of players kept.
+	 */
+	private int keep (Ticket t, int kept, long now, Listener listener) {
+		if (fallbackNanos > 0 && now - t.since >= fallbackNanos) {
+			match (t, null, now, listener);
+			ServerMetrics.get().computerMatch();
+		} else {
+			queue[kept++] = t;
+		}
+		return kept;
+	}
+
+	/**
+	 * Report a match and take its players off the queue.
+	 */
+	private void match (Ticket a, Ticket b, long now, Listener listener) {
+		tickets.remove (a.proxy);
+		ServerMetrics.get().matched (now - a.since);
+		if (b != null) {
+			tickets.remove (b.proxy);
+			ServerMetrics.get().matched (now - b.since);
+		}
+		ServerMetrics.get().queued (b == null ? -1 : -2);
+		listener.match (a.proxy, a.name,
+			b == null ? null : b.proxy, b == null ? null : b.name);
+	}
+
+	/**
+	 * Drop cancelled tickets from the queue.
+	 */
+	private void compact() {
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			if (queue[i].proxy != null) queue[kept++] = queue[i];
+		}
+		Arrays.fill (queue, kept, length, null);
+		length = kept;
+		cancelled = 0;
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Ticket is one player's place in the queue.
+	 */
+	private static class Ticket {
+		public ViewProxy proxy;
+		public String name;
+		public int bucket;
+		public long since;
+
+		public Ticket (ViewProxy proxy, String name, int bucket, long since) {
+			this.proxy = proxy;
+			this.name = name;
+			this.bucket = bucket;
+			this.since = since;
+		}
+	}
+}
@@ -0,0 +1,876 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class MessageCodec encodes and decodes the messages of the Nim network
+ * protocol. Events sent from the server to the client are 'I' (id), 'A'
+ * (name), 'S' (score), 'H' (heap), 'U' (turn), 'W' (win), 'D' (delta),
+ * 'Z' (snapshot) and 'Q' (quit); requests sent from the client to the
+ * server are 'J' (join), 'T' (take), 'N' (new game), 'V' (version check)
+ * and 'Q' (quit).
+ * <P>
+ * Encoders append one message at the buffer's position; the caller clears
+ * the buffer before and flips it after. Messages are self-delimiting, so
+ * a datagram may carry a frame of several messages back to back. Decoders
+ * read messages from a buffer and invoke the matching listener method.
+ * Apart from the String handed to the listener for a name, nothing is
+ * allocated, so callers can reuse one buffer for every message. The wire
+ * format is the one DataOutputStream produced: one byte per field and
+ * names in modified UTF-8 with a two-byte length prefix, except that heap
+ * ids, marker counts, versions and scores, which outgrew a byte, are
+ * unsigned LEB128 varints.
+ * <P>
+ * Many logical clients may share one socket. Each of their datagrams then
+ * starts with a tag, 'X' and a four-byte token naming the client, and the
+ * server tags its replies with the same token.
+ * <P>
+ * Between a NimRouter and its shards, each datagram starts with a route
+ * header instead: 'F', the length of the client's IP address, the address
+ * and the two-byte port. The router puts it in front of what the client
+ * sent, and strips it from what the shard replies. A shard reports how
+ * many of its players are waiting for an opponent to the router as 'L'
+ * and a four-byte count.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class MessageCodec {
+
+	/**
+	 * Largest encoded message, in bytes.
+	 */
+	public static final int MAX_MESSAGE = 128;
+
+	/**
+	 * Largest frame of messages batched into one datagram, in bytes.
+	 */
+	public static final int MAX_FRAME = 512;
+
+	/**
+	 * Largest datagram, in bytes. A frame grows past MAX_FRAME only to fit
+	 * one message that is larger, such as the snapshot of a large board.
+	 */
+	public static final int MAX_DATAGRAM = 1400;
+
+	/**
+	 * Largest encoded board, in bytes, so a snapshot fits in one datagram.
+	 */
+	public static final int MAX_BOARD = 1024;
+
+	/**
+	 * Type byte of a tag.
+	 */
+	public static final byte TAG = 'X';
+
+	/**
+	 * Length of a tag, in bytes.
+	 */
+	public static final int TAG_LENGTH = 5;
+
+	/**
+	 * Type byte of a route header.
+	 */
+	public static final byte ROUTE = 'F';
+
+	/**
+	 * Length of the longest route header, for an IPv6 client, in bytes.
+	 */
+	public static final int MAX_ROUTE = 20;
+
+	/**
+	 * Largest request datagram a server receives, in bytes: a route header,
+	 * a reliable header and a message, which holds any tag and version.
+	 */
+	public static final int MAX_REQUEST =
+		MAX_ROUTE + ReliableChannel.HEADER_LENGTH + MAX_MESSAGE;
+
+	/**
+	 * Type byte of a shard's report of its waiting players.
+	 */
+	public static final byte WAITING = 'L';
+
+	/**
+	 * Length of a waiting report, in bytes.
+	 */
+	public static final int WAITING_LENGTH = 5;
+
+	/**
+	 * Type byte of a shard's notice that it dropped a client, sent behind
+	 * the client's route header and tag.
+	 */
+	public static final byte GONE = 'G';
+
+	// Prevent construction.
+	private MessageCodec() {}
+
+	// Exported operations -- tags.
+
+	/**
+	 * Encode a tag.
+	 * @param  out    Buffer to encode into.
+	 * @param  token  Client token.
+	 */
+	public static void encodeTag (ByteBuffer out, int token) {
+		out.put (TAG);
+		out.putInt (token);
+	}
+
+	/**
+	 * Check whether a datagram starts with a tag.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  True if the datagram is tagged.
+	 */
+	public static boolean isTagged (ByteBuffer in) {
+		return in.remaining() >= TAG_LENGTH && in.get (in.position()) == TAG;
+	}
+
+	/**
+	 * Decode a tag. The caller checks isTagged() first.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  Client token.
+	 */
+	public static int decodeTag (ByteBuffer in) {
+		in.get();
+		return in.getInt();
+	}
+
+	// Exported operations -- routing.
+
+	/**
+	 * Encode a route header.
+	 * @param  out     Buffer to encode into.
+	 * @param  client  Client's mailbox address.
+	 */
+	public static void encodeRoute (ByteBuffer out, InetSocketAddress client) {
+		byte[] ip = client.getAddress().getAddress();
+		out.put (ROUTE);
+		out.put ((byte) ip.length);
+		out.put (ip);
+		out.putShort ((short) client.getPort());
+	}
+
+	/**
+	 * Returns the length of a client's route header, in bytes.
+	 * @param  client  Client's mailbox address.
+	 */
+	public static int routeLength (InetSocketAddress client) {
+		return 4 + client.getAddress().getAddress().length;
+	}
+
+	/**
+	 * Check whether a datagram starts with a route header.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  True if the datagram is routed.
+	 */
+	public static boolean isRouted (ByteBuffer in) {
+		return in.remaining() >= 8 && in.get (in.position()) == ROUTE;
+	}
+
+	/**
+	 * Decode a route header. The caller checks isRouted() first.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  Client's mailbox address.
+	 * @exception  IOException
+	 *     Thrown if the header is truncated or its address malformed.
+	 */
+	public static InetSocketAddress decodeRoute (ByteBuffer in)
+			throws IOException {
+		in.get();
+		int n = in.get();
+		if ((n != 4 && n != 16) || in.remaining() < n + 2) {
+			throw new EOFException();
+		}
+		byte[] ip = new byte [n];
+		in.get (ip);
+		int port = in.getShort() & 0xFFFF;
+		return new InetSocketAddress (InetAddress.getByAddress (ip), port);
+	}
+
+	/**
+	 * Encode a waiting report.
+	 * @param  out    Buffer to encode into.
+	 * @param  count  Players waiting for an opponent.
+	 */
+	public static void encodeWaiting (ByteBuffer out, int count) {
+		out.put (WAITING);
+		out.putInt (count);
+	}
+
+	/**
+	 * Check whether a client's datagram starts with a join request, after
+	 * its tag, reliable header and version check, if any. Nothing is
+	 * consumed.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  True if the datagram is a join.
+	 */
+	public static boolean isJoin (ByteBuffer in) {
+		return requestType (in) == 'J';
+	}
+
+	/**
+	 * Check whether a client's datagram starts with a quit request, after
+	 * its tag, reliable header and version check, if any. Nothing is
+	 * consumed.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  True if the datagram is a quit.
+	 */
+	public static boolean isQuit (ByteBuffer in) {
+		return requestType (in) == 'Q';
+	}
+
+	/**
+	 * Encode a notice that a shard dropped a client, after the client's
+	 * route header and tag.
+	 * @param  out    Buffer to encode into.
+	 */
+	public static void encodeGone (ByteBuffer out) {
+		out.put (GONE);
+	}
+
+	/**
+	 * Check whether a shard's datagram, after its route header, is a
+	 * notice that it dropped the client. Nothing is consumed.
+	 * @param  in     Buffer holding the datagram.
+	 * @return  True if the datagram is a gone notice.
+	 */
+	public static boolean isGone (ByteBuffer in) {
+		int p = in.position();
+		if (in.remaining() == TAG_LENGTH + 1 && in.get (p) == TAG)
+			p += TAG_LENGTH;
+		return in.limit() - p == 1 && in.get (p) == GONE;
+	}
+
+	// Exported operations -- model events.
+
+	/**
+	 * Encode an 'I' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  i      Player id
+	 */
+	public static void encodeId (ByteBuffer out, int i) {
+		out.put ((byte) 'I');
+		out.put ((byte) i);
+	}
+
+	/**
+	 * Encode an 'A' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  i      Player id
+	 * @param  n      Player name
+	 * @exception  UTFDataFormatException
+	 *     Thrown if the name does not fit in the buffer.
+	 */
+	public static void encodeName (ByteBuffer out, int i, String n)
+			throws UTFDataFormatException {
+		out.put ((byte) 'A');
+		out.put ((byte) i);
+		putUTF (out, n);
+	}
+
+	/**
+	 * Encode an 'S' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  i      Player id
+	 * @param  s      Score
+	 */
+	public static void encodeScore (ByteBuffer out, int i, int s) {
+		out.put ((byte) 'S');
+		out.put ((byte) i);
+		out.put ((byte) s);
+	}
+
+	/**
+	 * Encode an 'H' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  h      Heap id
+	 * @param  m      Number of markers
+	 */
+	public static void encodeHeap (ByteBuffer out, int h, int m) {
+		out.put ((byte) 'H');
+		putVarint (out, h);
+		putVarint (out, m);
+	}
+
+	/**
+	 * Encode a 'U' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  i      Player id
+	 */
+	public static void encodeTurn (ByteBuffer out, int i) {
+		out.put ((byte) 'U');
+		out.put ((byte) i);
+	}
+
+	/**
+	 * Encode a 'W' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  i      Player id
+	 */
+	public static void encodeWin (ByteBuffer out, int i) {
+		out.put ((byte) 'W');
+		out.put ((byte) i);
+	}
+
+	/**
+	 * Encode a 'D' message: the new version, how many versions back its
+	 * base is, the number of players, a bitmask of which of the turn and
+	 * each player's score changed (seven bits a byte, the top bit set when
+	 * another byte follows) and their values, then the changed heaps as
+	 * runs of consecutive heaps: the number of runs, and for each run the
+	 * gap since the end of the last run, its length and its markers. A take
+	 * is one run of one heap and a new game one run of every heap, so the
+	 * size follows the number of heaps changed, not the size of the board.
+	 * @param  out    Buffer to encode into.
+	 * @param  base   Version the changes are relative to
+	 * @param  v      Version after the changes
+	 * @param  t      Id of the player whose turn it is, or -1
+	 * @param  scores Player scores, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  heaps  Ids of the heaps that changed, in ascending order
+	 * @param  markers Markers left in each heap that changed
+	 */
+	public static void encodeDelta (ByteBuffer out, int base, int v, int t,
+			int[] scores, int n, int[] heaps, int[] markers) {
+		out.put ((byte) 'D');
+		putVarint (out, v);
+		putVarint (out, v - base);
+		out.put ((byte) scores.length);
+		int fields = 1 + scores.length;
+		int last = t >= 0 ? 0 : -1;
+		for (int p = 0; p < scores.length; p++) {
+			if (scores[p] >= 0) last = p + 1;
+		}
+		int f = 0;
+		do {
+			int bits = 0;
+			for (int k = 0; k < 7 && f < fields; k++, f++) {
+				if ((f == 0 ? t : scores[f-1]) >= 0) bits |= 1 << k;
+			}
+			out.put ((byte) (f <= last ? bits | 0x80 : bits));
+		} while (f <= last);
+		if (t >= 0) putVarint (out, t);
+		for (int p = 0; p < scores.length; p++) {
+			if (scores[p] >= 0) putVarint (out, scores[p]);
+		}
+		putVarint (out, runs (n, heaps));
+		int end = 0;
+		for (int k = 0; k < n; ) {
+			int start = k;
+			while (++ k < n && heaps[k] == heaps[k-1] + 1) {}
+			putVarint (out, heaps[start] - end);
+			putVarint (out, k - start);
+			for (int j = start; j < k; j++) {
+				putVarint (out, markers[j]);
+			}
+			end = heaps[k-1] + 1;
+		}
+	}
+
+	/**
+	 * Returns the largest encoded size of a 'D' message.
+	 * @param  scores Player scores, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  heaps  Ids of the heaps that changed, in ascending order
+	 * @param  markers Markers left in each heap that changed
+	 */
+	public static int deltaSize (int[] scores, int n, int[] heaps,
+			int[] markers) {
+		int size = 12 + (scores.length + 7)/7 + 5 + 5;
+		for (int s : scores) {
+			if (s >= 0) size += varintSize (s);
+		}
+		int end = 0;
+		for (int k = 0; k < n; k++) {
+			if (k == 0 || heaps[k] != heaps[k-1] + 1) {
+				size += varintSize (heaps[k] - end) + 5;
+			}
+			size += varintSize (markers[k]);
+			end = heaps[k] + 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Encode a 'Z' message: the version, the recipient's id, the turn, the
+	 * number of heaps and their markers, then each player's score and name.
+	 * @param  out    Buffer to encode into.
+	 * @param  v      Version
+	 * @param  i      Id of the player the snapshot is for
+	 * @param  t      Id of the player whose turn it is
+	 * @param  heaps  Markers in each heap
+	 * @param  names  Player names, indexed by id - 1
+	 * @param  scores Player scores, indexed by id - 1
+	 * @exception  UTFDataFormatException
+	 *     Thrown if the names do not fit in the buffer.
+	 */
+	public static void encodeSnapshot (ByteBuffer out, int v, int i, int t,
+			int[] heaps, String[] names, int[] scores)
+			throws UTFDataFormatException {
+		out.put ((byte) 'Z');
+		out.putInt (v);
+		out.put ((byte) i);
+		out.put ((byte) t);
+		putVarint (out, heaps.length);
+		for (int h = 0; h < heaps.length; h++) {
+			putVarint (out, heaps[h]);
+		}
+		out.put ((byte) names.length);
+		for (int p = 0; p < names.length; p++) {
+			putVarint (out, scores[p]);
+			putUTF (out, names[p]);
+		}
+	}
+
+	/**
+	 * Returns the largest encoded size of a 'Z' message.
+	 * @param  heaps  Markers in each heap
+	 * @param  names  Player names
+	 */
+	public static int snapshotSize (int[] heaps, String[] names) {
+		int size = 8 + boardSize (heaps);
+		for (String n : names) {
+			size += 7 + 3*n.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the encoded size of a board: the number of heaps and the
+	 * markers in each.
+	 * @param  heaps  Markers in each heap
+	 */
+	public static int boardSize (int[] heaps) {
+		int size = varintSize (heaps.length);
+		for (int m : heaps) {
+			size += varintSize (m);
+		}
+		return size;
+	}
+
+	/**
+	 * Check which version of the model state the next event in a buffer
+	 * brings the client to, without consuming it.
+	 * @param  in     Buffer holding the events.
+	 * @return  The version if the next event is a 'D' or 'Z' message, -1
+	 *          otherwise.
+	 */
+	public static int peekVersion (ByteBuffer in) {
+		int p = in.position();
+		if (in.remaining() < 5) return -1;
+		byte b = in.get (p);
+		if (b == 'Z') return in.getInt (p + 1);
+		if (b != 'D') return -1;
+		return varintAt (in, p + 1);
+	}
+
+	/**
+	 * Check which version the changes in the next event of a buffer are
+	 * relative to, without consuming it.
+	 * @param  in     Buffer holding the events.
+	 * @return  The base version if the next event is a 'D' message, -1
+	 *          otherwise.
+	 */
+	public static int peekBase (ByteBuffer in) {
+		int p = in.position();
+		if (in.remaining() < 3 || in.get (p) != 'D') return -1;
+		int v = varintAt (in, p + 1);
+		if (v < 0) return -1;
+		int back = varintAt (in, skipVarint (in, p + 1));
+		return back < 0 ? -1 : v - back;
+	}
+
+	/**
+	 * Encode a 'Q' message. The same message is used in both directions.
+	 * @param  out    Buffer to encode into.
+	 */
+	public static void encodeQuit (ByteBuffer out) {
+		out.put ((byte) 'Q');
+	}
+
+	/**
+	 * Decode one model event and report it to a model listener.
+	 * @param  in     Buffer holding the message.
+	 * @param  ml     Model listener.
+	 * @return  True if the message was understood, false otherwise.
+	 * @exception  IOException
+	 *     Thrown if the message is truncated or the listener fails.
+	 */
+	public static boolean decodeEvent (ByteBuffer in, ModelListener ml)
+			throws IOException {
+		try {
+			switch (in.get())
+				{
+				case 'I':
+					ml.id( in.get() );
+					return true;
+				case 'A':
+					int id = in.get();
+					ml.name( id, getUTF( in ) );
+					return true;
+				case 'S':
+					ml.score( in.get(), in.get() );
+					return true;
+				case 'H':
+					ml.heap( getVarint( in ), getVarint( in ) );
+					return true;
+				case 'U':
+					ml.turn( in.get() );
+					return true;
+				case 'W':
+					ml.win( in.get() );
+					return true;
+				case 'D':
+					decodeDelta( in, ml );
+					return true;
+				case 'Z':
+					decodeSnapshot( in, ml );
+					return true;
+				case 'Q':
+					ml.quit();
+					return true;
+				default:
+					return false;
+				}
+		} catch (BufferUnderflowException exc) {
+			throw new EOFException();
+		}
+	}
+
+	/**
+	 * Decode every model event in a frame and report them in order to a
+	 * model listener.
+	 * @param  in     Buffer holding the frame.
+	 * @param  ml     Model listener.
+	 * @return  True if the whole frame was understood, false otherwise.
+	 * @exception  IOException
+	 *     Thrown if a message is truncated or the listener fails.
+	 */
+	public static boolean decodeEvents (ByteBuffer in, ModelListener ml)
+			throws IOException {
+		while (in.hasRemaining()) {
+			if (!decodeEvent( in, ml )) return false;
+		}
+		return true;
+	}
+
+	// Exported operations -- view requests.
+
+	/**
+	 * Encode a 'J' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  n      Player name
+	 * @exception  UTFDataFormatException
+	 *     Thrown if the name does not fit in the buffer.
+	 */
+	public static void encodeJoin (ByteBuffer out, String n)
+			throws UTFDataFormatException {
+		out.put ((byte) 'J');
+		putUTF (out, n);
+	}
+
+	/**
+	 * Encode a 'T' message.
+	 * @param  out    Buffer to encode into.
+	 * @param  h      Heap number
+	 * @param  m      Markers number
+	 */
+	public static void encodeTake (ByteBuffer out, int h, int m) {
+		out.put ((byte) 'T');
+		putVarint (out, h);
+		putVarint (out, m);
+	}
+
+	/**
+	 * Encode an 'N' message.
+	 * @param  out    Buffer to encode into.
+	 */
+	public static void encodeNewGame (ByteBuffer out) {
+		out.put ((byte) 'N');
+	}
+
+	/**
+	 * Encode a 'V' request, asking for a snapshot unless the client already
+	 * has the given version.
+	 * @param  out    Buffer to encode into.
+	 * @param  v      Version the client has
+	 */
+	public static void encodeSync (ByteBuffer out, int v) {
+		out.put ((byte) 'V');
+		out.putInt (v);
+	}
+
+	/**
+	 * Decode one view request and report it to a view listener. A 'Q'
+	 * request is not reported; the caller decides what quitting means.
+	 * @param  in     Buffer holding the message.
+	 * @param  proxy  View proxy the request came through.
+	 * @param  vl     View listener.
+	 * @return  The message type byte.
+	 * @exception  IOException
+	 *     Thrown if the message is truncated or the listener fails.
+	 */
+	public static byte decodeRequest
+		(ByteBuffer in, ViewProxy proxy, ViewListener vl)
+			throws IOException {
+		try {
+			byte b = in.get();
+			switch (b)
+				{
+				case 'J':
+					vl.join( proxy, getUTF( in ) );
+					break;
+				case 'T':
+					vl.take( proxy, getVarint( in ), getVarint( in ) );
+					break;
+				case 'N':
+					vl.newGame();
+					break;
+				case 'V':
+					vl.sync( proxy, in.getInt() );
+					break;
+				default:
+					break;
+				}
+			return b;
+		} catch (BufferUnderflowException exc) {
+			throw new EOFException();
+		}
+	}
+
+	// Hidden operations.
+
+	/**
+	 * Returns the type byte of the first request in a client's datagram,
+	 * after its tag, reliable header and version check, if any, or 0 if
+	 * there is none. Nothing is consumed.
+	 */
+	private static byte requestType (ByteBuffer in) {
+		int p = in.position();
+		int limit = in.limit();
+		if (p < limit && in.get (p) == TAG) p += TAG_LENGTH;
+		if (p < limit && in.get (p) == ReliableChannel.RELIABLE)
+			p += ReliableChannel.HEADER_LENGTH;
+		if (p < limit && in.get (p) == 'V') p += 5;
+		return p < limit ? in.get (p) : 0;
+	}
+
+	/**
+	 * Decode the body of a 'Z' message and report it to a model listener.
+	 */
+	private static void decodeSnapshot (ByteBuffer in, ModelListener ml)
+			throws IOException {
+		int v = in.getInt();
+		int i = in.get();
+		int t = in.get();
+		int count = getVarint (in);
+		if (count > in.remaining()) throw new BufferUnderflowException();
+		int[] heaps = new int [count];
+		for (int h = 0; h < heaps.length; h++) {
+			heaps[h] = getVarint (in);
+		}
+		int players = in.get() & 0xFF;
+		String[] names = new String [players];
+		int[] scores = new int [players];
+		for (int p = 0; p < players; p++) {
+			scores[p] = getVarint (in);
+			names[p] = getUTF( in );
+		}
+		ml.snapshot( v, i, t, heaps, names, scores );
+	}
+
+	/**
+	 * Decode the body of a 'D' message and report it to a model listener.
+	 */
+	private static void decodeDelta (ByteBuffer in, ModelListener ml)
+			throws IOException {
+		int v = getVarint (in);
+		int base = v - getVarint (in);
+		int[] scores = new int [in.get() & 0xFF];
+		int mask = in.position();
+		while ((in.get() & 0x80) != 0) {}
+		int maskEnd = in.position();
+		int t = -1;
+		for (int f = 0; f <= scores.length; f++) {
+			int value = mask + f/7 < maskEnd &&
+				(in.get (mask + f/7) & (1 << (f%7))) != 0 ? getVarint (in) : -1;
+			if (f == 0) t = value;
+			else scores[f-1] = value;
+		}
+		int runs = getVarint (in);
+		// Count the heaps first, so the arrays are allocated once.
+		int n = 0;
+		int p = in.position();
+		for (int r = 0; r < runs; r++) {
+			p = skipVarint (in, p);
+			int length = varintAt (in, p);
+			if (length < 0 || length > in.limit() - p)
+				throw new BufferUnderflowException();
+			p = skipVarint (in, p);
+			for (int k = 0; k < length; k++) {
+				p = skipVarint (in, p);
+			}
+			n += length;
+		}
+		int[] heaps = new int [n];
+		int[] markers = new int [n];
+		int end = 0;
+		n = 0;
+		for (int r = 0; r < runs; r++) {
+			int h = end + getVarint (in);
+			int length = getVarint (in);
+			for (int k = 0; k < length; k++, h++, n++) {
+				heaps[n] = h;
+				markers[n] = getVarint (in);
+			}
+			end = h;
+		}
+		ml.delta( base, v, t, scores, n, heaps, markers );
+	}
+
+	/**
+	 * Returns the number of runs of consecutive heaps in a sorted list.
+	 */
+	private static int runs (int n, int[] heaps) {
+		int runs = 0;
+		for (int k = 0; k < n; k++) {
+			if (k == 0 || heaps[k] != heaps[k-1] + 1) ++ runs;
+		}
+		return runs;
+	}
+
+	/**
+	 * Read an unsigned LEB128 varint at an index without moving the
+	 * position; returns -1 if it runs past the limit.
+	 */
+	private static int varintAt (ByteBuffer in, int p) {
+		int value = 0;
+		for (int shift = 0; shift < 35 && p < in.limit(); shift += 7) {
+			int b = in.get (p++);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index after the varint at an index.
+	 */
+	private static int skipVarint (ByteBuffer in, int p) {
+		do {
+			if (p >= in.limit()) throw new BufferUnderflowException();
+		} while ((in.get (p++) & 0x80) != 0);
+		return p;
+	}
+
+	/**
+	 * Write an unsigned LEB128 varint.
+	 * @param  out    Buffer to encode into.
+	 * @param  value  Value.
+	 */
+	public static void putVarint (ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put ((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put ((byte) value);
+	}
+
+	/**
+	 * Read an unsigned LEB128 varint.
+	 * @param  in     Buffer to decode from.
+	 * @exception  BufferUnderflowException
+	 *     Thrown if the varint runs past the limit.
+	 */
+	public static int getVarint (ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new BufferUnderflowException();
+	}
+
+	/**
+	 * Returns the encoded size of an unsigned LEB128 varint.
+	 */
+	private static int varintSize (int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			++ size;
+		}
+		return size;
+	}
+
+	/**
+	 * Write a string in modified UTF-8, as DataOutputStream.writeUTF does.
+	 */
+	private static void putUTF (ByteBuffer out, String s)
+			throws UTFDataFormatException {
+		int len = s.length();
+		int utflen = 0;
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt (i);
+			if (c >= 0x0001 && c <= 0x007F) utflen += 1;
+			else if (c <= 0x07FF) utflen += 2;
+			else utflen += 3;
+		}
+		if (utflen > 65535 || utflen + 2 > out.remaining())
+			throw new UTFDataFormatException ("Name too long");
+		out.putShort ((short) utflen);
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt (i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				out.put ((byte) c);
+			} else if (c <= 0x07FF) {
+				out.put ((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				out.put ((byte) (0x80 | (c & 0x3F)));
+			} else {
+				out.put ((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				out.put ((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put ((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Read a string in modified UTF-8, as DataInputStream.readUTF does.
+	 */
+	private static String getUTF (ByteBuffer in)
+			throws UTFDataFormatException {
+		int utflen = in.getShort() & 0xFFFF;
+		if (utflen > in.remaining()) throw new BufferUnderflowException();
+		char[] chars = new char [utflen];
+		int count = 0;
+		int end = in.position() + utflen;
+		while (in.position() < end) {
+			int c = in.get() & 0xFF;
+			if (c < 0x80) {
+				chars[count++] = (char) c;
+			} else if ((c & 0xE0) == 0xC0) {
+				int c2 = in.get() & 0xFF;
+				if ((c2 & 0xC0) != 0x80)
+					throw new UTFDataFormatException ("Malformed name");
+				chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+			} else if ((c & 0xF0) == 0xE0) {
+				int c2 = in.get() & 0xFF;
+				int c3 = in.get() & 0xFF;
+				if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80)
+					throw new UTFDataFormatException ("Malformed name");
+				chars[count++] = (char) (((c & 0x0F) << 12) |
+					((c2 & 0x3F) << 6) | (c3 & 0x3F));
+			} else {
+				throw new UTFDataFormatException ("Malformed name");
+			}
+		}
+		if (in.position() != end)
+			throw new UTFDataFormatException ("Malformed name");
+		return new String (chars, 0, count);
+	}
+}
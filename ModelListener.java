@@ -75,4 +75,51 @@ public interface ModelListener  {
 	 */
 	public void quit() throws IOException;
 	
+	/**
+	 * Report the fields of the model's state that changed after a version
+	 * the listener has, bringing it to a new version. Fields are absolute
+	 * values; an unchanged turn or score is -1, and only the heaps that
+	 * changed are listed. The arrays are only valid during the call.
+	 * @param  base   Version the changes are relative to
+	 * @param  v      Version after the changes
+	 * @param  t      Id of the player whose turn it is, or -1
+	 * @param  scores Player scores, indexed by id - 1, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  heaps  Ids of the heaps that changed, in ascending order
+	 * @param  markers Number of markers left in each heap that changed
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void delta(int base, int v, int t, int[] scores,
+					  int n, int[] heaps, int[] markers) throws IOException;
+	
+	/**
+	 * Report the whole state of the model at once. A snapshot replaces
+	 * whatever the listener knew, so receiving one twice does no harm.
+	 * Arrays of player data are indexed by player id - 1; a seat nobody
+	 * has taken yet has an empty name.
+	 * @param  v      Version
+	 * @param  i      Id of the player the snapshot is for
+	 * @param  t      Id of the player whose turn it is, or 0 if the game has
+	 *                not started
+	 * @param  heaps  Number of markers left in each heap
+	 * @param  names  Player names
+	 * @param  scores Player scores
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void snapshot(int v, int i, int t, int[] heaps, String[] names,
+						 int[] scores) throws IOException;
+	
+	/**
+	 * Deliver the events reported so far. Called by the model at the end of
+	 * each operation so a listener may batch the events of one operation.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void flush() throws IOException;
+	
 }
\ No newline at end of file
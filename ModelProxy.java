@@ -1,16 +1,27 @@
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Class ModelProxy provides the network proxy for the model object in the
  * Nim game. The model proxy resides in the client program and
  * communicates with the server program.
+ * <P>
+ * A model proxy either owns its socket and reads it on its own reader
+ * thread, or is one of many model proxies sharing a socket through a
+ * ClientMux, which reads the socket and hands each proxy its datagrams.
+ * <P>
+ * The proxy remembers the version of the session state the server last
+ * reported, and acknowledges it at the front of its next request, so the
+ * server's deltas carry only what changed since. A delta older than the
+ * proxy's version is dropped; a delta whose base is newer shows an update
+ * was lost, and the proxy asks the server to bring it up to date. With a
+ * sync interval set, the proxy also sends its version periodically.
  *
  * @author  Martin Suarez
  * @version 11/02/2015
@@ -22,6 +33,34 @@ public class ModelProxy implements ViewListener {
 	private DatagramSocket mailbox;
 	private SocketAddress destination;
 	private ModelListener modelListener;
+	private ByteBuffer buffer = ByteBuffer.allocate
+		(MessageCodec.MAX_MESSAGE + ReliableChannel.HEADER_LENGTH);
+	private DatagramPacket packet;
+	private ClientMux mux;
+	private int token;
+	private ReliableChannel reliable;
+	private ByteBuffer ackBuffer;
+	private DatagramPacket ackPacket;
+	private volatile int version = -1;
+	private int acked = -1;
+	private TimerTask syncTask;
+	
+	private static Timer syncTimer;
+	
+	private static final ModelListener IGNORE = new ModelListener() {
+		public void id( int i ) {}
+		public void name( int i, String n ) {}
+		public void score( int i, int s ) {}
+		public void heap( int h, int m ) {}
+		public void turn( int i ) {}
+		public void win( int i ) {}
+		public void delta( int base, int v, int t, int[] scores,
+						   int n, int[] heaps, int[] markers ) {}
+		public void snapshot( int v, int i, int t, int[] heaps,
+							  String[] names, int[] scores ) {}
+		public void quit() {}
+		public void flush() {}
+	};
 	
 	// Exported constructors.
 	
@@ -38,6 +77,22 @@ public class ModelProxy implements ViewListener {
 		  SocketAddress destination) throws IOException {
 		this.mailbox = mailbox;
 		this.destination = destination;
+		this.packet = new DatagramPacket (buffer.array(), 0, destination);
+	}
+	
+	/**
+	 * Construct a new model proxy that shares a client mux's socket. Use
+	 * ClientMux.newProxy() rather than calling this directly.
+	 *
+	 * @param  mux    Client mux.
+	 * @param  token  Token tagging this proxy's datagrams.
+	 */
+	public ModelProxy( ClientMux mux, int token ) {
+		this.mux = mux;
+		this.token = token;
+		this.mailbox = mux.getMailbox();
+		this.destination = mux.getDestination();
+		this.packet = new DatagramPacket (buffer.array(), 0, destination);
 	}
 	
 	// Exported operations
@@ -48,8 +103,125 @@ public class ModelProxy implements ViewListener {
 	 * @param  modelListener  Model listener.
 	 */
 	public void setModelListener( ModelListener modelListener ) {
+		setModelListener( modelListener, null );
+	}
+	
+	/**
+	 * Set the model listener object for this model proxy, creating its
+	 * reader thread with the given factory. On a runtime with virtual
+	 * threads, a virtual thread factory lets one process host many proxies
+	 * that own their sockets. A proxy sharing a client mux's socket has no
+	 * reader thread of its own.
+	 *
+	 * @param  modelListener  Model listener.
+	 * @param  factory        Thread factory, or null for a platform thread.
+	 */
+	public void setModelListener( ModelListener modelListener,
+								  ThreadFactory factory ) {
 		this.modelListener = modelListener;
-		new ReaderThread() . start();
+		if (mux != null) return;
+		if (factory == null) {
+			new Thread( new Reader() ) . start();
+		} else {
+			factory.newThread( new Reader() ) . start();
+		}
+	}
+	
+	/**
+	 * Deliver requests reliably from now on: number them, resend them until
+	 * the server acknowledges them, and acknowledge the server's replies,
+	 * which the server then numbers and resends in turn. Call before the
+	 * first request.
+	 */
+	public synchronized void setReliable() {
+		if (reliable != null) return;
+		reliable = new ReliableChannel( new ReliableChannel.Sender() {
+			public void resend( ByteBuffer datagram ) throws IOException {
+				mailbox.send( new DatagramPacket
+					(datagram.array(), datagram.arrayOffset() + datagram.position(),
+					 datagram.remaining(), destination) );
+			}
+			public void sendAck() throws IOException {
+				synchronized (ModelProxy.this) {
+					ackBuffer.clear();
+					if (mux != null) {
+						MessageCodec.encodeTag( ackBuffer, token );
+					}
+					reliable.stampAck( ackBuffer );
+					ackBuffer.flip();
+					ackPacket.setLength( ackBuffer.limit() );
+					mailbox.send( ackPacket );
+				}
+			}
+		});
+		ackBuffer = ByteBuffer.allocate
+			(MessageCodec.TAG_LENGTH + ReliableChannel.HEADER_LENGTH);
+		ackPacket = new DatagramPacket (ackBuffer.array(), 0, destination);
+	}
+	
+	/**
+	 * Check the client's version with the server every given interval, so a
+	 * client that missed an update gets a snapshot without asking.
+	 *
+	 * @param  millis  Interval in milliseconds, or 0 to stop checking.
+	 */
+	public synchronized void setSyncInterval( long millis ) {
+		if (syncTask != null) {
+			syncTask.cancel();
+			syncTask = null;
+		}
+		if (millis <= 0) return;
+		syncTask = new TimerTask() {
+			public void run() {
+				int v = version;
+				if (v < 0) return;
+				try {
+					sync( null, v );
+				} catch (IOException exc) {
+					cancel();
+				}
+			}
+		};
+		synchronized (ModelProxy.class) {
+			if (syncTimer == null) {
+				syncTimer = new Timer( "Nim-sync", true );
+			}
+		}
+		syncTimer.schedule( syncTask, millis, millis );
+	}
+	
+	/**
+	 * Returns the version of the session state last reported by the server,
+	 * or -1 if none has been.
+	 */
+	public int getVersion() {
+		return version;
+	}
+	
+	/**
+	 * Process a received frame of model events.
+	 *
+	 * @param  frame  Buffer holding the frame.
+	 * @return  True if the whole frame was understood, false otherwise.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public boolean process( ByteBuffer frame ) throws IOException {
+		ReliableChannel channel = reliable;
+		if (channel == null || !frame.hasRemaining() ||
+				frame.get( frame.position() ) != ReliableChannel.RELIABLE)
+			return decode( frame );
+		if (frame.remaining() < ReliableChannel.HEADER_LENGTH)
+			return false;
+		boolean ok = true;
+		if (channel.accept( frame ))
+			ok = decode( frame );
+		ByteBuffer held;
+		while ((held = channel.nextHeld()) != null) {
+			ok &= decode( held );
+		}
+		return ok;
 	}
 	
 	/**
@@ -60,35 +232,28 @@ public class ModelProxy implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void join(ViewProxy proxy, String n) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream ( baos );
-		out.writeByte( 'J' );
-		out.writeUTF( n );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket (payload, payload.length, destination));
+	public synchronized void join(ViewProxy proxy, String n) throws IOException {
+		begin( true );
+		MessageCodec.encodeJoin( buffer, n );
+		send();
 	}
 	
 	/**
 	 * Specify number of 
 	 * markers taken from heap h.
 	 *
+	 * @param  proxy    Reference to view proxy object.
 	 * @param  h    Heap number
 	 * @param  m  	Markers number
 	 *
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void take(int h, int m) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'T' );
-		out.writeByte( h );
-		out.writeByte( m );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket (payload, payload.length, destination));
+	public synchronized void take(ViewProxy proxy, int h, int m)
+			throws IOException {
+		begin( true );
+		MessageCodec.encodeTake( buffer, h, m );
+		send();
 	}
 	
 	/**
@@ -97,13 +262,26 @@ public class ModelProxy implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void newGame() throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'N' );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket (payload, payload.length, destination));
+	public synchronized void newGame() throws IOException {
+		begin( true );
+		MessageCodec.encodeNewGame( buffer );
+		send();
+	}
+	
+	/**
+	 * Check the client's version with the server, which answers with a
+	 * delta or a snapshot if the client is out of date.
+	 *
+	 * @param  v  Version the client has, or -1 to always get a snapshot.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public synchronized void sync(ViewProxy proxy, int v) throws IOException {
+		begin( false );
+		MessageCodec.encodeSync( buffer, v );
+		acked = v;
+		send();
 	}
 	
 	/**
@@ -112,72 +290,108 @@ public class ModelProxy implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void quit() throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'Q' );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket (payload, payload.length, destination));
+	public synchronized void quit() throws IOException {
+		setSyncInterval( 0 );
+		begin( false );
+		MessageCodec.encodeQuit( buffer );
+		send();
+	}
+	
+	// Hidden operations
+	
+	/**
+	 * Decode the events of a frame, noting the version they bring the
+	 * client to.
+	 *
+	 * @param  frame  Buffer holding the frame.
+	 * @return  True if the whole frame was understood, false otherwise.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private boolean decode( ByteBuffer frame ) throws IOException {
+		boolean gap = false;
+		while (frame.hasRemaining()) {
+			byte type = frame.get( frame.position() );
+			int v = MessageCodec.peekVersion( frame );
+			int base = MessageCodec.peekBase( frame );
+			ModelListener ml = modelListener;
+			if (base >= 0 && version >= 0 && v <= version) {
+				// Overtaken by a newer delta.
+				ml = IGNORE;
+			}
+			if (!MessageCodec.decodeEvent( frame, ml ))
+				return false;
+			if (ml == IGNORE) {
+			} else if (type == 'Q') {
+				version = -1;
+			} else if (base >= 0 && (version < 0 || base > version)) {
+				gap = true;
+			} else if (v >= 0) {
+				version = v;
+			}
+		}
+		if (gap) sync( null, version );
+		return true;
+	}
+	
+	/**
+	 * Empty the buffer and, if sharing a socket, tag the new message. Leave
+	 * room for the reliable header, if any.
+	 *
+	 * @param  ack  True to start with the client's version if the server
+	 *              has not been told it yet.
+	 */
+	private void begin( boolean ack ) {
+		buffer.clear();
+		if (mux != null) {
+			MessageCodec.encodeTag( buffer, token );
+		}
+		if (reliable != null) {
+			buffer.position( buffer.position() + ReliableChannel.HEADER_LENGTH );
+		}
+		int v = version;
+		if (ack && v >= 0 && v != acked) {
+			MessageCodec.encodeSync( buffer, v );
+			acked = v;
+		}
+	}
+	
+	/**
+	 * Send the message encoded in the buffer to the server.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void send() throws IOException {
+		buffer.flip();
+		if (reliable != null) {
+			reliable.stamp( buffer, mux != null ? MessageCodec.TAG_LENGTH : 0 );
+		}
+		packet.setLength( buffer.limit() );
+		mailbox.send( packet );
 	}
 	
 	// Hidden heleper classes
 	
 	/**
-	 * Class ReaderThread receives messages from the network, decodes them, and
+	 * Class Reader receives messages from the network, decodes them, and
 	 * invokes the proper methods to process them.
 	 */
-	private class ReaderThread extends Thread {
+	private class Reader implements Runnable {
 		public void run() {
-			byte[] payload = new byte[ 128 ];
+			byte[] payload = new byte[ MessageCodec.MAX_DATAGRAM ];
+			DatagramPacket packet =
+				new DatagramPacket ( payload, payload.length );
+			ByteBuffer message = ByteBuffer.wrap( payload );
 			try {
 				for( ;; ) {
-					DatagramPacket packet =
-						new DatagramPacket ( payload, payload.length );
+					packet.setLength( payload.length );
 					mailbox.receive (packet);
-					DataInputStream in = 
-						new DataInputStream
-							( new ByteArrayInputStream
-								(payload, 0, packet.getLength()));
-					int id, s, h, m;
-					String name;
-					byte b = in.readByte();
-					switch( b )
-						{
-						case 'I':
-							id = in.readByte();
-							modelListener.id( id );
-							break;
-						case 'A':
-							id = in.readByte();
-							name = in.readUTF();
-							modelListener.name( id, name );
-							break;
-						case 'S':
-							id = in.readByte();
-							s = in.readByte();
-							modelListener.score( id, s );
-							break;
-						case 'H':
-							h = in.readByte();
-							m = in.readByte();
-							modelListener.heap( h, m );
-							break;
-						case 'U':
-							id = in.readByte();
-							modelListener.turn( id );
-							break;
-						case 'W':
-							id = in.readByte();
-							modelListener.win( id );
-							break;
-						case 'Q':
-							modelListener.quit();
-							break;
-						default:
-							System.err.println ("Bad message");
-							break;
-						}
+					message.clear();
+					message.limit( packet.getLength() );
+					if (!process( message ))
+						System.err.println ("Bad message");
 				}
 			} catch (IOException exc) { }
 			finally {
@@ -185,4 +399,4 @@ public class ModelProxy implements ViewListener {
 			}
 		}
 	}
-}
\ No newline at end of file
+}
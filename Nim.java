@@ -35,6 +35,8 @@ public class Nim {
 					new ModelProxy( 
 						mailbox,
 						new InetSocketAddress(serverhost, serverport));
+				if (Boolean.getBoolean( "nim.reliable" )) proxy.setReliable();
+				proxy.setSyncInterval( Long.getLong( "nim.syncInterval", 0 ) );
 				view.setViewListener( proxy );
 				proxy.setModelListener( view );
 				
@@ -0,0 +1,1131 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * NimBenchmark measures the hot paths of the Nim network game and prints
+ * the results as a JSON array, one object per measurement, so runs of
+ * different versions can be diffed.
+ * Usage: java NimBenchmark [<I>suite</I> ...]
+ * <P>
+ * The codec, model, join, gc and match measurements are JMH benchmarks in
+ * the <TT>jmh</TT> module of the Maven build, which warms up, forks and
+ * reports error bounds properly; use those to compare versions. This
+ * class remains as a smoke runner needing nothing but the JDK, and for
+ * the suites that start servers and clients (loopback, lossy, router,
+ * reuseport) or measure a whole run rather than one operation.
+ * <P>
+ * Suites:
+ * <UL>
+ * <LI><TT>codec</TT> -- encode and decode of events and requests.
+ * <LI><TT>model</TT> -- NimModel.take and newGame with stub listeners, on
+ *     each of the boards in <TT>nim.bench.boards</TT> (board specs as for
+ *     <TT>nim.board</TT>, separated by semicolons, default
+ *     3,4,5;100*100;1000*100), the bytes a take sends the opponent, and
+ *     the cost of dropping a take made out of turn.
+ * <LI><TT>metrics</TT> -- the cost of counting an event and of timing an
+ *     operation into a latency histogram, which the server pays per
+ *     datagram and per model operation.
+ * <LI><TT>join</TT> -- SessionManager.join and prepareQuit with a given
+ *     number of live sessions, and of players queued for matchmaking
+ *     (<TT>nim.bench.sessions</TT>, a comma separated list, default
+ *     10,1000,100000,1000000). A million sessions want a heap of about
+ *     1 GiB.
+ * <LI><TT>memory</TT> -- heap bytes per live session, for sessions of two
+ *     players and of a player against the computer, each player with its
+ *     own client address, at <TT>nim.bench.memory</TT> sessions (a comma
+ *     separated list, default 100000).
+ * <LI><TT>gc</TT> -- garbage collection with <TT>nim.bench.gc</TT> live
+ *     sessions (a comma separated list, default 1000000), their state in
+ *     a session table on the heap and off it: heap and table bytes per
+ *     session, the pause of a full collection, and the mean young
+ *     collection pause while random sessions take markers and each take
+ *     leaves a datagram's worth of garbage. Ten million sessions want
+ *     about 3 GiB of heap, or of direct memory off the heap.
+ * <LI><TT>match</TT> -- one matchmaker tick pairing a queue of
+ *     <TT>nim.bench.queue</TT> waiting players (a comma separated list,
+ *     default 1000,100000) with random ratings and join times.
+ * <LI><TT>profile</TT> -- looking up a player's rating, as a join does,
+ *     and recording a game, as a win does, among <TT>nim.bench.profiles</TT>
+ *     players (a comma separated list, default 1000,1000000) in a
+ *     temporary profile file.
+ * <LI><TT>log</TT> -- appending an event to the event log, and events/sec
+ *     committed to disk by 1 and by <TT>nim.bench.workers</TT> appending
+ *     threads for <TT>nim.bench.seconds</TT> seconds, in a temporary
+ *     directory or <TT>nim.bench.logdir</TT>.
+ * <LI><TT>recovery</TT> -- recovering sessions against the computer from
+ *     an event log (<TT>nim.bench.recover</TT> sessions, a comma separated
+ *     list, default 100000,1000000), half from a checkpoint and half from
+ *     their events: the time to replay the log on <TT>nim.bench.workers</TT>
+ *     threads, and the time to restore the sessions and send each player
+ *     a snapshot. A million sessions want a heap of about 2 GiB.
+ * <LI><TT>computer</TT> -- a computer player choosing a move on each of
+ *     the boards in <TT>nim.bench.boards</TT>, and moves/sec of that
+ *     many games (<TT>nim.bench.games</TT>, a comma separated list,
+ *     default 1000,10000) of random players against computer players on
+ *     a session executor of <TT>nim.bench.workers</TT> threads (default
+ *     the number of processors), for <TT>nim.bench.seconds</TT> seconds.
+ * <LI><TT>loopback</TT> -- an in-process NimServer on the loopback
+ *     interface played by simulated clients (<TT>nim.bench.pairs</TT>
+ *     client pairs, default 8, for <TT>nim.bench.seconds</TT> seconds,
+ *     default 5, with <TT>nim.bench.workers</TT> channel workers, default
+ *     0 for the single-socket server), reporting moves/sec and move
+ *     latency percentiles.
+ * <LI><TT>lossy</TT> -- as <TT>loopback</TT>, but the clients use
+ *     reliable delivery over sockets that drop a fraction of datagrams in
+ *     each direction (<TT>nim.bench.loss</TT>, a comma separated list,
+ *     default 0.01,0.05,0.1).
+ * <LI><TT>reuseport</TT> -- as <TT>loopback</TT>, against a
+ *     ReusePortServer reading <TT>nim.bench.sockets</TT> sockets bound to
+ *     one port with SO_REUSEPORT (a comma separated list, default 1,2,4),
+ *     also reporting datagrams/sec received by the server.
+ * <LI><TT>router</TT> -- as <TT>loopback</TT>, but through an in-process
+ *     NimRouter in front of <TT>nim.bench.shards</TT> single-socket shards
+ *     (a comma separated list, default 1,2,4), also reporting the joins
+ *     redirected to another shard to meet a waiting player and the
+ *     largest share of the players on any one shard.
+ * </UL>
+ * With no suite given, all suites run.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class NimBenchmark {
+
+	// Hidden data members.
+	private static final long WARMUP_NANOS = 1000000000L;
+	private static final long MEASURE_NANOS = 2000000000L;
+
+	private static List<String> results = new ArrayList<String>();
+
+	/**
+	 * Main program.
+	 */
+	public static void main (String[] args) throws Exception {
+		List<String> suites = Arrays.asList (args);
+		boolean all = suites.isEmpty();
+		if (all || suites.contains ("codec")) codec();
+		if (all || suites.contains ("model")) model();
+		if (all || suites.contains ("metrics")) metrics();
+		if (all || suites.contains ("join")) join();
+		if (all || suites.contains ("memory")) memory();
+		if (all || suites.contains ("gc")) gc();
+		if (all || suites.contains ("match")) match();
+		if (all || suites.contains ("profile")) profile();
+		if (all || suites.contains ("log")) log();
+		if (all || suites.contains ("recovery")) recovery();
+		if (all || suites.contains ("computer")) computer();
+		if (all || suites.contains ("loopback")) loopback();
+		if (all || suites.contains ("lossy")) lossy();
+		if (all || suites.contains ("reuseport")) reusePort();
+		if (all || suites.contains ("router")) router();
+		StringBuilder json = new StringBuilder ("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			json.append ("  ").append (results.get (i));
+			json.append (i < results.size() - 1 ? ",\n" : "\n");
+		}
+		json.append ("]");
+		System.out.println (json);
+	}
+
+	// Hidden operations -- suites.
+
+	/**
+	 * Benchmark the message codec.
+	 */
+	private static void codec() throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate (MessageCodec.MAX_FRAME);
+		final ModelListener ml = new StubListener();
+		final ViewListener vl = new StubViewListener();
+		measure ("codec.heap", "", new Op() {
+			public void run (long i) throws IOException {
+				buffer.clear();
+				MessageCodec.encodeHeap (buffer, (int) i & 3, 5);
+				buffer.flip();
+				MessageCodec.decodeEvents (buffer, ml);
+			}
+		});
+		measure ("codec.name", "", new Op() {
+			public void run (long i) throws IOException {
+				buffer.clear();
+				MessageCodec.encodeName (buffer, 1, "Player");
+				buffer.flip();
+				MessageCodec.decodeEvents (buffer, ml);
+			}
+		});
+		final int[] heaps = new int[] { 3, 4, 5 };
+		final String[] names = new String[] { "Player", "Opponent" };
+		final int[] scores = new int[] { 2, 1 };
+		measure ("codec.snapshot", "", new Op() {
+			public void run (long i) throws IOException {
+				buffer.clear();
+				MessageCodec.encodeSnapshot
+					(buffer, (int) i, 1, 2, heaps, names, scores);
+				buffer.flip();
+				MessageCodec.decodeEvents (buffer, ml);
+			}
+		});
+		final int[] unchanged = new int[] { -1, -1 };
+		final int[] taken = new int[] { 1 };
+		final int[] left = new int[] { 2 };
+		final int[] ids = new int[] { 0, 1, 2 };
+		measure ("codec.delta", "", new Op() {
+			public void run (long i) throws IOException {
+				buffer.clear();
+				MessageCodec.encodeDelta
+					(buffer, (int) i, (int) i + 1, 2, unchanged, 1, taken, left);
+				buffer.flip();
+				MessageCodec.decodeEvents (buffer, ml);
+			}
+		});
+		buffer.clear();
+		MessageCodec.encodeDelta (buffer, 1, 2, 2, unchanged, 1, taken, left);
+		result ("codec.delta.take", "", "ss", buffer.position(), "bytes");
+		buffer.clear();
+		MessageCodec.encodeDelta (buffer, 1, 2, 1, unchanged, 3, ids, heaps);
+		result ("codec.delta.newGame", "", "ss", buffer.position(), "bytes");
+		measure ("codec.take", "", new Op() {
+			public void run (long i) throws IOException {
+				buffer.clear();
+				MessageCodec.encodeTake (buffer, (int) i & 3, 1);
+				buffer.flip();
+				MessageCodec.decodeRequest (buffer, null, vl);
+			}
+		});
+	}
+
+	/**
+	 * Benchmark the model with listeners that discard every event, on each
+	 * of the boards in <TT>nim.bench.boards</TT>. Each operation is one take
+	 * of a single marker by alternate players, each acknowledging its
+	 * version first as a client does, so a game is as many takes as the
+	 * board has markers; a new game starts when the last marker is taken.
+	 * Also report the bytes of the delta a take sends the other player.
+	 */
+	private static void model() throws IOException {
+		String boards = System.getProperty
+			("nim.bench.boards", "3,4,5;100*100;1000*100");
+		for (String spec : boards.split (";")) {
+			final int[] board = NimModel.parseBoard (spec.trim());
+			final NimModel model = new NimModel (board);
+			final SinkProxy[] players =
+				new SinkProxy[] { new SinkProxy(), new SinkProxy() };
+			model.addPlayer (players[0], true, "one");
+			model.addPlayer (players[1], false, "two");
+			final int[] left = board.clone();
+			// The next heap with markers, and whose turn it is.
+			final int[] at = new int [2];
+			Op take = new Op() {
+				public void run (long i) throws IOException {
+					int h = at[0];
+					while (left[h] == 0) {
+						if (++ h == left.length) {
+							model.newGame();
+							System.arraycopy (board, 0, left, 0, board.length);
+							h = 0;
+							at[1] = 0;
+						}
+					}
+					at[0] = h;
+					left[h] --;
+					SinkProxy mover = players[at[1]];
+					at[1] ^= 1;
+					model.sync (mover, mover.version);
+					model.take (mover, h, 1);
+				}
+			};
+			String params = "\"heaps\":" + board.length;
+			measure ("model.take", params, take);
+			take.run (0);
+			SinkProxy waiting = players[at[1] ^ 1];
+			waiting.bytes = 0;
+			take.run (0);
+			result ("model.take.bytes", params, "ss", waiting.bytes, "bytes");
+			measure ("model.take.rejected", params, new Op() {
+				public void run (long i) throws IOException {
+					model.take (players[at[1] ^ 1], at[0], 1);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Benchmark recording server metrics.
+	 */
+	private static void metrics() throws IOException {
+		final ServerMetrics metrics = ServerMetrics.get();
+		measure ("metrics.counter", "", new Op() {
+			public void run (long i) {
+				metrics.datagramIn();
+			}
+		});
+		measure ("metrics.latency", "", new Op() {
+			public void run (long i) {
+				long start = System.nanoTime();
+				metrics.take (System.nanoTime() - start);
+			}
+		});
+	}
+
+	/**
+	 * Benchmark joining at several session counts, against live sessions
+	 * and against players queued for matchmaking. Each operation is one
+	 * join. Against live sessions, every second join fills a new session,
+	 * which is then quit; against queued players, every second join is
+	 * followed by both new players quitting the queue, so the counts hold
+	 * steady. No tick runs, so the queue is never drained.
+	 */
+	private static void join() throws IOException {
+		String counts = System.getProperty
+			("nim.bench.sessions", "10,1000,100000,1000000");
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking (false);
+		SocketAddress sink = new InetSocketAddress ("127.0.0.1", 9);
+		for (String count : counts.split (",")) {
+			int sessions = Integer.parseInt (count.trim());
+			for (final boolean waiting : new boolean[] { false, true }) {
+				final SessionManager manager = new SessionManager();
+				if (waiting) manager.setMatchmaking (3600000, 0, 0);
+				int players = waiting ? sessions : 2*sessions;
+				for (int i = 0; i < players; i++) {
+					manager.join (new ViewProxy (channel, sink), "p");
+				}
+				if (waiting ? manager.waitingCount() != sessions :
+						manager.sessionCount() != sessions) {
+					System.err.println ("Built " + (waiting ?
+						manager.waitingCount() : manager.sessionCount()) +
+						" of " + sessions + " sessions");
+				}
+				final ViewProxy[] pair = new ViewProxy [2];
+				final DatagramChannel ch = channel;
+				final SocketAddress to = sink;
+				measure ("session.join", "\"sessions\":" + sessions +
+					",\"against\":\"" + (waiting ? "queued" : "live") + "\"",
+					new Op() {
+					public void run (long i) throws IOException {
+						int k = (int) (i & 1);
+						pair[k] = new ViewProxy (ch, to);
+						manager.join (pair[k], "p");
+						if (k == 0) return;
+						manager.prepareQuit (pair[0]);
+						if (waiting) manager.prepareQuit (pair[1]);
+					}
+				});
+			}
+		}
+		channel.close();
+	}
+
+	/**
+	 * Measure the heap each live session takes: its model, its players'
+	 * proxies and client addresses, and the session manager's entries.
+	 */
+	private static void memory() throws IOException {
+		String counts = System.getProperty ("nim.bench.memory", "100000");
+		DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking (false);
+		for (String count : counts.split (",")) {
+			int sessions = Integer.parseInt (count.trim());
+			for (boolean computer : new boolean[] { false, true }) {
+				long before = heapUsed();
+				SessionManager manager = new SessionManager();
+				if (computer) manager.setComputerDifficulty (1.0);
+				int port = 0;
+				for (int i = 0; i < sessions; i++) {
+					for (int p = computer ? 1 : 0; p < 2; p++, port++) {
+						manager.join (new ViewProxy (channel,
+							new InetSocketAddress ("127.0.0.1",
+								1024 + port % 60000)), "player" + port);
+					}
+				}
+				long used = heapUsed() - before;
+				result ("memory.session", "\"sessions\":" + sessions +
+					",\"opponent\":\"" + (computer ? "computer" : "player") +
+					"\"", "ss", (double) used/sessions, "bytes/session");
+				if (manager.sessionCount() != sessions) {
+					System.err.println ("Built " + manager.sessionCount() +
+						" of " + sessions + " sessions");
+				}
+			}
+		}
+		channel.close();
+	}
+
+	/**
+	 * Benchmark garbage collection with many live sessions, their state on
+	 * the heap and off it. Only the sessions' models are built, so what is
+	 * measured is the state the session table holds.
+	 */
+	private static void gc() throws IOException {
+		String counts = System.getProperty ("nim.bench.gc", "1000000");
+		int[] board = NimModel.DEFAULT_BOARD;
+		ModelListener[] players =
+			new ModelListener[] { new StubListener(), new StubListener() };
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (String count : counts.split (",")) {
+			int sessions = Integer.parseInt (count.trim());
+			for (boolean direct : new boolean[] { false, true }) {
+				String params = "\"sessions\":" + sessions +
+					",\"store\":\"" + (direct ? "offheap" : "heap") + "\"";
+				long before = heapUsed();
+				SessionTable table = new SessionTable
+					(board.length, SessionTable.CHUNK, direct);
+				NimModel[] models = new NimModel [sessions];
+				for (int i = 0; i < sessions; i++) {
+					models[i] = new NimModel (board, table);
+					models[i].addPlayer (players[0], true, "one");
+					models[i].addPlayer (players[1], false, "two");
+				}
+				long used = heapUsed() - before;
+				result ("gc.heap", params, "ss", (double) used/sessions,
+					"bytes/session");
+				result ("gc.table", params, "ss",
+					(double) table.bytes()/sessions, "bytes/session");
+				long start = System.nanoTime();
+				for (int i = 0; i < 3; i++) {
+					System.gc();
+				}
+				result ("gc.full", params, "ss",
+					(System.nanoTime() - start)/3e6, "ms");
+				long[] young = youngCollections();
+				long ops = 0;
+				byte[][] garbage = new byte [1024][];
+				start = System.nanoTime();
+				long end = start + MEASURE_NANOS;
+				while (System.nanoTime() < end) {
+					for (int j = 0; j < 1000; j++, ops++) {
+						NimModel model = models[random.nextInt (sessions)];
+						if (model.getRemaining() == 0) model.newGame();
+						int h = 0;
+						while (model.getMarkers (h) == 0) h++;
+						ModelListener mover = model.check
+							(players[0], h, 1) == NimModel.LEGAL ?
+								players[0] : players[1];
+						model.move (mover, h, 1);
+						garbage[(int) ops & 1023] = new byte [256];
+					}
+				}
+				long elapsed = System.nanoTime() - start;
+				long[] after = youngCollections();
+				long collections = after[0] - young[0];
+				result ("gc.young.pause", params, "avgt", collections == 0 ?
+					0 : (double) (after[1] - young[1])/collections, "ms");
+				result ("gc.young.count", params, "ss", collections,
+					"count");
+				result ("gc.take", params, "avgt", (double) elapsed/ops,
+					"ns/op");
+				if (table.size() != sessions) {
+					System.err.println ("Built " + table.size() + " of " +
+						sessions + " sessions");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Benchmark matchmaking at several queue lengths. The queue is refilled
+	 * before each tick and only the tick is timed.
+	 */
+	private static void match() throws IOException {
+		String counts = System.getProperty
+			("nim.bench.queue", "1000,100000");
+		DatagramChannel channel = DatagramChannel.open();
+		SocketAddress sink = new InetSocketAddress ("127.0.0.1", 9);
+		final long[] matches = new long [1];
+		Matchmaker.Listener listener = new Matchmaker.Listener() {
+			public void match (ViewProxy a, String nameA,
+							   ViewProxy b, String nameB) {
+				++ matches[0];
+			}
+		};
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (String count : counts.split (",")) {
+			int queued = Integer.parseInt (count.trim());
+			ViewProxy[] players = new ViewProxy [queued];
+			for (int i = 0; i < queued; i++) {
+				players[i] = new ViewProxy (channel, sink);
+			}
+			Matchmaker matchmaker = new Matchmaker (100, 5000, 100);
+			long ticks = 0;
+			long elapsed = 0;
+			matches[0] = 0;
+			long end = System.nanoTime() + WARMUP_NANOS + MEASURE_NANOS;
+			while (System.nanoTime() < end || ticks < 10) {
+				long now = System.nanoTime();
+				for (ViewProxy player : players) {
+					matchmaker.enqueue (player, "p", random.nextInt (3000),
+						now - random.nextLong (200000000L));
+				}
+				long start = System.nanoTime();
+				matchmaker.tick (now, listener);
+				long time = System.nanoTime() - start;
+				if (start > end - MEASURE_NANOS) {
+					elapsed += time;
+					++ ticks;
+				}
+			}
+			result ("match.tick", "\"queued\":" + queued, "avgt",
+				elapsed/1e6/ticks, "ms/op");
+		}
+		channel.close();
+	}
+
+	/**
+	 * Benchmark the profile store at several numbers of players, each with
+	 * a profile already.
+	 */
+	private static void profile() throws IOException {
+		String counts = System.getProperty
+			("nim.bench.profiles", "1000,1000000");
+		for (String count : counts.split (",")) {
+			final int players = Integer.parseInt (count.trim());
+			File file = File.createTempFile ("nimprofiles", ".dat");
+			file.delete();
+			final ProfileStore profiles = new ProfileStore (file, 10);
+			for (int i = 0; i < players; i++) {
+				profiles.record ("player" + i, null);
+			}
+			profiles.flush();
+			// Each name is built afresh, as decoding a join does, so it is
+			// in cache and the store's own misses are what is measured.
+			final StringBuilder name = new StringBuilder();
+			final int[] sink = new int [1];
+			measure ("profile.rating", "\"players\":" + players, new Op() {
+				public void run (long i) {
+					name.setLength (0);
+					name.append ("player").append ((i*0x9e3779b1L) % players);
+					sink[0] += profiles.rating (name.toString());
+				}
+			});
+			measure ("profile.record", "\"players\":" + players, new Op() {
+				public void run (long i) throws IOException {
+					long a = (i*0x9e3779b1L) % players;
+					name.setLength (0);
+					name.append ("player").append (a);
+					String winner = name.toString();
+					name.setLength (0);
+					name.append ("player").append
+						((a + 1 + (i & 1023)) % players);
+					profiles.record (winner, name.toString());
+				}
+			});
+			profiles.close();
+			file.delete();
+		}
+	}
+
+	/**
+	 * Benchmark the event log: the cost of appending a take, and the
+	 * events/sec committed to disk by several appending threads, counted
+	 * up to the close that commits the last of them.
+	 */
+	private static void log() throws Exception {
+		String logdir = System.getProperty ("nim.bench.logdir");
+		File dir = logdir != null ? new File (logdir) :
+			Files.createTempDirectory ("nimlog").toFile();
+		int seconds = Integer.getInteger ("nim.bench.seconds", 5);
+		int workers = Integer.getInteger
+			("nim.bench.workers", Runtime.getRuntime().availableProcessors());
+		final EventLog eventLog = new EventLog (dir, 64 << 20, 0);
+		final int session = eventLog.start (NimModel.DEFAULT_BOARD);
+		measure ("log.append", "", new Op() {
+			public void run (long i) {
+				eventLog.take (session, (int) (i & 3), 1);
+			}
+		});
+		eventLog.close();
+		int[] counts = workers > 1 ? new int[] { 1, workers } : new int[] { 1 };
+		for (int threads : counts) {
+			final EventLog log = new EventLog (dir, 64 << 20, 0);
+			final LongAdder events = new LongAdder();
+			final long end = System.nanoTime() + seconds*1000000000L;
+			long commits = ServerMetrics.get().getLogCommits();
+			long start = System.nanoTime();
+			Thread[] appenders = new Thread [threads];
+			for (int t = 0; t < threads; t++) {
+				appenders[t] = new Thread() {
+					public void run() {
+						int s = log.start (NimModel.DEFAULT_BOARD);
+						long n = 0;
+						while ((n & 1023) != 0 || System.nanoTime() < end) {
+							log.take (s, (int) (n & 3), 1);
+							++ n;
+						}
+						events.add (n);
+					}
+				};
+				appenders[t].start();
+			}
+			for (Thread appender : appenders) {
+				appender.join();
+			}
+			log.close();
+			double elapsed = (System.nanoTime() - start)/1e9;
+			result ("log.sustained", "\"threads\":" + threads, "thrpt",
+				events.sum()/elapsed, "events/s");
+			result ("log.commits", "\"threads\":" + threads, "thrpt",
+				(ServerMetrics.get().getLogCommits() - commits)/elapsed,
+				"commits/s");
+		}
+		if (logdir == null) {
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Benchmark recovery from an event log at several session counts.
+	 * Every session is a player against the computer with a few takes; the
+	 * first half are in a checkpoint, and every session has takes after it.
+	 */
+	private static void recovery() throws Exception {
+		String counts = System.getProperty
+			("nim.bench.recover", "100000,1000000");
+		int workers = Integer.getInteger
+			("nim.bench.workers", Runtime.getRuntime().availableProcessors());
+		final DatagramChannel channel = DatagramChannel.open();
+		channel.configureBlocking (false);
+		int[] board = NimModel.DEFAULT_BOARD;
+		for (String count : counts.split (",")) {
+			int sessions = Integer.parseInt (count.trim());
+			File dir = Files.createTempDirectory ("nimlog").toFile();
+			EventLog log = new EventLog (dir, 64 << 20, 10);
+			int[] ids = new int [sessions];
+			for (int i = 0; i < sessions; i++) {
+				ids[i] = log.start (board);
+				ViewProxy player = new ViewProxy (channel,
+					new InetSocketAddress ("127.0.0.1", 1024 + i % 60000));
+				player.setTag (i / 60000);
+				log.join (ids[i], 1, "p" + i, player);
+				log.join (ids[i], 2, ComputerPlayer.NAME, null);
+				log.take (ids[i], 0, 1);
+				if (i == sessions/2) {
+					int number = log.beginCheckpoint();
+					for (int j = 0; j <= i; j++) {
+						ViewProxy p = new ViewProxy (channel, new InetSocketAddress
+							("127.0.0.1", 1024 + j % 60000));
+						p.setTag (j / 60000);
+						log.checkpoint (ids[j], 4, 1, new int[] { 0, 0 },
+							board, new int[] { 2, 4, 5 },
+							new String[] { "p" + j, ComputerPlayer.NAME },
+							new ModelListener[] { p, null });
+					}
+					log.endCheckpoint (number);
+				}
+			}
+			for (int i = 0; i < sessions; i++) {
+				log.take (ids[i], 1, 1);
+			}
+			log.close();
+
+			long start = System.nanoTime();
+			Recovery recovery = Recovery.read (dir, workers);
+			long read = System.nanoTime() - start;
+			SessionManager manager = new SessionManager();
+			manager.setComputerDifficulty (1.0);
+			start = System.nanoTime();
+			int restored = manager.recover (recovery, new Recovery.Binder() {
+				public ViewProxy bind (SocketAddress address, int tag) {
+					ViewProxy proxy = new ViewProxy (channel, address);
+					proxy.setTag (tag);
+					return proxy;
+				}
+			});
+			long restore = System.nanoTime() - start;
+			String params = "\"sessions\":" + sessions +
+				",\"workers\":" + workers;
+			result ("recovery.replay", params, "ss", read/1e6, "ms");
+			result ("recovery.restore", params, "ss", restore/1e6, "ms");
+			if (restored != recovery.size()) {
+				System.err.println ("Restored " + restored + " of " +
+					recovery.size());
+			}
+			for (File file : dir.listFiles()) {
+				file.delete();
+			}
+			dir.delete();
+		}
+		channel.close();
+	}
+
+	/**
+	 * Benchmark the computer player: the cost of choosing a move, with a
+	 * move table on small boards and from the nim-sum on large ones, and
+	 * the moves/sec of many games against it sharing a few threads.
+	 */
+	private static void computer() throws Exception {
+		String boards = System.getProperty
+			("nim.bench.boards", "3,4,5;100*100;1000*100");
+		Executor none = new Executor() {
+			public void execute (Runnable task) {}
+		};
+		for (String spec : boards.split (";")) {
+			int[] board = NimModel.parseBoard (spec.trim());
+			NimModel model = new NimModel (board);
+			final ComputerPlayer computer =
+				new ComputerPlayer (model, none, 1.0);
+			SinkProxy player = new SinkProxy();
+			model.addPlayer (player, true, "one");
+			model.addPlayer (computer, false, ComputerPlayer.NAME);
+			// Leave the computer a position it can win.
+			model.take (player, board.length - 1, 1);
+			measure ("computer.move", "\"heaps\":" + board.length, new Op() {
+				public void run (long i) {
+					computer.chooseMove();
+				}
+			});
+		}
+
+		String counts = System.getProperty ("nim.bench.games", "1000,10000");
+		int seconds = Integer.getInteger ("nim.bench.seconds", 5);
+		int workers = Integer.getInteger
+			("nim.bench.workers", Runtime.getRuntime().availableProcessors());
+		for (String count : counts.split (",")) {
+			int games = Integer.parseInt (count.trim());
+			SessionExecutor executor = new SessionExecutor (workers);
+			SessionManager manager = new SessionManager (executor);
+			manager.setComputerDifficulty (1.0);
+			RandomProxy[] players = new RandomProxy [games];
+			for (int i = 0; i < games; i++) {
+				players[i] = new RandomProxy();
+				manager.join (players[i], "random");
+			}
+			long start = RandomProxy.moves.sum();
+			Thread.sleep (seconds*1000L);
+			long moves = RandomProxy.moves.sum() - start;
+			for (RandomProxy player : players) {
+				player.stop = true;
+			}
+			Thread.sleep (100);
+			executor.shutdown();
+			result ("computer.games", "\"games\":" + games +
+				",\"workers\":" + workers, "thrpt",
+				(double) moves / seconds, "moves/s");
+		}
+	}
+
+	/**
+	 * Benchmark an in-process server played by simulated clients.
+	 */
+	private static void loopback() throws Exception {
+		int pairs = Integer.getInteger ("nim.bench.pairs", 8);
+		int seconds = Integer.getInteger ("nim.bench.seconds", 5);
+		int workers = Integer.getInteger ("nim.bench.workers", 0);
+		InetSocketAddress server = startServer (workers);
+		play ("loopback", "\"pairs\":" + pairs + ",\"workers\":" + workers,
+			server, pairs, seconds, 0.0);
+	}
+
+	/**
+	 * Benchmark an in-process server played by simulated clients using
+	 * reliable delivery over lossy sockets.
+	 */
+	private static void lossy() throws Exception {
+		int pairs = Integer.getInteger ("nim.bench.pairs", 8);
+		int seconds = Integer.getInteger ("nim.bench.seconds", 5);
+		int workers = Integer.getInteger ("nim.bench.workers", 0);
+		String losses = System.getProperty ("nim.bench.loss", "0.01,0.05,0.1");
+		InetSocketAddress server = startServer (workers);
+		for (String loss : losses.split (",")) {
+			play ("lossy", "\"pairs\":" + pairs + ",\"workers\":" + workers +
+				",\"loss\":" + loss.trim(), server, pairs, seconds,
+				Double.parseDouble (loss));
+		}
+	}
+
+	/**
+	 * Benchmark an in-process server reading several sockets bound to one
+	 * port, played by simulated clients.
+	 */
+	private static void reusePort() throws Exception {
+		int pairs = Integer.getInteger ("nim.bench.pairs", 8);
+		int seconds = Integer.getInteger ("nim.bench.seconds", 5);
+		String counts = System.getProperty ("nim.bench.sockets", "1,2,4");
+		for (String count : counts.split (",")) {
+			int n = Integer.parseInt (count.trim());
+			final ReusePortServer server = new ReusePortServer
+				(new InetSocketAddress ("127.0.0.1", 0), n);
+			daemon (new Runnable() {
+				public void run() {
+					try { server.run(); }
+					catch (IOException exc) { }
+				}
+			});
+			String params = "\"pairs\":" + pairs + ",\"sockets\":" + n;
+			long before = ServerMetrics.get().getDatagramsIn();
+			play ("reuseport", params, server.getLocalAddress(), pairs,
+				seconds, 0.0);
+			result ("reuseport.datagrams", params, "thrpt",
+				(double) (ServerMetrics.get().getDatagramsIn() - before) /
+					seconds, "datagrams/s");
+		}
+	}
+
+	/**
+	 * Benchmark in-process shards behind an in-process router, played by
+	 * simulated clients.
+	 */
+	private static void router() throws Exception {
+		int pairs = Integer.getInteger ("nim.bench.pairs", 8);
+		int seconds = Integer.getInteger ("nim.bench.seconds", 5);
+		String counts = System.getProperty ("nim.bench.shards", "1,2,4");
+		for (String count : counts.split (",")) {
+			int n = Integer.parseInt (count.trim());
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind (new InetSocketAddress ("127.0.0.1", 0));
+			InetSocketAddress address =
+				(InetSocketAddress) channel.getLocalAddress();
+			final NimRouter router = new NimRouter (channel);
+			MailboxManager[] shards = new MailboxManager [n];
+			for (int i = 0; i < n; i++) {
+				DatagramSocket mailbox = new DatagramSocket
+					(new InetSocketAddress ("127.0.0.1", 0));
+				final MailboxManager shard = new MailboxManager (mailbox);
+				shard.setRouter (address);
+				router.addShard ((InetSocketAddress)
+					mailbox.getLocalSocketAddress());
+				shards[i] = shard;
+				daemon (new Runnable() {
+					public void run() {
+						try { for (;;) shard.receiveMessage(); }
+						catch (IOException exc) { }
+					}
+				});
+			}
+			daemon (new Runnable() {
+				public void run() {
+					try { router.run(); }
+					catch (IOException exc) { }
+				}
+			});
+			String params = "\"pairs\":" + pairs + ",\"shards\":" + n;
+			play ("router", params, address, pairs, seconds, 0.0);
+			int most = 0;
+			for (MailboxManager shard : shards) {
+				most = Math.max (most, shard.getProxyCount());
+			}
+			result ("router.redirects", params, "ss",
+				router.getRedirects(), "count");
+			result ("router.share", params, "ss",
+				(double) most / (2*pairs), "fraction");
+		}
+	}
+
+	// Hidden operations -- helpers.
+
+	/**
+	 * Run a task on a new daemon thread.
+	 */
+	private static void daemon (Runnable task) {
+		Thread thread = new Thread (task);
+		thread.setDaemon (true);
+		thread.start();
+	}
+
+	/**
+	 * Play bot pairs against a server for a while and record moves/sec,
+	 * move latency percentiles and errors. With loss, the bots' sockets
+	 * drop datagrams and the bots use reliable delivery.
+	 */
+	private static void play (String name, String params,
+			InetSocketAddress server, int pairs, int seconds, double loss)
+			throws Exception {
+		LatencyHistogram latency = new LatencyHistogram();
+		BotPlayer[] bots = new BotPlayer [2*pairs];
+		DatagramSocket[] mailboxes = new DatagramSocket [2*pairs];
+		for (int i = 0; i < bots.length; i++) {
+			InetSocketAddress local = new InetSocketAddress ("127.0.0.1", 0);
+			mailboxes[i] = loss > 0
+				? new LossyDatagramSocket (local, loss)
+				: new DatagramSocket (local);
+			ModelProxy proxy = new ModelProxy (mailboxes[i], server);
+			if (loss > 0) proxy.setReliable();
+			bots[i] = new BotPlayer (proxy, "bench", latency);
+			proxy.setModelListener (bots[i]);
+		}
+		for (int i = 0; i < bots.length; i += 2) {
+			bots[i].join();
+			Thread.sleep (5);
+			bots[i+1].join();
+		}
+		Thread.sleep (seconds*1000L);
+		long moves = 0;
+		long errors = 0;
+		for (BotPlayer bot : bots) {
+			moves += bot.getMoves();
+			errors += bot.getErrors();
+		}
+		for (DatagramSocket mailbox : mailboxes) {
+			mailbox.close();
+		}
+		result (name + ".moves", params, "thrpt",
+			(double) moves / seconds, "moves/s");
+		result (name + ".latency.p50", params, "sample",
+			latency.percentile (0.50) / 1000.0, "us/move");
+		result (name + ".latency.p99", params, "sample",
+			latency.percentile (0.99) / 1000.0, "us/move");
+		result (name + ".errors", params, "ss", errors, "count");
+	}
+
+	/**
+	 * Start a server on an ephemeral loopback port in a daemon thread.
+	 *
+	 * @param  workers  Channel workers, or 0 for the single-socket server.
+	 * @return  Server address.
+	 */
+	private static InetSocketAddress startServer (int workers)
+			throws IOException {
+		Thread thread;
+		InetSocketAddress address;
+		if (workers > 0) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind (new InetSocketAddress ("127.0.0.1", 0));
+			address = (InetSocketAddress) channel.getLocalAddress();
+			final ChannelServer server = new ChannelServer (channel, workers);
+			thread = new Thread() {
+				public void run() {
+					try { server.run(); }
+					catch (IOException exc) { }
+				}
+			};
+		} else {
+			DatagramSocket mailbox =
+				new DatagramSocket (new InetSocketAddress ("127.0.0.1", 0));
+			address = (InetSocketAddress) mailbox.getLocalSocketAddress();
+			final MailboxManager manager = new MailboxManager (mailbox);
+			thread = new Thread() {
+				public void run() {
+					try { for (;;) manager.receiveMessage(); }
+					catch (IOException exc) { }
+				}
+			};
+		}
+		thread.setDaemon (true);
+		thread.start();
+		return address;
+	}
+
+	/**
+	 * Warm up and then time an operation, recording the average time per
+	 * operation.
+	 */
+	private static void measure (String name, String params, Op op)
+			throws IOException {
+		long i = 0;
+		long end = System.nanoTime() + WARMUP_NANOS;
+		while (System.nanoTime() < end) {
+			for (int j = 0; j < 1000; j++) op.run (i++);
+		}
+		long ops = 0;
+		long start = System.nanoTime();
+		end = start + MEASURE_NANOS;
+		long now;
+		do {
+			for (int j = 0; j < 1000; j++) op.run (i++);
+			ops += 1000;
+			now = System.nanoTime();
+		} while (now < end);
+		result (name, params, "avgt", (double) (now - start) / ops, "ns/op");
+	}
+
+	/**
+	 * Returns the heap in use after a full collection.
+	 */
+	private static long heapUsed() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+			.getUsed();
+	}
+
+	/**
+	 * Returns the number of young collections so far, and the
+	 * milliseconds they took.
+	 */
+	private static long[] youngCollections() {
+		long[] young = new long [2];
+		for (GarbageCollectorMXBean gc :
+				ManagementFactory.getGarbageCollectorMXBeans()) {
+			String name = gc.getName();
+			if (name.contains ("Young") || name.equals ("Copy") ||
+					name.equals ("PS Scavenge") || name.equals ("ParNew")) {
+				young[0] += gc.getCollectionCount();
+				young[1] += gc.getCollectionTime();
+			}
+		}
+		return young;
+	}
+
+	/**
+	 * Record one result.
+	 */
+	private static void result (String name, String params, String mode,
+								double score, String unit) {
+		results.add (String.format
+			("{\"benchmark\":\"%s\",\"params\":{%s},\"mode\":\"%s\"," +
+			 "\"score\":%.3f,\"unit\":\"%s\"}",
+			 name, params, mode, score, unit));
+	}
+
+	// Hidden helper classes.
+
+	/**
+	 * Interface Op is an operation to be timed.
+	 */
+	private static interface Op {
+		public void run (long i) throws IOException;
+	}
+
+	/**
+	 * Class StubListener discards every model event.
+	 */
+	private static class StubListener implements ModelListener {
+		public void id (int i) {}
+		public void name (int i, String n) {}
+		public void score (int i, int s) {}
+		public void heap (int h, int m) {}
+		public void turn (int i) {}
+		public void win (int i) {}
+		public void delta (int base, int v, int t, int[] scores,
+						   int n, int[] heaps, int[] markers) {}
+		public void snapshot (int v, int i, int t, int[] heaps,
+							  String[] names, int[] scores) {}
+		public void quit() {}
+		public void flush() {}
+	}
+
+	/**
+	 * Class SinkProxy is a view proxy that sends nothing. It remembers the
+	 * version the model last reported, so it can acknowledge it, and the
+	 * bytes its deltas would take on the wire.
+	 */
+	private static class SinkProxy extends ViewProxy {
+		private ByteBuffer buffer = ByteBuffer.allocate
+			(MessageCodec.MAX_DATAGRAM);
+		int version;
+		long bytes;
+		SinkProxy() {
+			super ((DatagramChannel) null, null);
+		}
+		public void id (int i) {}
+		public void name (int i, String n) {}
+		public void score (int i, int s) {}
+		public void heap (int h, int m) {}
+		public void turn (int i) {}
+		public void win (int i) {}
+		public void delta (int base, int v, int t, int[] scores,
+						   int n, int[] heaps, int[] markers) {
+			buffer.clear();
+			MessageCodec.encodeDelta
+				(buffer, base, v, t, scores, n, heaps, markers);
+			bytes += buffer.position();
+			version = v;
+		}
+		public void snapshot (int v, int i, int t, int[] heaps,
+							  String[] names, int[] scores) {
+			version = v;
+		}
+		public void quit() {}
+		public void flush() {}
+	}
+
+	/**
+	 * Class RandomProxy is a view proxy that sends nothing and plays for its
+	 * client: on its turn it acknowledges its version and takes a random
+	 * legal move, as a client does, and when it wins it starts a new game.
+	 * Every move the two players make is counted.
+	 */
+	private static class RandomProxy extends ViewProxy {
+		static final LongAdder moves = new LongAdder();
+		private ViewListener listener;
+		private int[] heaps;
+		private int version;
+		private int id;
+		private int turn;
+		private boolean won;
+		private boolean newGameDue;
+		volatile boolean stop;
+		RandomProxy() {
+			super ((DatagramChannel) null, null);
+		}
+		public void setViewListener (ViewListener listener) {
+			this.listener = listener;
+		}
+		public void id (int i) {}
+		public void name (int i, String n) {}
+		public void score (int i, int s) {}
+		public void heap (int h, int m) {}
+		public void turn (int i) {}
+		public void win (int i) {
+			won = i == id;
+			newGameDue = true;
+		}
+		public void delta (int base, int v, int t, int[] scores,
+						   int n, int[] h, int[] m) {
+			version = v;
+			for (int k = 0; k < n; k++) heaps[h[k]] = m[k];
+			if (t >= 0) {
+				turn = t;
+				if (newGameDue) {
+					newGameDue = false;
+				} else {
+					moves.increment();
+				}
+			}
+		}
+		public void snapshot (int v, int i, int t, int[] h,
+							  String[] names, int[] scores) {
+			version = v;
+			heaps = h.clone();
+			id = i;
+			turn = t;
+		}
+		public void quit() {}
+		public void flush() throws IOException {
+			if (stop) return;
+			if (won) {
+				won = false;
+				listener.newGame();
+				return;
+			}
+			if (turn != id) return;
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int start = random.nextInt (heaps.length);
+			for (int k = 0; k < heaps.length; k++) {
+				int h = (start + k) % heaps.length;
+				if (heaps[h] > 0) {
+					listener.sync (this, version);
+					listener.take (this, h, 1 + random.nextInt (heaps[h]));
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Class StubViewListener discards every view request.
+	 */
+	private static class StubViewListener implements ViewListener {
+		public void join (ViewProxy proxy, String n) {}
+		public void take (ViewProxy proxy, int h, int m) {}
+		public void newGame() {}
+		public void sync (ViewProxy proxy, int v) {}
+		public void quit() {}
+	}
+}
@@ -0,0 +1,132 @@
+import java.net.InetSocketAddress;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+
+/**
+ * Class NimBot is a headless load generator for the Nim network game. It
+ * runs many bot players against one server and reports throughput, move
+ * latency percentiles and error counts.
+ * Usage: java NimBot <I>serverhost</I> <I>serverport</I>
+ * 				   <I>clienthost</I> <I>players</I> <I>seconds</I> [<I>sockets</I>]
+ * <P>
+ * By default each player has its own socket and reader thread. When
+ * <I>sockets</I> is given, the players share that many sockets, each read
+ * by one thread through a ClientMux. With <TT>-Dnim.reliable=true</TT> the
+ * players use reliable delivery, and with <TT>-Dnim.syncInterval=MS</TT>
+ * they check their version with the server every MS milliseconds.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class NimBot {
+
+	/**
+	 * Main program.
+	 */
+	public static void main (String[] args) throws Exception {
+		if (args.length != 5 && args.length != 6) usage();
+		try {
+			String serverhost = args[0];
+			int serverport = Integer.parseInt( args[1] );
+			String clienthost = args[2];
+			int players = Integer.parseInt( args[3] );
+			int seconds = Integer.parseInt( args[4] );
+			int sockets = args.length == 6 ? Integer.parseInt( args[5] ) : 0;
+			if (sockets < 0) usage();
+			boolean reliable = Boolean.getBoolean( "nim.reliable" );
+			long syncInterval = Long.getLong( "nim.syncInterval", 0 );
+			InetSocketAddress server =
+				new InetSocketAddress( serverhost, serverport );
+			LatencyHistogram latency = new LatencyHistogram();
+			BotPlayer[] bots = new BotPlayer[ players ];
+			DatagramSocket[] mailboxes =
+				new DatagramSocket[ sockets > 0 ? sockets : players ];
+			try {
+				for (int i = 0; i < mailboxes.length; i++) {
+					mailboxes[i] = new DatagramSocket
+						(new InetSocketAddress( clienthost, 0 ));
+				}
+				if (sockets > 0) {
+					ClientMux[] muxes = new ClientMux[ sockets ];
+					for (int i = 0; i < sockets; i++) {
+						muxes[i] = new ClientMux( mailboxes[i], server );
+					}
+					for (int i = 0; i < players; i++) {
+						ModelProxy proxy = muxes[i % sockets].newProxy();
+						if (reliable) proxy.setReliable();
+						proxy.setSyncInterval( syncInterval );
+						bots[i] = new BotPlayer( proxy, "bot" + i, latency );
+						proxy.setModelListener( bots[i] );
+					}
+					for (ClientMux mux : muxes) {
+						mux.start( null );
+					}
+				}
+				else {
+					for (int i = 0; i < players; i++) {
+						ModelProxy proxy =
+							new ModelProxy( mailboxes[i], server );
+						if (reliable) proxy.setReliable();
+						proxy.setSyncInterval( syncInterval );
+						bots[i] = new BotPlayer( proxy, "bot" + i, latency );
+						proxy.setModelListener( bots[i] );
+					}
+				}
+			}
+			catch (SocketException e) {
+				System.err.println( "SocketException: " + e.getMessage());
+				System.exit(1);
+			}
+
+			long start = System.nanoTime();
+			for (BotPlayer bot : bots) {
+				bot.join();
+			}
+			Thread.sleep( seconds*1000L );
+			double elapsed = (System.nanoTime() - start)/1e9;
+			report( bots, latency, elapsed );
+			for (DatagramSocket mailbox : mailboxes) {
+				mailbox.close();
+			}
+			System.exit( 0 );
+		}
+		catch (NumberFormatException e) {
+			System.err.println( "NumberFormatException: " + e.getMessage()
+				+ " must be a valid number.");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Print the totals of a run.
+	 */
+	private static void report( BotPlayer[] bots, LatencyHistogram latency,
+								double elapsed ) {
+		long moves = 0, games = 0, quits = 0, errors = 0;
+		for (BotPlayer bot : bots) {
+			moves += bot.getMoves();
+			games += bot.getGames();
+			quits += bot.getQuits();
+			errors += bot.getErrors();
+		}
+		System.out.printf( "players   %d%n", bots.length );
+		System.out.printf( "seconds   %.1f%n", elapsed );
+		System.out.printf( "moves     %d (%.0f/s)%n", moves, moves/elapsed );
+		System.out.printf( "games     %d%n", games/2 );
+		System.out.printf( "latency   p50 %d us, p90 %d us, p99 %d us, " +
+			"max %d us%n",
+			latency.percentile( 0.50 )/1000, latency.percentile( 0.90 )/1000,
+			latency.percentile( 0.99 )/1000, latency.percentile( 1.0 )/1000 );
+		System.out.printf( "quits     %d%n", quits );
+		System.out.printf( "errors    %d%n", errors );
+	}
+
+	/**
+	 * Print a usage message and exit.
+	 */
+	private static void usage() {
+		System.err.println( "Usage: java NimBot <serverhost> <serverport> " +
+			"<clienthost> <players> <seconds> [<sockets>]" );
+		System.exit( 1 );
+	}
+}
@@ -0,0 +1,743 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * NimCodecCheck encodes every message of the Nim network protocol with
+ * MessageCodec, decodes it again and checks that what comes out is what
+ * went in. It prints one line per message type and exits with status 1 if
+ * any check failed.
+ * Usage: java NimCodecCheck
+ * <P>
+ * The model events 'I', 'A', 'S', 'H', 'U', 'W', 'D', 'Z' and 'Q' are
+ * decoded through a listener that records each call, alone and back to
+ * back in one frame; the requests 'J', 'T', 'N', 'V' and 'Q' likewise.
+ * Deltas cover the turn and each score present or absent, a score mask of
+ * more than one byte and heaps changed in several runs; every encoded
+ * delta and snapshot must fit the size deltaSize() or snapshotSize()
+ * promised, and peekVersion() and peekBase() must agree with the decoded
+ * message. Every proper prefix of every message must be refused as
+ * truncated rather than decoded or answered with any other exception.
+ * <P>
+ * The framing headers are checked too: the tag 'X', the route header 'F'
+ * for IPv4 and IPv6 clients, the waiting report 'L', the gone notice 'G',
+ * and isJoin() and isQuit() behind a tag, reliable header and version
+ * check. The reliable header 'R' is checked by passing frames between two
+ * reliable channels: in order, out of order, duplicated, acknowledged,
+ * retransmitted, to a new channel that has never heard of the sender, and
+ * from a sender whose window fills because its peer never answers.
+ * Last, a reliable join of the largest size a client sends goes through an
+ * in-process NimRouter to a single-socket shard and to a channel server
+ * shard, each of which must receive it whole and answer.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class NimCodecCheck {
+
+	// Hidden data members.
+	private static int checks;
+	private static int failures;
+
+	/**
+	 * Main program.
+	 */
+	public static void main (String[] args) throws Exception {
+		checkEvents();
+		checkDeltas();
+		checkSnapshots();
+		checkRequests();
+		checkTags();
+		checkRoutes();
+		checkReliable();
+		checkRouted();
+		System.out.println ("checks      " + checks);
+		System.out.println ("failures    " + failures);
+		System.exit (failures == 0 ? 0 : 1);
+	}
+
+	// Hidden operations.
+
+	/**
+	 * Check the single-field model events, alone and in one frame.
+	 */
+	private static void checkEvents() throws IOException {
+		ByteBuffer out = ByteBuffer.allocate (MessageCodec.MAX_DATAGRAM);
+		out.clear();
+		MessageCodec.encodeId (out, 2);
+		event ("I", out, "id 2");
+		out.clear();
+		MessageCodec.encodeName (out, 1, "Ann");
+		event ("A", out, "name 1 Ann");
+		out.clear();
+		MessageCodec.encodeName (out, 2, "Zo\u00eb \u2603 \u0000");
+		event ("A", out, "name 2 Zo\u00eb \u2603 \u0000");
+		out.clear();
+		MessageCodec.encodeName (out, 2, "");
+		event ("A", out, "name 2 ");
+		out.clear();
+		MessageCodec.encodeScore (out, 1, 17);
+		event ("S", out, "score 1 17");
+		out.clear();
+		MessageCodec.encodeHeap (out, 3, 5);
+		event ("H", out, "heap 3 5");
+		out.clear();
+		MessageCodec.encodeHeap (out, 1000, 300000);
+		event ("H", out, "heap 1000 300000");
+		out.clear();
+		MessageCodec.encodeTurn (out, 2);
+		event ("U", out, "turn 2");
+		out.clear();
+		MessageCodec.encodeWin (out, 1);
+		event ("W", out, "win 1");
+		out.clear();
+		MessageCodec.encodeQuit (out);
+		event ("Q", out, "quit");
+
+		// Several events back to back in one frame.
+		out.clear();
+		MessageCodec.encodeId (out, 1);
+		MessageCodec.encodeName (out, 1, "Ann");
+		MessageCodec.encodeHeap (out, 0, 130);
+		MessageCodec.encodeDelta (out, 4, 5, 2, new int[] {-1, 1}, 1,
+			new int[] {2}, new int[] {0});
+		MessageCodec.encodeWin (out, 2);
+		out.flip();
+		Recorder recorder = new Recorder();
+		boolean ok = MessageCodec.decodeEvents (out, recorder);
+		check ("frame", ok && !out.hasRemaining(), recorder.calls,
+			"id 1", "name 1 Ann", "heap 0 130",
+			"delta 4 5 2 [-1, 1] [2] [0]", "win 2");
+	}
+
+	/**
+	 * Check 'D' messages.
+	 */
+	private static void checkDeltas() throws IOException {
+		// A take: the turn and one heap.
+		delta (4, 5, 2, new int[] {-1, -1}, new int[] {1}, new int[] {2});
+		// A win: a score as well.
+		delta (7, 8, 1, new int[] {-1, 3}, new int[] {0}, new int[] {0});
+		// A new game: every heap, in one run.
+		delta (8, 9, 1, new int[] {-1, -1},
+			new int[] {0, 1, 2}, new int[] {3, 4, 5});
+		// Nothing changed at all.
+		delta (9, 9, -1, new int[] {-1, -1}, new int[0], new int[0]);
+		// Several runs with gaps, far from the base, large values.
+		delta (0, 100000, 2, new int[] {200, 70000},
+			new int[] {1, 2, 200, 201, 202, 5000},
+			new int[] {0, 127, 128, 16384, 1, 2000000});
+		// Seven and eight players: the score mask needs a second byte
+		// only once there are more than seven fields.
+		delta (1, 2, 1, new int[] {-1, -1, -1, -1, -1, -1},
+			new int[0], new int[0]);
+		delta (1, 2, -1, new int[] {-1, -1, -1, -1, -1, -1, 9},
+			new int[] {3}, new int[] {4});
+		delta (1, 2, 3, new int[] {1, -1, 2, -1, 3, -1, 4, -1, 5},
+			new int[] {3}, new int[] {4});
+	}
+
+	/**
+	 * Check 'Z' messages.
+	 */
+	private static void checkSnapshots() throws IOException {
+		snapshot (1, 1, 1, new int[] {3, 4, 5},
+			new String[] {"Ann", ""}, new int[] {0, 0});
+		snapshot (70000, 2, 1, new int[] {3, 4, 5},
+			new String[] {"Ann", "Zo\u00eb \u2603"}, new int[] {12, 300});
+		int[] board = new int [MessageCodec.MAX_BOARD];
+		for (int h = 0; h < board.length; h++) {
+			board[h] = h*h;
+		}
+		snapshot (Integer.MAX_VALUE, 1, 2, board,
+			new String[] {"Ann", "Bob"}, new int[] {1, 2});
+		snapshot (5, 1, 1, new int[0], new String[0], new int[0]);
+	}
+
+	/**
+	 * Check the requests 'J', 'T', 'N', 'V' and 'Q'.
+	 */
+	private static void checkRequests() throws IOException {
+		ByteBuffer out = ByteBuffer.allocate (MessageCodec.MAX_MESSAGE);
+		out.clear();
+		MessageCodec.encodeJoin (out, "Ann");
+		request ("J", out, "join Ann");
+		out.clear();
+		MessageCodec.encodeJoin (out, "Zo\u00eb \u2603");
+		request ("J", out, "join Zo\u00eb \u2603");
+		out.clear();
+		MessageCodec.encodeTake (out, 2, 3);
+		request ("T", out, "take 2 3");
+		out.clear();
+		MessageCodec.encodeTake (out, 1023, 1000000);
+		request ("T", out, "take 1023 1000000");
+		out.clear();
+		MessageCodec.encodeNewGame (out);
+		request ("N", out, "newGame");
+		out.clear();
+		MessageCodec.encodeSync (out, 42);
+		request ("V", out, "sync 42");
+		out.clear();
+		MessageCodec.encodeSync (out, -1);
+		request ("V", out, "sync -1");
+
+		// A quit is not reported; its type is.
+		out.clear();
+		MessageCodec.encodeQuit (out);
+		out.flip();
+		Recorder recorder = new Recorder();
+		byte type = MessageCodec.decodeRequest (out, null, recorder);
+		check ("Q", type == 'Q' && !out.hasRemaining(), recorder.calls);
+
+		// A name too long for the buffer is refused, not truncated.
+		char[] name = new char [MessageCodec.MAX_MESSAGE];
+		Arrays.fill (name, 'x');
+		out.clear();
+		boolean refused = false;
+		try {
+			MessageCodec.encodeJoin (out, new String (name));
+		} catch (UTFDataFormatException exc) {
+			refused = true;
+		}
+		check ("J", refused, new ArrayList<String>());
+	}
+
+	/**
+	 * Check the tag 'X'.
+	 */
+	private static void checkTags() throws IOException {
+		ByteBuffer out = ByteBuffer.allocate (MessageCodec.MAX_MESSAGE);
+		for (int token : new int[] {0, 1, 65536, Integer.MAX_VALUE, -1}) {
+			out.clear();
+			MessageCodec.encodeTag (out, token);
+			MessageCodec.encodeTake (out, 1, 2);
+			out.flip();
+			boolean ok = out.remaining() == MessageCodec.TAG_LENGTH + 3 &&
+				MessageCodec.isTagged (out) &&
+				MessageCodec.decodeTag (out) == token;
+			Recorder recorder = new Recorder();
+			ok &= MessageCodec.decodeRequest (out, null, recorder) == 'T';
+			check ("X", ok && !out.hasRemaining(), recorder.calls,
+				"take 1 2");
+		}
+		out.clear();
+		MessageCodec.encodeTake (out, 1, 2);
+		out.flip();
+		check ("X", !MessageCodec.isTagged (out), new ArrayList<String>());
+		out.clear();
+		out.put (MessageCodec.TAG);
+		out.flip();
+		check ("X", !MessageCodec.isTagged (out), new ArrayList<String>());
+	}
+
+	/**
+	 * Check the route header 'F', the waiting report 'L', the gone notice
+	 * 'G', and isJoin() and isQuit().
+	 */
+	private static void checkRoutes() throws IOException {
+		ByteBuffer out = ByteBuffer.allocate (MessageCodec.MAX_DATAGRAM);
+		InetSocketAddress[] clients = {
+			new InetSocketAddress (InetAddress.getByName ("127.0.0.1"), 1),
+			new InetSocketAddress (InetAddress.getByName ("10.1.2.3"), 65535),
+			new InetSocketAddress (InetAddress.getByName ("::1"), 5678),
+			new InetSocketAddress
+				(InetAddress.getByName ("fe80::1:2:3:4"), 40000),
+		};
+		for (InetSocketAddress client : clients) {
+			out.clear();
+			MessageCodec.encodeRoute (out, client);
+			int length = out.position();
+			MessageCodec.encodeTag (out, 7);
+			MessageCodec.encodeNewGame (out);
+			out.flip();
+			boolean ok = length == MessageCodec.routeLength (client) &&
+				length <= MessageCodec.MAX_ROUTE &&
+				MessageCodec.isRouted (out) &&
+				client.equals (MessageCodec.decodeRoute (out)) &&
+				MessageCodec.isTagged (out) &&
+				MessageCodec.decodeTag (out) == 7 &&
+				!MessageCodec.isGone (out);
+			check ("F", ok, new ArrayList<String>());
+
+			// Gone notices, tagged and not.
+			out.clear();
+			MessageCodec.encodeRoute (out, client);
+			MessageCodec.encodeTag (out, 7);
+			MessageCodec.encodeGone (out);
+			out.flip();
+			ok = MessageCodec.isRouted (out) &&
+				client.equals (MessageCodec.decodeRoute (out)) &&
+				MessageCodec.isGone (out);
+			out.clear();
+			MessageCodec.encodeRoute (out, client);
+			MessageCodec.encodeGone (out);
+			out.flip();
+			ok &= MessageCodec.isRouted (out) &&
+				client.equals (MessageCodec.decodeRoute (out)) &&
+				MessageCodec.isGone (out);
+			check ("G", ok, new ArrayList<String>());
+		}
+
+		// A route header with a bad address length is refused.
+		out.clear();
+		out.put (MessageCodec.ROUTE);
+		out.put ((byte) 5);
+		out.putInt (0);
+		out.putShort ((short) 0);
+		out.put ((byte) 0);
+		out.flip();
+		boolean refused = false;
+		try {
+			MessageCodec.decodeRoute (out);
+		} catch (EOFException exc) {
+			refused = true;
+		}
+		check ("F", refused, new ArrayList<String>());
+
+		// A snapshot ending in 'G' is not a gone notice.
+		out.clear();
+		MessageCodec.encodeSnapshot (out, 1, 1, 1, new int[] {3},
+			new String[] {"G"}, new int[] {0});
+		out.flip();
+		check ("G", !MessageCodec.isGone (out), new ArrayList<String>());
+
+		for (int count : new int[] {0, 1, 1000000}) {
+			out.clear();
+			MessageCodec.encodeWaiting (out, count);
+			out.flip();
+			boolean ok = out.remaining() == MessageCodec.WAITING_LENGTH &&
+				out.get() == MessageCodec.WAITING && out.getInt() == count;
+			check ("L", ok, new ArrayList<String>());
+		}
+
+		// Joins and quits, bare and behind a tag, a reliable header and a
+		// version check.
+		for (int tagged = 0; tagged < 2; tagged++) {
+			for (int reliable = 0; reliable < 2; reliable++) {
+				for (int synced = 0; synced < 2; synced++) {
+					for (int kind = 0; kind < 3; kind++) {
+						out.clear();
+						if (tagged == 1) MessageCodec.encodeTag (out, 3);
+						if (reliable == 1) {
+							out.put (ReliableChannel.RELIABLE);
+							out.put (new byte
+								[ReliableChannel.HEADER_LENGTH - 1]);
+						}
+						if (synced == 1) MessageCodec.encodeSync (out, 9);
+						if (kind == 0) MessageCodec.encodeJoin (out, "Q");
+						else if (kind == 1) MessageCodec.encodeQuit (out);
+						else MessageCodec.encodeTake (out, 'J', 'Q');
+						out.flip();
+						boolean ok = MessageCodec.isJoin (out) == (kind == 0) &&
+							MessageCodec.isQuit (out) == (kind == 1) &&
+							out.position() == 0;
+						check ("J", ok, new ArrayList<String>());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check the reliable header 'R' by passing tagged frames between two
+	 * reliable channels.
+	 */
+	private static void checkReliable() throws Exception {
+		final List<ByteBuffer> resent = new ArrayList<ByteBuffer>();
+		ReliableChannel.Sender sender = new ReliableChannel.Sender() {
+			public void resend (ByteBuffer datagram) {
+				synchronized (resent) {
+					resent.add (copy (datagram));
+				}
+			}
+			public void sendAck() {}
+		};
+		ReliableChannel client = new ReliableChannel (sender);
+		ReliableChannel server = new ReliableChannel (sender);
+
+		// In order, then a duplicate.
+		ByteBuffer first = frame (client, 1, 1);
+		check ("R", true, accepted (server, copy (first)), "take 1 1");
+		check ("R", true, accepted (server, copy (first)));
+
+		// Out of order: the later frame is held until the gap is filled.
+		ByteBuffer second = frame (client, 2, 2);
+		ByteBuffer third = frame (client, 3, 3);
+		check ("R", true, accepted (server, copy (third)));
+		check ("R", true, accepted (server, copy (second)), "take 2 2", "take 3 3");
+
+		// An acknowledgement, tagged, carries no frame.
+		ByteBuffer ack = ByteBuffer.allocate
+			(MessageCodec.TAG_LENGTH + ReliableChannel.HEADER_LENGTH);
+		MessageCodec.encodeTag (ack, 1);
+		server.stampAck (ack);
+		ack.flip();
+		check ("R", ack.remaining() == ack.capacity() &&
+			MessageCodec.isTagged (ack) && MessageCodec.decodeTag (ack) == 1 &&
+			!client.accept (ack) && !ack.hasRemaining(),
+			new ArrayList<String>());
+
+		// A lost frame is resent until acknowledged; the acknowledged ones
+		// are not.
+		ByteBuffer lost = frame (client, 4, 4);
+		ByteBuffer fifth = frame (client, 5, 5);
+		check ("R", true, accepted (server, copy (fifth)));
+		ack.clear();
+		MessageCodec.encodeTag (ack, 1);
+		server.stampAck (ack);
+		ack.flip();
+		MessageCodec.decodeTag (ack);
+		client.accept (ack);
+		long deadline = System.currentTimeMillis() + 5000;
+		ByteBuffer retry = null;
+		while (retry == null && System.currentTimeMillis() < deadline) {
+			Thread.sleep (10);
+			synchronized (resent) {
+				if (!resent.isEmpty()) retry = resent.get (0);
+			}
+		}
+		check ("R", retry != null && retry.equals (lost),
+			new ArrayList<String>());
+		if (retry != null) {
+			check ("R", true, accepted (server, copy (retry)), "take 4 4", "take 5 5");
+		}
+		ack.clear();
+		MessageCodec.encodeTag (ack, 1);
+		server.stampAck (ack);
+		ack.flip();
+		MessageCodec.decodeTag (ack);
+		client.accept (ack);
+		int count;
+		synchronized (resent) {
+			count = resent.size();
+		}
+		Thread.sleep (4*client.getTimeout());
+		synchronized (resent) {
+			check ("R", resent.size() == count, new ArrayList<String>());
+		}
+
+		// A new channel takes the sender's next frame as its first.
+		ReliableChannel fresh = new ReliableChannel (sender);
+		ByteBuffer sixth = frame (client, 6, 6);
+		check ("R", true, accepted (fresh, copy (sixth)), "take 6 6");
+
+		// A sender whose peer never acknowledges gives up its oldest frame
+		// once a whole window of 64 is outstanding, and says so.
+		ReliableChannel silent = new ReliableChannel (sender);
+		long overflows = ServerMetrics.get().getReliableOverflows();
+		boolean room = true;
+		for (int i = 0; i < 64; i++) {
+			room &= silent.stamp (unstamped (1, 1), MessageCodec.TAG_LENGTH);
+		}
+		boolean full =
+			!silent.stamp (unstamped (1, 1), MessageCodec.TAG_LENGTH);
+		check ("R", room && full &&
+			ServerMetrics.get().getReliableOverflows() == overflows + 1,
+			new ArrayList<String>());
+	}
+
+	/**
+	 * Send a reliable join of the largest size a client sends through a
+	 * router, with the largest route header, to each kind of shard, and
+	 * check that the shard answers.
+	 */
+	private static void checkRouted() throws Exception {
+		char[] name = new char [MessageCodec.MAX_MESSAGE - 3];
+		Arrays.fill (name, 'x');
+		for (int kind = 0; kind < 2; kind++) {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.bind (new InetSocketAddress ("::1", 0));
+			InetSocketAddress address =
+				(InetSocketAddress) channel.getLocalAddress();
+			final NimRouter router = new NimRouter (channel);
+			ServerConfig config = new ServerConfig();
+			config.router = address;
+			InetSocketAddress shardAddress;
+			if (kind == 0) {
+				DatagramSocket mailbox =
+					new DatagramSocket (new InetSocketAddress ("::1", 0));
+				final MailboxManager shard = new MailboxManager (mailbox);
+				shard.configure (config);
+				shardAddress =
+					(InetSocketAddress) mailbox.getLocalSocketAddress();
+				daemon (new Runnable() {
+					public void run() {
+						try { for (;;) shard.receiveMessage(); }
+						catch (IOException exc) { }
+					}
+				});
+			} else {
+				DatagramChannel shardChannel = DatagramChannel.open();
+				shardChannel.bind (new InetSocketAddress ("::1", 0));
+				final ChannelServer shard = new ChannelServer (shardChannel, 1);
+				shard.configure (config);
+				shardAddress =
+					(InetSocketAddress) shardChannel.getLocalAddress();
+				daemon (new Runnable() {
+					public void run() {
+						try { shard.run(); }
+						catch (IOException exc) { }
+					}
+				});
+			}
+			router.addShard (shardAddress);
+			daemon (new Runnable() {
+				public void run() {
+					try { router.run(); }
+					catch (IOException exc) { }
+				}
+			});
+
+			DatagramSocket mailbox =
+				new DatagramSocket (new InetSocketAddress ("::1", 0));
+			ModelProxy client = new ModelProxy (mailbox, address);
+			Recorder recorder = new Recorder();
+			client.setReliable();
+			client.setModelListener (recorder);
+			client.join (null, new String (name));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (recorder.calls.isEmpty() &&
+					System.currentTimeMillis() < deadline) {
+				Thread.sleep (10);
+			}
+			check ("J", !recorder.calls.isEmpty(), new ArrayList<String>());
+			client.quit();
+			mailbox.close();
+		}
+	}
+
+	/**
+	 * Run a task on a new daemon thread.
+	 */
+	private static void daemon (Runnable task) {
+		Thread thread = new Thread (task);
+		thread.setDaemon (true);
+		thread.start();
+	}
+
+	/**
+	 * Build a tagged reliable datagram carrying one take.
+	 */
+	private static ByteBuffer frame (ReliableChannel channel, int h, int m) {
+		ByteBuffer out = unstamped (h, m);
+		channel.stamp (out, MessageCodec.TAG_LENGTH);
+		return out;
+	}
+
+	/**
+	 * Build a tagged datagram carrying one take, with room for a reliable
+	 * header not yet stamped.
+	 */
+	private static ByteBuffer unstamped (int h, int m) {
+		ByteBuffer out = ByteBuffer.allocate (MessageCodec.MAX_DATAGRAM);
+		MessageCodec.encodeTag (out, 1);
+		out.position (out.position() + ReliableChannel.HEADER_LENGTH);
+		MessageCodec.encodeTake (out, h, m);
+		out.flip();
+		return out;
+	}
+
+	/**
+	 * Hand a tagged reliable datagram to a channel as a view proxy does,
+	 * returning the requests it delivered in order.
+	 */
+	private static List<String> accepted
+		(ReliableChannel channel, ByteBuffer datagram) throws IOException {
+		Recorder recorder = new Recorder();
+		MessageCodec.decodeTag (datagram);
+		if (datagram.get (datagram.position()) != ReliableChannel.RELIABLE)
+			recorder.calls.add ("not reliable");
+		if (channel.accept (datagram)) {
+			MessageCodec.decodeRequest (datagram, null, recorder);
+		}
+		ByteBuffer held;
+		while ((held = channel.nextHeld()) != null) {
+			MessageCodec.decodeRequest (held, null, recorder);
+		}
+		return recorder.calls;
+	}
+
+	/**
+	 * Check one encoded model event decodes to the given call, and that
+	 * its prefixes are refused.
+	 */
+	private static void event (String type, ByteBuffer out, String... calls)
+			throws IOException {
+		out.flip();
+		byte[] bytes = new byte [out.remaining()];
+		out.get (bytes);
+		Recorder recorder = new Recorder();
+		ByteBuffer in = ByteBuffer.wrap (bytes);
+		boolean ok = MessageCodec.decodeEvent (in, recorder) &&
+			!in.hasRemaining();
+		check (type, ok, recorder.calls, calls);
+		for (int length = 0; length < bytes.length; length++) {
+			check (type, truncated (ByteBuffer.wrap (bytes, 0, length), true),
+				new ArrayList<String>());
+		}
+	}
+
+	/**
+	 * Check one encoded request decodes to the given call, and that its
+	 * prefixes are refused.
+	 */
+	private static void request (String type, ByteBuffer out, String call)
+			throws IOException {
+		out.flip();
+		byte[] bytes = new byte [out.remaining()];
+		out.get (bytes);
+		Recorder recorder = new Recorder();
+		ByteBuffer in = ByteBuffer.wrap (bytes);
+		boolean ok = MessageCodec.decodeRequest (in, null, recorder) ==
+			type.charAt (0) && !in.hasRemaining();
+		check (type, ok, recorder.calls, call);
+		for (int length = 0; length < bytes.length; length++) {
+			check (type, truncated (ByteBuffer.wrap (bytes, 0, length), false),
+				new ArrayList<String>());
+		}
+	}
+
+	/**
+	 * Check a 'D' message round trip, its size bound and what can be
+	 * peeked from it.
+	 */
+	private static void delta (int base, int v, int t, int[] scores,
+			int[] heaps, int[] markers) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate (MessageCodec.MAX_DATAGRAM);
+		MessageCodec.encodeDelta (out, base, v, t, scores, heaps.length,
+			heaps, markers);
+		int size = out.position();
+		out.flip();
+		boolean ok = size <= MessageCodec.deltaSize
+				(scores, heaps.length, heaps, markers) &&
+			MessageCodec.peekVersion (out) == v &&
+			MessageCodec.peekBase (out) == base;
+		check ("D", ok, new ArrayList<String>());
+		out.position (size);
+		event ("D", out, "delta " + base + " " + v + " " + t + " " +
+			Arrays.toString (scores) + " " + Arrays.toString (heaps) + " " +
+			Arrays.toString (markers));
+	}
+
+	/**
+	 * Check a 'Z' message round trip, its size bound and what can be
+	 * peeked from it.
+	 */
+	private static void snapshot (int v, int i, int t, int[] heaps,
+			String[] names, int[] scores) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate
+			(MessageCodec.snapshotSize (heaps, names));
+		MessageCodec.encodeSnapshot (out, v, i, t, heaps, names, scores);
+		int size = out.position();
+		out.flip();
+		boolean ok = MessageCodec.peekVersion (out) == v &&
+			MessageCodec.peekBase (out) == -1;
+		check ("Z", ok, new ArrayList<String>());
+		out.position (size);
+		event ("Z", out, "snapshot " + v + " " + i + " " + t + " " +
+			Arrays.toString (heaps) + " " + Arrays.toString (names) + " " +
+			Arrays.toString (scores));
+	}
+
+	/**
+	 * Returns true if decoding a truncated message fails the way a
+	 * malformed datagram should: with an EOFException or a
+	 * UTFDataFormatException.
+	 */
+	private static boolean truncated (ByteBuffer in, boolean event) {
+		try {
+			if (event) {
+				return !MessageCodec.decodeEvent (in, new Recorder());
+			}
+			MessageCodec.decodeRequest (in, null, new Recorder());
+			return false;
+		} catch (EOFException | UTFDataFormatException exc) {
+			return true;
+		} catch (IOException | RuntimeException exc) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns a copy of a buffer's remaining bytes.
+	 */
+	private static ByteBuffer copy (ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate (buffer.remaining());
+		copy.put (buffer.duplicate());
+		copy.flip();
+		return copy;
+	}
+
+	/**
+	 * Count one check, reporting it if the condition is false or the calls
+	 * recorded are not the ones expected.
+	 */
+	private static void check (String type, boolean ok, List<String> calls,
+			String... expected) {
+		++ checks;
+		if (ok && calls.equals (Arrays.asList (expected))) return;
+		++ failures;
+		System.err.println (type + ": expected " + Arrays.asList (expected) +
+			", got " + calls + (ok ? "" : " (failed)"));
+	}
+
+	// Hidden helper classes.
+
+	/**
+	 * Class Recorder is a model listener and view listener that records
+	 * each call it gets.
+	 */
+	private static class Recorder implements ModelListener, ViewListener {
+		public final List<String> calls =
+			Collections.synchronizedList (new ArrayList<String>());
+
+		public void id (int i) { calls.add ("id " + i); }
+		public void name (int i, String n) { calls.add ("name " + i + " " + n); }
+		public void score (int i, int s) { calls.add ("score " + i + " " + s); }
+		public void heap (int h, int m) { calls.add ("heap " + h + " " + m); }
+		public void turn (int i) { calls.add ("turn " + i); }
+		public void win (int i) { calls.add ("win " + i); }
+		public void quit() { calls.add ("quit"); }
+		public void flush() {}
+
+		public void delta (int base, int v, int t, int[] scores,
+				int n, int[] heaps, int[] markers) {
+			calls.add ("delta " + base + " " + v + " " + t + " " +
+				Arrays.toString (scores) + " " +
+				Arrays.toString (Arrays.copyOf (heaps, n)) + " " +
+				Arrays.toString (Arrays.copyOf (markers, n)));
+		}
+
+		public void snapshot (int v, int i, int t, int[] heaps,
+				String[] names, int[] scores) {
+			calls.add ("snapshot " + v + " " + i + " " + t + " " +
+				Arrays.toString (heaps) + " " + Arrays.toString (names) +
+				" " + Arrays.toString (scores));
+		}
+
+		public void join (ViewProxy proxy, String n) {
+			calls.add ("join " + n);
+		}
+
+		public void take (ViewProxy proxy, int h, int m) {
+			calls.add ("take " + h + " " + m);
+		}
+
+		public void newGame() {
+			calls.add ("newGame");
+		}
+
+		public void sync (ViewProxy proxy, int v) {
+			calls.add ("sync " + v);
+		}
+	}
+}
@@ -1,7 +1,50 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Provides server-side model object in Nim game.
+ * <P>
+ * A model is not thread safe. It is confined to one thread at a time:
+ * the server's only thread, or the session's stripe when the session
+ * manager runs sessions on a session executor.
+ * <P>
+ * Every operation that changes the session moves it to a new version. The
+ * model remembers the version at which each heap, score and the turn last
+ * changed, and the version each player last acknowledged, so it reports
+ * to each player only the fields that changed since then, in one delta
+ * message. A player that has no usable version gets a snapshot of the
+ * whole session instead.
+ * <P>
+ * The board is any number of heaps of any size, up to what fits in one
+ * snapshot datagram. A take costs the same on every board: the model keeps
+ * a running count of the markers left, so a win is seen without scanning
+ * the heaps, and a running nim-sum, the exclusive or of the heaps, which
+ * is zero exactly when the player to move loses against best play. It
+ * also keeps a short log of the latest changes, so a delta lists the
+ * heaps that changed without scanning them either. Only a player too far
+ * behind for the log has the heap versions scanned.
+ * <P>
+ * A session's state, from its version and scores to its heaps, their
+ * versions and its log, is one record in a slot of a SessionTable, read and
+ * written in place. Models made by a session manager share its table,
+ * which may keep the records outside the heap; a model made on its own
+ * has a table of one slot. Models on the same board share its starting
+ * heaps, and the arrays a delta is built in belong to the thread, not the
+ * model. A model frees its slot when it quits, and does nothing after.
+ * <P>
+ * A take is checked before it changes anything: it must come from the
+ * player whose turn it is, name a heap on the board, and take at least
+ * one marker and no more than the heap has. Any other take is dropped and
+ * counted, so one bad datagram cannot corrupt or stop a session.
+ * <P>
+ * If the model has an event log, every join, take, win, new game and quit
+ * is appended to it as it happens, and its whole state at each checkpoint.
+ * A model recovered from the log is restored to that state and sends both
+ * players a snapshot of it.
+ * <P>
+ * If the model has a profile store, each game's winner and loser are
+ * queued to be recorded there as the game is won.
  *
  * @author  Martin Suarez
  * @version 12/02/2015
@@ -12,23 +55,324 @@ public class NimModel implements ViewListener {
 	
 	private ModelListener player1, player2;
 	private int id1, id2;
-	private int score1, score2;
 	private String name1, name2;
-	private int current_turn_id;
-	private int[] markers;
+	private int[] initial;
+	private int heaps;
+	private int total;
+	private int initialNimSum;
+	private EventLog eventLog;
+	private int session;
+	private ProfileStore profiles;
+	private boolean ended;
+	
+	// The session's record: its slot in the table, and where the slot is.
+	// Besides the fields, the record holds the version at which each heap,
+	// score and the turn last changed, and the version each player has.
+	private SessionTable table;
+	private int slot;
+	private ByteBuffer state;
+	private int base;
+	
+	// The record's log holds the latest changes, oldest first: the version
+	// in the high half and the heap changed, or -1 for the whole board, in
+	// the low half. Every change after the log floor is there.
+	private static final int LOG = SessionTable.LOG_SIZE;
+	
+	// Arrays of changed fields handed to delta(), reused by every model
+	// on the same thread.
+	private static final ThreadLocal<Scratch> scratch =
+		new ThreadLocal<Scratch>() {
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+	
+	/**
+	 * Result of checking a take: the take is legal.
+	 */
+	public static final int LEGAL = 0;
+	
+	/**
+	 * Result of checking a take: it is not the sender's turn, or the
+	 * session has no opponent yet.
+	 */
+	public static final int NOT_YOUR_TURN = 1;
+	
+	/**
+	 * Result of checking a take: there is no such heap.
+	 */
+	public static final int NO_SUCH_HEAP = 2;
+	
+	/**
+	 * Result of checking a take: the number of markers is less than one or
+	 * more than the heap has.
+	 */
+	public static final int BAD_MARKERS = 3;
+	
+	/**
+	 * The board of the classic game: heaps of 3, 4 and 5 markers.
+	 */
+	public static final int[] DEFAULT_BOARD = new int[] { 3, 4, 5 };
 	
 	// Hidden constructors
 	/**
-	 * Construct new Nim model.
+	 * Construct new Nim model on the default board.
 	 */
 	public NimModel() {
-		markers = new int[3];
-		markers[0] = 3;
-		markers[1] = 4;
-		markers[2] = 5;
+		this( DEFAULT_BOARD );
+	}
+	
+	/**
+	 * Construct new Nim model on a given board.
+	 *
+	 * @param  board  Markers in each heap at the start of a game.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the board has no heaps, a heap with no markers, or does
+	 *     not fit in a snapshot.
+	 */
+	public NimModel( int[] board ) {
+		this( board, null );
+	}
+	
+	/**
+	 * Construct new Nim model on a given board, with its state in a slot
+	 * of a session table.
+	 *
+	 * @param  board  Markers in each heap at the start of a game.
+	 * @param  table  Session table for boards of as many heaps, or null
+	 *                for a table of the model's own.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the board has no heaps, a heap with no markers, or does
+	 *     not fit in a snapshot, or the table is for another number of
+	 *     heaps.
+	 */
+	public NimModel( int[] board, SessionTable table ) {
+		this( board, table, false );
+	}
+	
+	/**
+	 * Construct new Nim model on a given board, with its state in a slot
+	 * of a session table, keeping the caller's board array rather than a
+	 * copy if it is shared. A session manager shares one board among all
+	 * the sessions it starts on it, so a million sessions do not hold a
+	 * million copies.
+	 *
+	 * @param  board   Markers in each heap at the start of a game.
+	 * @param  table   Session table for boards of as many heaps, or null
+	 *                 for a table of the model's own.
+	 * @param  shared  True if the caller never changes the board, so the
+	 *                 model may keep it; false to copy it.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the board has no heaps, a heap with no markers, or does
+	 *     not fit in a snapshot, or the table is for another number of
+	 *     heaps.
+	 */
+	public NimModel( int[] board, SessionTable table, boolean shared ) {
+		if (board.length == 0) {
+			throw new IllegalArgumentException( "Board has no heaps" );
+		}
+		long sum = 0;
+		int xor = 0;
+		for (int m : board) {
+			if (m < 1) {
+				throw new IllegalArgumentException
+					( "Heap of " + m + " markers" );
+			}
+			sum += m;
+			xor ^= m;
+		}
+		if (sum > Integer.MAX_VALUE ||
+				MessageCodec.boardSize( board ) > MessageCodec.MAX_BOARD) {
+			throw new IllegalArgumentException( "Board too large" );
+		}
+		if (table == null) {
+			table = new SessionTable( board.length, 1, false );
+		} else if (table.heaps() != board.length) {
+			throw new IllegalArgumentException
+				( "Table is for " + table.heaps() + " heaps" );
+		}
+		initial = shared ? board : board.clone();
+		heaps = board.length;
+		total = (int) sum;
+		initialNimSum = xor;
+		this.table = table;
+		slot = table.allocate();
+		state = table.chunk( slot );
+		base = table.offset( slot );
+		for (int h = 0; h < heaps; h++) {
+			setMarkers( h, board[h] );
+		}
+		put( SessionTable.REMAINING, total );
+		put( SessionTable.NIM_SUM, xor );
+	}
+	
+	/**
+	 * Parse a board: a comma separated list of heaps, each the number of
+	 * markers in it, or <I>count</I>*<I>markers</I> for that many heaps of
+	 * that many markers. For example, "3,4,5" or "200*1000".
+	 *
+	 * @param  spec  Board.
+	 * @return  Markers in each heap.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the board is not well formed.
+	 */
+	public static int[] parseBoard( String spec ) {
+		int[] board = new int[0];
+		for (String heap : spec.split( "," )) {
+			String[] parts = heap.trim().split( "\\*" );
+			if (parts.length > 2) {
+				throw new IllegalArgumentException( "Bad heap: " + heap );
+			}
+			int count = parts.length == 2 ?
+				Integer.parseInt( parts[0].trim() ) : 1;
+			int m = Integer.parseInt( parts[parts.length - 1].trim() );
+			if (count < 1 || count > MessageCodec.MAX_BOARD) {
+				throw new IllegalArgumentException( "Bad heap: " + heap );
+			}
+			int n = board.length;
+			board = Arrays.copyOf( board, n + count );
+			Arrays.fill( board, n, n + count, m );
+		}
+		return board;
+	}
+	
+	/**
+	 * Returns the number of heaps on the board.
+	 */
+	public int getHeapCount() {
+		return heaps;
+	}
+	
+	/**
+	 * Returns the markers in each heap at the start of a game.
+	 */
+	public int[] getBoard() {
+		return initial.clone();
+	}
+	
+	/**
+	 * Returns the number of markers left on the board.
+	 */
+	public int getRemaining() {
+		return get( SessionTable.REMAINING );
+	}
+	
+	/**
+	 * Returns the nim-sum of the board: the exclusive or of the markers
+	 * left in every heap. The player to move can force a win exactly when
+	 * it is not zero.
+	 */
+	public int getNimSum() {
+		return get( SessionTable.NIM_SUM );
+	}
+	
+	/**
+	 * Returns the number of markers left in a heap.
+	 *
+	 * @param  h    Heap number
+	 */
+	public int getMarkers( int h ) {
+		return markers( h );
 	}
 	
 	// Exported operations
+	/**
+	 * Append this session's events to an event log from now on.
+	 *
+	 * @param  eventLog  Event log.
+	 * @param  session   Session's id in the log.
+	 */
+	public void setEventLog( EventLog eventLog, int session ) {
+		this.eventLog = eventLog;
+		this.session = session;
+	}
+	
+	/**
+	 * Record the end of each game in the players' profiles from now on.
+	 *
+	 * @param  profiles  Profile store, or null for none.
+	 */
+	public void setProfiles( ProfileStore profiles ) {
+		this.profiles = profiles;
+	}
+	
+	/**
+	 * Append this session's whole state to the event log's current
+	 * checkpoint, unless the session has ended.
+	 */
+	public void checkpoint() {
+		if (eventLog == null || ended || player1 == null) return;
+		String[] names = player2 == null ?
+			new String[] { name1 } : new String[] { name1, name2 };
+		ModelListener[] players = player2 == null ?
+			new ModelListener[] { player1 } :
+			new ModelListener[] { player1, player2 };
+		eventLog.checkpoint( session, get( SessionTable.VERSION ),
+			get( SessionTable.TURN ), scores(), initial, heaps(), names,
+			players );
+	}
+	
+	/**
+	 * Restore a session recovered from an event log, and send each player
+	 * a snapshot of it. Every field counts as changed at the version given,
+	 * so each player's next delta carries the whole state until it
+	 * acknowledges a later version.
+	 *
+	 * @param  v        Version to restore at.
+	 * @param  t        Id of the player whose turn it is.
+	 * @param  scores   Player scores.
+	 * @param  heaps    Markers left in each heap.
+	 * @param  p1       Player 1.
+	 * @param  n1       Player 1's name.
+	 * @param  p2       Player 2, or null if player 1 is still waiting.
+	 * @param  n2       Player 2's name, or null.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void restore( int v, int t, int[] scores, int[] heaps,
+						 ModelListener p1, String n1,
+						 ModelListener p2, String n2 ) throws IOException {
+		player1 = p1;
+		id1 = 1;
+		name1 = n1;
+		put( SessionTable.SCORE1, scores[0] );
+		player2 = p2;
+		id2 = p2 == null ? 0 : 2;
+		name2 = n2;
+		put( SessionTable.SCORE2, scores[1] );
+		put( SessionTable.TURN, t );
+		int remaining = 0;
+		int nimSum = 0;
+		for (int h = 0; h < this.heaps; h++) {
+			setMarkers( h, heaps[h] );
+			setHeapVersion( h, v );
+			remaining += heaps[h];
+			nimSum ^= heaps[h];
+		}
+		put( SessionTable.REMAINING, remaining );
+		put( SessionTable.NIM_SUM, nimSum );
+		put( SessionTable.VERSION, v );
+		put( SessionTable.SCORE1_VERSION, v );
+		put( SessionTable.SCORE2_VERSION, v );
+		put( SessionTable.TURN_VERSION, v );
+		put( SessionTable.LOG_FLOOR, v );
+		put( SessionTable.LOG_COUNT, 0 );
+		put( SessionTable.ACK1, 0 );
+		put( SessionTable.ACK2, 0 );
+		try {
+			snapshot( player1, id1 );
+			if (player2 != null)
+				snapshot( player2, id2 );
+			flush();
+		} catch (IOException exc) {
+		}
+	}
+	
 	/**
 	 * Assigns one of the players. 
 	 * @param 	ml		Model listener
@@ -37,36 +381,33 @@ public class NimModel implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public synchronized void addPlayer( ModelListener ml, boolean is_p1,
+	public void addPlayer( ModelListener ml, boolean is_p1,
 									    String name) throws IOException {
 		try {
 			// If creating player 1	
 			if (is_p1) {
 				player1 = ml;
 				id1 = 1;
-				score1 = 0;
+				put( SessionTable.SCORE1, 0 );
 				name1 = name;
-				player1.id( id1 );
-				player1.name( id1, name1 );
-				player1.score(id1, score1);
 			} 
 			// If creating player 2
 			else {
 				player2 = ml;
 				id2 = 2;
-				score2 = 0;
+				put( SessionTable.SCORE2, 0 );
 				name2 = name;
-				current_turn_id = id1;
-				player2.id( id2 );
-				player2.name( id2, name2 );
-				player2.score(id2, score2);
-				player1.name( id2, name2 );
-				player2.name( id1, name1 );
-				player1.score( id2, score2);
-				player2.score( id1, score1);
-				player1.turn( current_turn_id );
-				player2.turn( current_turn_id );
+				put( SessionTable.TURN, id1 );
 			}
+			if (eventLog != null)
+				eventLog.join( session, is_p1 ? 1 : 2, name, ml );
+			// One snapshot per player says everything the separate id, name,
+			// score and turn events used to.
+			put( SessionTable.TURN_VERSION, advance() );
+			snapshot( player1, id1 );
+			if (player2 != null)
+				snapshot( player2, id2 );
+			flush();
 		} catch (IOException exc) {
 		}
 	}
@@ -76,7 +417,7 @@ public class NimModel implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public synchronized boolean needsPlayer( ) {
+	public boolean needsPlayer( ) {
 		boolean result = true;
 		if (player2 == null) {
 			result = true;
@@ -94,7 +435,7 @@ public class NimModel implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public synchronized boolean isInGame(ViewProxy proxy) throws IOException {
+	public boolean isInGame(ViewProxy proxy) throws IOException {
 		return (proxy == player1 || proxy == player2);
 	}
 	
@@ -110,52 +451,134 @@ public class NimModel implements ViewListener {
 	public void join(ViewProxy proxy, String n) throws IOException {
 	}
 	
+	/**
+	 * Note the version a player has, and bring the player up to date if it
+	 * is behind: with a delta if the version is one this model reported,
+	 * with a snapshot otherwise.
+	 *
+	 * @param  proxy    Reference to view proxy object.
+	 * @param  v        Version the player has, or -1 to always get a
+	 *                  snapshot.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void sync(ViewProxy proxy, int v) throws IOException {
+		if (ended) return;
+		int id = proxy == player1 ? id1 : proxy == player2 ? id2 : 0;
+		int version = get( SessionTable.VERSION );
+		if (id == 0 || v == version) {
+			acknowledge( id, v );
+			return;
+		}
+		try {
+			if (v >= 0 && v < version) {
+				acknowledge( id, v );
+				delta( proxy, v );
+			} else {
+				snapshot( proxy, id );
+			}
+			proxy.flush();
+		} catch (IOException exc) {
+		}
+	}
+	
+	/**
+	 * Check a take without making it.
+	 *
+	 * @param  player   The player taking the markers.
+	 * @param  h    Heap number
+	 * @param  m  	Markers number
+	 * @return  LEGAL, NOT_YOUR_TURN, NO_SUCH_HEAP or BAD_MARKERS.
+	 */
+	public int check(ModelListener player, int h, int m) {
+		if (ended || player2 == null || player == null ||
+				(player == player1 ? id1 : player == player2 ? id2 : 0)
+					!= get( SessionTable.TURN )) {
+			return NOT_YOUR_TURN;
+		}
+		if (h < 0 || h >= heaps) {
+			return NO_SUCH_HEAP;
+		}
+		if (m < 1 || m > markers( h )) {
+			return BAD_MARKERS;
+		}
+		return LEGAL;
+	}
+	
 	/**
 	 * Specify number of 
 	 * markers taken from heap h.
 	 *
+	 * @param  proxy    Reference to view proxy object.
+	 * @param  h    Heap number
+	 * @param  m  	Markers number
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void take(ViewProxy proxy, int h, int m) throws IOException {
+		move( proxy, h, m );
+	}
+	
+	/**
+	 * Take markers from heap h on behalf of a player, such as a computer
+	 * player, that is not behind a view proxy.
+	 *
+	 * @param  player   The player taking the markers.
 	 * @param  h    Heap number
 	 * @param  m  	Markers number
 	 *
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public synchronized void take(int h, int m) throws IOException {
+	public void move(ModelListener player, int h, int m) throws IOException {
+		if (check( player, h, m ) != LEGAL) {
+			ServerMetrics.get().rejectedMove();
+			return;
+		}
+		long start = System.nanoTime();
+		if (eventLog != null) eventLog.take( session, h, m );
+		int version = advance();
 		// Update stacks
-		markers[h] -= m;
-		// Report update to clients
-		try {	
-			player1.heap( h, markers[h] );
-			player2.heap( h, markers[h] );
-			
-			// Check if game is won
-			if (markers[0] == 0 && markers[1] == 0 && markers[2] == 0 ) {
-				if (current_turn_id == id1 ) {
-					score1++;
-					player1.score(id1, score1);
-					player2.score(id1, score1);
-					player1.win( id1 );
-					player2.win( id1 );
-				} else {
-					score2++;
-					player1.score(id2, score2);
-					player2.score(id2, score2);
-					player1.win( id2 );
-					player2.win( id2 );
-				}
-			} 
-			
-			// Switch current turn to other player
-			if (current_turn_id == id1 ) {
-				current_turn_id = id2;
+		int before = markers( h );
+		setMarkers( h, before - m );
+		put( SessionTable.NIM_SUM,
+			 get( SessionTable.NIM_SUM ) ^ before ^ (before - m) );
+		int remaining = get( SessionTable.REMAINING ) - m;
+		put( SessionTable.REMAINING, remaining );
+		setHeapVersion( h, version );
+		log( h, version );
+		int turn = get( SessionTable.TURN );
+		int winner = 0;
+		// Check if game is won
+		if (remaining == 0) {
+			winner = turn;
+			if (winner == id1) {
+				put( SessionTable.SCORE1, get( SessionTable.SCORE1 ) + 1 );
+				put( SessionTable.SCORE1_VERSION, version );
 			} else {
-				current_turn_id = id1;
+				put( SessionTable.SCORE2, get( SessionTable.SCORE2 ) + 1 );
+				put( SessionTable.SCORE2_VERSION, version );
 			}
-			player1.turn( current_turn_id );
-			player2.turn( current_turn_id );
-			
+			if (eventLog != null) eventLog.win( session, winner );
+			if (profiles != null) record( winner );
+		}
+		// Switch current turn to other player
+		put( SessionTable.TURN, turn == id1 ? id2 : id1 );
+		put( SessionTable.TURN_VERSION, version );
+		// Report update to clients
+		try {
+			delta( player1, get( SessionTable.ACK1 ) );
+			delta( player2, get( SessionTable.ACK2 ) );
+			if (winner != 0) {
+				player1.win( winner );
+				player2.win( winner );
+			}
+			flush();
 		} catch (IOException exc) {
 		}
+		ServerMetrics.get().take( System.nanoTime() - start );
 	}
 	
 	/**
@@ -164,22 +587,27 @@ public class NimModel implements ViewListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public synchronized void newGame() throws IOException{
-		markers[0] = 3;
-		markers[1] = 4;
-		markers[2] = 5;
-		current_turn_id = id1;
+	public void newGame() throws IOException{
+		if (ended || player2 == null) return;
+		long start = System.nanoTime();
+		if (eventLog != null) eventLog.newGame( session );
+		int version = advance();
+		for (int h = 0; h < heaps; h++) {
+			setMarkers( h, initial[h] );
+			setHeapVersion( h, version );
+		}
+		put( SessionTable.REMAINING, total );
+		put( SessionTable.NIM_SUM, initialNimSum );
+		log( -1, version );
+		put( SessionTable.TURN, id1 );
+		put( SessionTable.TURN_VERSION, version );
 		try {
-			player1.heap(0, markers[0]);
-			player2.heap(0, markers[0]);
-			player1.heap(1, markers[1]);
-			player2.heap(1, markers[1]);
-			player1.heap(2, markers[2]);
-			player2.heap(2, markers[2]);
-			player1.turn( id1 );
-			player2.turn( id1 );
+			delta( player1, get( SessionTable.ACK1 ) );
+			delta( player2, get( SessionTable.ACK2 ) );
+			flush();
 		} catch (IOException exc) {
 		}
+		ServerMetrics.get().newGame( System.nanoTime() - start );
 	}
 	
 	/**
@@ -189,11 +617,266 @@ public class NimModel implements ViewListener {
 	 *     Thrown if an I/O error occurred.
 	 */
 	public void quit() throws IOException {
-		player1.quit();
-		if (player2 != null) 
-			player2.quit();
+		if (ended) return;
+		ended = true;
+		try {
+			if (eventLog != null) eventLog.quit( session );
+			player1.quit();
+			if (player2 != null) 
+				player2.quit();
+			flush();
+		} finally {
+			table.free( slot );
+		}
+	}
+	
+	// Hidden operations
+	/**
+	 * Send a player a snapshot of the whole session.
+	 *
+	 * @param  ml     Player's model listener.
+	 * @param  id     Player's id.
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void snapshot( ModelListener ml, int id ) throws IOException {
+		ml.snapshot( get( SessionTable.VERSION ), id, get( SessionTable.TURN ),
+			heaps(), new String[] { name1, name2 == null ? "" : name2 },
+			scores() );
+	}
+	
+	/**
+	 * Report to a player every field that changed after a given version.
+	 * Unchanged turn and scores are reported as -1.
+	 *
+	 * @param  ml     Player's model listener.
+	 * @param  base   Version the player has.
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void delta( ModelListener ml, int base ) throws IOException {
+		Scratch changed = scratch.get();
+		int n = collect( base, changed );
+		changed.scores[0] = get( SessionTable.SCORE1_VERSION ) > base ?
+			get( SessionTable.SCORE1 ) : -1;
+		changed.scores[1] = get( SessionTable.SCORE2_VERSION ) > base ?
+			get( SessionTable.SCORE2 ) : -1;
+		int t = get( SessionTable.TURN_VERSION ) > base ?
+			get( SessionTable.TURN ) : -1;
+		ml.delta( base, get( SessionTable.VERSION ), t, changed.scores,
+				  n, changed.ids, changed.markers );
+	}
+	
+	/**
+	 * Gather the heaps that changed after a given version into the ids of
+	 * a scratch, in ascending order, and their markers into its markers.
+	 *
+	 * @param  base     Version the player has.
+	 * @param  changed  Scratch arrays.
+	 * @return  The number of heaps that changed.
+	 */
+	private int collect( int base, Scratch changed ) {
+		if (changed.ids.length < heaps) {
+			changed.ids = new int[heaps];
+			changed.markers = new int[heaps];
+		}
+		int[] changedIds = changed.ids;
+		int n = 0;
+		if (base < get( SessionTable.LOG_FLOOR )) {
+			for (int h = 0; h < heaps; h++) {
+				if (heapVersion( h ) > base) changedIds[n++] = h;
+			}
+		} else {
+			int logCount = get( SessionTable.LOG_COUNT );
+			for (int k = logCount - 1;
+				 k >= 0 && k >= logCount - LOG; k--) {
+				long entry = logEntry( k );
+				if ((int) (entry >> 32) <= base) break;
+				int h = (int) entry;
+				if (h < 0) {
+					// A new game changed every heap.
+					n = heaps;
+					for (int i = 0; i < n; i++) changedIds[i] = i;
+					break;
+				}
+				// Insert in order, once.
+				int i = n;
+				while (i > 0 && changedIds[i-1] > h) i--;
+				if (i > 0 && changedIds[i-1] == h) continue;
+				System.arraycopy( changedIds, i, changedIds, i + 1, n - i );
+				changedIds[i] = h;
+				n++;
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			changed.markers[i] = markers( changedIds[i] );
+		}
+		return n;
+	}
+	
+	/**
+	 * Note that a heap, or the whole board, changed in the current version.
+	 *
+	 * @param  h        Heap id, or -1 for every heap.
+	 * @param  version  Current version.
+	 */
+	private void log( int h, int version ) {
+		int logCount = get( SessionTable.LOG_COUNT );
+		if (logCount >= LOG) {
+			put( SessionTable.LOG_FLOOR, (int) (logEntry( logCount ) >> 32) );
+		}
+		state.putLong( base + SessionTable.LOG + 8*(logCount & (LOG - 1)),
+			(long) version << 32 | (h & 0xffffffffL) );
+		put( SessionTable.LOG_COUNT, logCount + 1 );
+	}
+	
+	/**
+	 * Returns an entry of the change log.
+	 *
+	 * @param  k      Number of the change; only the last LOG are kept.
+	 */
+	private long logEntry( int k ) {
+		return state.getLong( base + SessionTable.LOG + 8*(k & (LOG - 1)) );
+	}
+	
+	/**
+	 * Note that a player has acknowledged a version.
+	 *
+	 * @param  id     Player's id, or 0 for none.
+	 * @param  v      Version.
+	 */
+	private void acknowledge( int id, int v ) {
+		if (v < 0 || v > get( SessionTable.VERSION )) return;
+		if (id == id1 && v > get( SessionTable.ACK1 )) {
+			put( SessionTable.ACK1, v );
+		} else if (id == id2 && v > get( SessionTable.ACK2 )) {
+			put( SessionTable.ACK2, v );
+		}
+	}
+	
+	/**
+	 * Queue a won game to be recorded in the players' profiles, off the
+	 * session's thread. The computer has none.
+	 *
+	 * @param  winner   Winner's id.
+	 */
+	private void record( int winner ) {
+		String n2 = player2 instanceof ComputerPlayer ? null : name2;
+		if (winner == id1) {
+			profiles.record( name1, n2 );
+		} else {
+			profiles.record( n2, name1 );
+		}
+	}
+	
+	/**
+	 * Deliver the events of the current operation to both players.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void flush() throws IOException {
+		player1.flush();
+		if (player2 != null)
+			player2.flush();
+	}
+	
+	/**
+	 * Move the session to a new version.
+	 *
+	 * @return  The new version.
+	 */
+	private int advance() {
+		int version = get( SessionTable.VERSION ) + 1;
+		put( SessionTable.VERSION, version );
+		return version;
+	}
+	
+	/**
+	 * Returns a copy of the markers left in each heap.
+	 */
+	private int[] heaps() {
+		int[] heaps = new int[this.heaps];
+		for (int h = 0; h < heaps.length; h++) {
+			heaps[h] = markers( h );
+		}
+		return heaps;
+	}
+	
+	/**
+	 * Returns the players' scores.
+	 */
+	private int[] scores() {
+		return new int[] { get( SessionTable.SCORE1 ),
+						   get( SessionTable.SCORE2 ) };
+	}
+	
+	/**
+	 * Returns an int field of the session's record.
+	 *
+	 * @param  field  Field's offset in the record.
+	 */
+	private int get( int field ) {
+		return state.getInt( base + field );
+	}
+	
+	/**
+	 * Set an int field of the session's record.
+	 *
+	 * @param  field  Field's offset in the record.
+	 * @param  value  New value.
+	 */
+	private void put( int field, int value ) {
+		state.putInt( base + field, value );
 	}
 	
+	/**
+	 * Returns the markers left in a heap.
+	 *
+	 * @param  h      Heap id.
+	 */
+	private int markers( int h ) {
+		return state.getInt( base + SessionTable.MARKERS + 4*h );
+	}
 	
+	/**
+	 * Set the markers left in a heap.
+	 *
+	 * @param  h      Heap id.
+	 * @param  m      Markers.
+	 */
+	private void setMarkers( int h, int m ) {
+		state.putInt( base + SessionTable.MARKERS + 4*h, m );
+	}
+	
+	/**
+	 * Returns the version at which a heap last changed.
+	 *
+	 * @param  h      Heap id.
+	 */
+	private int heapVersion( int h ) {
+		return state.getInt( base + table.heapVersion( h ) );
+	}
+	
+	/**
+	 * Set the version at which a heap last changed.
+	 *
+	 * @param  h      Heap id.
+	 * @param  v      Version.
+	 */
+	private void setHeapVersion( int h, int v ) {
+		state.putInt( base + table.heapVersion( h ), v );
+	}
+	
+	// Hidden helper classes.
+	
+	/**
+	 * Class Scratch holds the arrays of changed fields a delta is built in.
+	 */
+	private static class Scratch {
+		public int[] ids = new int[0];
+		public int[] markers = new int[0];
+		public int[] scores = new int[2];
+	}
 	
 }
\ No newline at end of file
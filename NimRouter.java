@@ -0,0 +1,560 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class NimRouter spreads the sessions of the Nim network game over
+ * several NimServer processes, its shards. Clients send every datagram to
+ * the router; it forwards each one to the shard that owns the client, and
+ * forwards the shard's replies back to the client. Each shard matches the
+ * players it owns and plays their sessions on its own.
+ * Usage: java NimRouter <I>host</I> <I>port</I> <I>shardhost</I>:<I>shardport</I> ...
+ * <P>
+ * A joining client is sent to the shard found for its address on a
+ * consistent hash ring, where each shard has POINTS points, and is pinned
+ * there: every later datagram from the client goes to the same shard, for
+ * as long as the shard keeps the client. A shard tells the router when it
+ * drops a client, because the client quit or was evicted, and only then
+ * is the pin removed; a client that quits and joins again is placed
+ * afresh. So adding or removing a shard changes where new joins go, and
+ * sessions already under way, on any shard still there, carry on
+ * undisturbed. While the router is running, a line
+ * <TT>+</TT><I>host</I>:<I>port</I> on its standard input adds a shard
+ * and <TT>-</TT><I>host</I>:<I>port</I> removes one.
+ * <P>
+ * A datagram for a shard gets a route header naming the client in front
+ * of it, and a shard's reply carries the same header, so the router knows
+ * where to send it without looking anything up; each shard runs with
+ * <TT>nim.router</TT> naming the router. A datagram is received into a
+ * buffer with room for the header in front and sent from there, so it is
+ * never copied. Clients sharing a socket are pinned by their tag.
+ * <P>
+ * Each shard reports how many of its players are waiting for an
+ * opponent. A joining player whose own shard has no one waiting is sent
+ * instead to a shard where someone is, so the last waiting players on
+ * different shards still find each other. The router counts each join it
+ * sends toward a shard's waiting players until the shard's next report.
+ * <P>
+ * System property <TT>nim.routerIdle</TT>, if set, gives the milliseconds
+ * after which a silent client's pin is removed even though its shard has
+ * not dropped it, as a backstop for lost notices; set it longer than the
+ * shards' idle timeout (default 0, never).
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class NimRouter {
+
+	/**
+	 * Points on the hash ring for each shard.
+	 */
+	public static final int POINTS = 64;
+
+	// Hidden data members.
+	private DatagramChannel channel;
+	private volatile Ring ring = new Ring (new Shard [0]);
+	private ByteBuffer buffer = ByteBuffer.allocateDirect
+		(MessageCodec.MAX_ROUTE + MessageCodec.MAX_DATAGRAM);
+	private LinkedHashMap<SocketAddress,Pin> pins =
+		new LinkedHashMap<SocketAddress,Pin> (16, 0.75f, true);
+	private long idleMillis;
+	private long nextSweep;
+	private volatile long forwarded;
+	private volatile long replies;
+	private volatile long redirects;
+	private volatile long dropped;
+	private volatile int pinned;
+
+	// A notice that a shard dropped a client is ignored if the client
+	// joined this recently, since it may be about an earlier session.
+	private static final long JOIN_GRACE = 1000;
+
+	// Exported constructors.
+	/**
+	 * Construct a new router with no shards.
+	 *
+	 * @param  channel  Bound datagram channel clients and shards send to.
+	 */
+	public NimRouter (DatagramChannel channel) {
+		this.channel = channel;
+	}
+
+	// Exported operations.
+	/**
+	 * Main program.
+	 */
+	public static void main (String[] args) throws Exception {
+		if (args.length < 3) usage();
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind (new InetSocketAddress
+			(args[0], Integer.parseInt (args[1])));
+		final NimRouter router = new NimRouter (channel);
+		router.setIdleTimeout (Long.getLong ("nim.routerIdle", 0));
+		for (int i = 2; i < args.length; i++) {
+			router.addShard (parseAddress (args[i]));
+		}
+		Thread control = new Thread() {
+			public void run() {
+				router.control (new BufferedReader
+					(new InputStreamReader (System.in)));
+			}
+		};
+		control.setDaemon (true);
+		control.start();
+		router.run();
+	}
+
+	/**
+	 * Parse an address given as <I>host</I>:<I>port</I>.
+	 *
+	 * @param  spec  Address.
+	 * @return  Socket address.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the address is not well formed.
+	 */
+	public static InetSocketAddress parseAddress (String spec) {
+		int colon = spec.lastIndexOf (':');
+		if (colon <= 0) {
+			throw new IllegalArgumentException ("Bad address: " + spec);
+		}
+		return new InetSocketAddress (spec.substring (0, colon),
+			Integer.parseInt (spec.substring (colon + 1)));
+	}
+
+	/**
+	 * Set how long a client's pin is kept after it was last heard from,
+	 * even though its shard has not dropped it.
+	 *
+	 * @param  millis  Idle timeout in milliseconds, or 0 for none.
+	 */
+	public synchronized void setIdleTimeout (long millis) {
+		this.idleMillis = millis;
+	}
+
+	/**
+	 * Add a shard. Clients on the arcs of the ring it takes over join it
+	 * from now on; clients already playing stay where they are.
+	 *
+	 * @param  address  Shard's address.
+	 */
+	public synchronized void addShard (InetSocketAddress address) {
+		if (ring.byAddress.containsKey (address)) return;
+		Shard[] shards = Arrays.copyOf (ring.shards, ring.shards.length + 1);
+		shards[shards.length - 1] = new Shard (address);
+		ring = new Ring (shards);
+	}
+
+	/**
+	 * Remove a shard. Its clients are sent to the next shard on the ring
+	 * from now on.
+	 *
+	 * @param  address  Shard's address.
+	 */
+	public synchronized void removeShard (InetSocketAddress address) {
+		Shard gone = ring.byAddress.get (address);
+		if (gone == null) return;
+		gone.removed = true;
+		List<Shard> shards = new ArrayList<Shard> (Arrays.asList (ring.shards));
+		shards.remove (gone);
+		ring = new Ring (shards.toArray (new Shard [shards.size()]));
+	}
+
+	/**
+	 * Returns the addresses of the shards.
+	 */
+	public List<InetSocketAddress> getShards() {
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		for (Shard shard : ring.shards) {
+			addresses.add (shard.address);
+		}
+		return addresses;
+	}
+
+	/**
+	 * Returns the number of datagrams forwarded to shards.
+	 */
+	public long getForwarded() {
+		return forwarded;
+	}
+
+	/**
+	 * Returns the number of replies forwarded to clients.
+	 */
+	public long getReplies() {
+		return replies;
+	}
+
+	/**
+	 * Returns the number of joins sent to a shard other than the client's
+	 * own, to meet a waiting player.
+	 */
+	public long getRedirects() {
+		return redirects;
+	}
+
+	/**
+	 * Returns the number of datagrams dropped: malformed, or received while
+	 * there are no shards.
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Returns the number of clients pinned to a shard.
+	 */
+	public int getPinned() {
+		return pinned;
+	}
+
+	/**
+	 * Forward datagrams forever.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void run() throws IOException {
+		for (;;) {
+			buffer.clear();
+			buffer.position (MessageCodec.MAX_ROUTE);
+			SocketAddress sender = channel.receive (buffer);
+			buffer.limit (buffer.position());
+			buffer.position (MessageCodec.MAX_ROUTE);
+			Ring current = ring;
+			Shard shard = current.byAddress.get (sender);
+			try {
+				if (shard != null) {
+					fromShard (shard);
+				} else {
+					toShard (current, (InetSocketAddress) sender);
+				}
+			} catch (IOException exc) {
+				++ dropped;
+			}
+			sweep();
+		}
+	}
+
+	// Hidden operations.
+	/**
+	 * Forward a shard's reply to its client, unpin a client the shard has
+	 * dropped, or note the shard's waiting report.
+	 *
+	 * @param  shard  Shard the datagram came from.
+	 *
+	 * @exception  IOException
+	 *     Thrown if the datagram is malformed or an I/O error occurred.
+	 */
+	private void fromShard (Shard shard) throws IOException {
+		if (MessageCodec.isRouted (buffer)) {
+			InetSocketAddress client = MessageCodec.decodeRoute (buffer);
+			if (MessageCodec.isGone (buffer)) {
+				SocketAddress key = key (client);
+				Pin pin = pins.get (key);
+				if (pin != null && pin.shard == shard && (pin.quitting ||
+						System.currentTimeMillis() - pin.joined >= JOIN_GRACE)) {
+					pins.remove (key);
+					pinned = pins.size();
+				}
+				return;
+			}
+			channel.send (buffer, client);
+			++ replies;
+		} else if (buffer.remaining() == MessageCodec.WAITING_LENGTH &&
+				buffer.get (buffer.position()) == MessageCodec.WAITING) {
+			shard.waiting = buffer.getInt (buffer.position() + 1);
+		} else {
+			++ dropped;
+		}
+	}
+
+	/**
+	 * Forward a client's datagram to the shard it is pinned to. A join from
+	 * a client not pinned, or that quit, goes to the shard that owns the
+	 * client or to a shard where a player is waiting, and pins it there; a
+	 * datagram from any other client goes to the shard that owns it.
+	 *
+	 * @param  current  Current ring.
+	 * @param  client   Client's mailbox address.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	private void toShard (Ring current, InetSocketAddress client)
+			throws IOException {
+		if (current.shards.length == 0 || MessageCodec.isRouted (buffer)) {
+			// No shard, or a reply from a shard since removed.
+			++ dropped;
+			return;
+		}
+		long now = System.currentTimeMillis();
+		boolean join = MessageCodec.isJoin (buffer);
+		SocketAddress key = key (client);
+		Pin pin = pins.get (key);
+		if (pin != null && (pin.shard.removed || (join && pin.quitting))) {
+			pins.remove (key);
+			pin = null;
+		}
+		Shard shard;
+		if (pin != null) {
+			shard = pin.shard;
+			pin.lastActivity = now;
+			if (join) {
+				pin.joined = now;
+			} else if (MessageCodec.isQuit (buffer)) {
+				pin.quitting = true;
+			}
+		} else {
+			shard = current.owner (hash (client));
+			if (join) {
+				shard = meet (current, shard);
+				pin = new Pin (shard);
+				pin.lastActivity = pin.joined = now;
+				pins.put (key, pin);
+			}
+		}
+		pinned = pins.size();
+		int start = MessageCodec.MAX_ROUTE - MessageCodec.routeLength (client);
+		buffer.position (start);
+		MessageCodec.encodeRoute (buffer, client);
+		buffer.position (start);
+		channel.send (buffer, shard.address);
+		++ forwarded;
+	}
+
+	/**
+	 * Returns the shard a joining client should play on: its own if a
+	 * player is waiting there or nowhere else, otherwise the shard with
+	 * the most players waiting.
+	 *
+	 * @param  current  Current ring.
+	 * @param  own      Shard that owns the client.
+	 */
+	private Shard meet (Ring current, Shard own) {
+		Shard shard = own;
+		if (own.waiting <= 0) {
+			for (Shard other : current.shards) {
+				if (other.waiting > shard.waiting) shard = other;
+			}
+		}
+		if (shard.waiting > 0) {
+			-- shard.waiting;
+		} else {
+			++ shard.waiting;
+		}
+		if (shard != own) {
+			++ redirects;
+		}
+		return shard;
+	}
+
+	/**
+	 * Unpin the clients that have been silent longer than the idle
+	 * timeout, if there is one. Each sweep only looks at the clients that
+	 * expire.
+	 */
+	private void sweep() {
+		long now = System.currentTimeMillis();
+		if (now < nextSweep) return;
+		long idle;
+		synchronized (this) {
+			idle = idleMillis;
+		}
+		if (idle <= 0) return;
+		nextSweep = now + Math.max (1, Math.min (1000, idle/4));
+		Iterator<Pin> expired = pins.values().iterator();
+		while (expired.hasNext()) {
+			if (now - expired.next().lastActivity < idle) break;
+			expired.remove();
+		}
+		pinned = pins.size();
+	}
+
+	/**
+	 * Add and remove shards as told by lines read from a reader, until it
+	 * ends.
+	 *
+	 * @param  in  Reader of <TT>+</TT><I>host</I>:<I>port</I> and
+	 *             <TT>-</TT><I>host</I>:<I>port</I> lines.
+	 */
+	private void control (BufferedReader in) {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				try {
+					if (line.charAt (0) == '+') {
+						addShard (parseAddress (line.substring (1).trim()));
+					} else if (line.charAt (0) == '-') {
+						removeShard (parseAddress (line.substring (1).trim()));
+					} else {
+						throw new IllegalArgumentException
+							("Bad command: " + line);
+					}
+					System.err.println ("Shards: " + getShards());
+				} catch (IllegalArgumentException exc) {
+					System.err.println (exc.getMessage());
+				}
+			}
+		} catch (IOException exc) {
+			System.err.println ("IOException: " + exc.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the key a client is pinned by: its address, and its tag if
+	 * the datagram in the buffer is tagged.
+	 *
+	 * @param  client  Client's mailbox address.
+	 */
+	private SocketAddress key (InetSocketAddress client) {
+		if (!MessageCodec.isTagged (buffer)) return client;
+		return new TaggedClient
+			(client, buffer.getInt (buffer.position() + 1));
+	}
+
+	/**
+	 * Returns a client's point on the hash ring.
+	 *
+	 * @param  client  Client's mailbox address.
+	 */
+	private static int hash (InetSocketAddress client) {
+		long h = client.getPort();
+		for (byte b : client.getAddress().getAddress()) {
+			h = h*31 + (b & 0xFF);
+		}
+		return mix (h);
+	}
+
+	/**
+	 * Spread the bits of a value over a 32-bit hash (MurmurHash3's
+	 * finalizer).
+	 */
+	private static int mix (long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (int) h;
+	}
+
+	/**
+	 * Print a usage message and exit.
+	 */
+	private static void usage() {
+		System.err.println
+			("Usage: java NimRouter <host> <port> <shardhost>:<shardport> ...");
+		System.exit (1);
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Shard records a shard's address and how many of its players
+	 * are waiting for an opponent.
+	 */
+	private static class Shard {
+		public final InetSocketAddress address;
+		public int waiting;
+		public volatile boolean removed;
+
+		public Shard (InetSocketAddress address) {
+			this.address = address;
+		}
+	}
+
+	/**
+	 * Class Pin records the shard a client plays on, when it last joined
+	 * and was heard from, and whether it has asked to quit.
+	 */
+	private static class Pin {
+		public final Shard shard;
+		public long lastActivity;
+		public long joined;
+		public boolean quitting;
+
+		public Pin (Shard shard) {
+			this.shard = shard;
+		}
+	}
+
+	/**
+	 * Class TaggedClient identifies one of the clients sharing a socket.
+	 */
+	private static class TaggedClient extends SocketAddress {
+		private static final long serialVersionUID = 1L;
+
+		private final SocketAddress address;
+		private final int token;
+
+		public TaggedClient (SocketAddress address, int token) {
+			this.address = address;
+			this.token = token;
+		}
+
+		public boolean equals (Object obj) {
+			if (!(obj instanceof TaggedClient)) return false;
+			TaggedClient other = (TaggedClient) obj;
+			return token == other.token && address.equals (other.address);
+		}
+
+		public int hashCode() {
+			return address.hashCode()*31 + token;
+		}
+	}
+
+	/**
+	 * Class Ring is an immutable consistent hash ring of shards: sorted
+	 * points, and the shard that owns the arc ending at each.
+	 */
+	private static class Ring {
+		public final Shard[] shards;
+		public final Map<SocketAddress,Shard> byAddress =
+			new HashMap<SocketAddress,Shard>();
+		private final int[] points;
+		private final Shard[] owners;
+
+		public Ring (Shard[] shards) {
+			this.shards = shards;
+			long[] entries = new long [shards.length*POINTS];
+			for (int s = 0; s < shards.length; s++) {
+				byAddress.put (shards[s].address, shards[s]);
+				int base = hash (shards[s].address);
+				for (int i = 0; i < POINTS; i++) {
+					int point = mix ((long) base << 32 | i);
+					entries[s*POINTS + i] = (long) point << 32 | s;
+				}
+			}
+			Arrays.sort (entries);
+			points = new int [entries.length];
+			owners = new Shard [entries.length];
+			for (int i = 0; i < entries.length; i++) {
+				points[i] = (int) (entries[i] >> 32);
+				owners[i] = shards[(int) entries[i]];
+			}
+		}
+
+		/**
+		 * Returns the shard that owns a point: the one with the first
+		 * point at or after it, around the ring.
+		 */
+		public Shard owner (int point) {
+			int i = Arrays.binarySearch (points, point);
+			if (i < 0) i = -i - 1;
+			return owners[i == points.length ? 0 : i];
+		}
+	}
+}
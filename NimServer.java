@@ -2,11 +2,69 @@
 import java.net.InetSocketAddress;
 import java.net.DatagramSocket;
 import java.net.SocketException;
+import java.nio.channels.DatagramChannel;
+import java.io.File;
 import java.io.IOException;
 
 /**
  * NimServer is the server main program for the Nim network game. 
- * Usage: java NimServer <I>host</I> <I>port</I>
+ * Usage: java NimServer <I>host</I> <I>port</I> [<I>workers</I>]
+ * <P>
+ * When <I>workers</I> is given, the server reads its mailbox through a
+ * non-blocking channel and processes clients on that many worker threads.
+ * Otherwise, if system property <TT>nim.sockets</TT> is more than 1, the
+ * server binds that many sockets to the port with SO_REUSEPORT and reads
+ * each on its own thread, so the kernel spreads clients over them.
+ * <P>
+ * System property <TT>nim.idleTimeout</TT> gives the milliseconds a client
+ * may stay silent before it is evicted, and <TT>nim.maxProxies</TT> the
+ * largest number of clients kept at once; both default to 0, no limit.
+ * <P>
+ * System property <TT>nim.board</TT> gives the board every game starts
+ * with: a comma separated list of heap sizes, where <I>n</I>*<I>m</I> is
+ * <I>n</I> heaps of <I>m</I> markers, for example 3,4,5 (the default) or
+ * 200*1000.
+ * <P>
+ * If system property <TT>nim.computer</TT> is set, a player who finds no
+ * one waiting plays the computer at once; its value, from 0 to 1, is the
+ * fraction of the computer's moves that are optimal rather than random.
+ * <P>
+ * If system property <TT>nim.matchTick</TT> is set, joining players are
+ * queued and paired every that many milliseconds, by rating bucket of
+ * width <TT>nim.matchBucket</TT> (default 0, one bucket); a player still
+ * unpaired after <TT>nim.matchWait</TT> milliseconds (default 5000) plays
+ * the computer, if <TT>nim.computer</TT> is set.
+ * <P>
+ * If system property <TT>nim.log</TT> names a directory, every session's
+ * events are appended to an event log there, in segment files of
+ * <TT>nim.logSegment</TT> MiB (default 64), each event committed to disk
+ * within <TT>nim.logCommit</TT> milliseconds of the previous commit
+ * (default 0, at once). Every <TT>nim.checkpoint</TT> milliseconds
+ * (default 60000, 0 for never) the state of every live session is written
+ * to the log too. On startup, the sessions live when the server last
+ * stopped are recovered from the last checkpoint and the events after it,
+ * and each of their players is sent a snapshot.
+ * <P>
+ * If system property <TT>nim.profiles</TT> names a file, every player's
+ * wins, losses, games and rating are kept there by name, and the
+ * <TT>nim.leaderboard</TT> players with the most wins (default 10) are
+ * kept ranked. With <TT>nim.matchTick</TT>, players are then bucketed by
+ * their rating there; a new player's rating is 1200.
+ * <P>
+ * If system property <TT>nim.offHeap</TT> is true, the state of every
+ * session is kept in direct buffers outside the Java heap, so the
+ * collector's pauses do not grow with the number of live sessions. The
+ * JVM's <TT>-XX:MaxDirectMemorySize</TT> must leave room for them: about
+ * 200 bytes a session on the default board.
+ * <P>
+ * If system property <TT>nim.router</TT> is set, to <I>host</I>:<I>port</I>,
+ * the server is one shard behind the NimRouter there: it serves the
+ * clients whose datagrams the router forwards, replies through the
+ * router, and reports its waiting players to it.
+ * <P>
+ * Server metrics are exported over JMX. If system property
+ * <TT>nim.metricsPort</TT> is set, a text dump of them is also served to
+ * each connection on that loopback TCP port.
  *
  * @author  Martin Suarez
  * @version 12/02/2015
@@ -17,40 +75,204 @@ public class NimServer {
 	 * Main program.
 	 */
 	public static void main (String[] args) throws Exception {
-		if (args.length != 2) usage();
+		if (args.length != 2 && args.length != 3) usage();
 		try {
 			String host = args[0];
 			int port = Integer.parseInt( args[1] );
+			int workers = 0;
+			if (args.length == 3) {
+				workers = Integer.parseInt( args[2] );
+				if (workers < 1) usage();
+			}
+			long idleTimeout = Long.getLong( "nim.idleTimeout", 0 );
+			int maxProxies = Integer.getInteger( "nim.maxProxies", 0 );
+			int metricsPort = Integer.getInteger( "nim.metricsPort", 0 );
+			int sockets = Integer.getInteger( "nim.sockets", 1 );
+			int[] board = null;
+			try {
+				board = NimModel.parseBoard
+					( System.getProperty( "nim.board", "3,4,5" ) );
+			} catch (IllegalArgumentException e) {
+				System.err.println( "Bad nim.board: " + e.getMessage() );
+				System.exit( 1 );
+			}
+			double computer = Double.parseDouble
+				( System.getProperty( "nim.computer", "-1" ) );
+			long matchTick = Long.getLong( "nim.matchTick", 0 );
+			long matchWait = Long.getLong( "nim.matchWait", 5000 );
+			int matchBucket = Integer.getInteger( "nim.matchBucket", 0 );
+			String logDir = System.getProperty( "nim.log" );
+			long logSegment = Long.getLong( "nim.logSegment", 64 );
+			long logCommit = Long.getLong( "nim.logCommit", 0 );
+			long checkpoint = Long.getLong( "nim.checkpoint", 60000 );
+			String profileFile = System.getProperty( "nim.profiles" );
+			int leaderboard = Integer.getInteger( "nim.leaderboard", 10 );
+			boolean offHeap = Boolean.getBoolean( "nim.offHeap" );
+			String routerSpec = System.getProperty( "nim.router" );
+			InetSocketAddress router = null;
+			if (routerSpec != null) {
+				try {
+					router = NimRouter.parseAddress( routerSpec );
+				} catch (IllegalArgumentException e) {
+					System.err.println( "Bad nim.router: " + e.getMessage() );
+					System.exit( 1 );
+				}
+			}
 			
 			try {
-				DatagramSocket mailbox =
-					new DatagramSocket
-						(new InetSocketAddress (host, port));
+				ServerMetrics.get().registerMBean();
+				if (metricsPort > 0) {
+					ServerMetrics.get().serve( metricsPort );
+				}
+				EventLog eventLog = null;
+				Recovery recovery = null;
+				long recoveryStart = System.nanoTime();
+				if (logDir != null) {
+					recovery = Recovery.read( new File( logDir ),
+						Runtime.getRuntime().availableProcessors() );
+					eventLog = openLog( new File( logDir ),
+						logSegment << 20, logCommit );
+				}
+				ProfileStore profiles = profileFile == null ? null :
+					openProfiles( new File( profileFile ), leaderboard );
 				
-				MailboxManager manager = new MailboxManager( mailbox );
+				ServerConfig config = new ServerConfig();
+				config.idleTimeout = idleTimeout;
+				config.maxProxies = maxProxies;
+				config.board = board;
+				config.offHeap = offHeap;
+				config.router = router;
+				config.computerDifficulty = computer;
+				config.matchTick = matchTick;
+				config.matchWait = matchWait;
+				config.matchBucket = matchBucket;
+				config.eventLog = eventLog;
+				config.checkpointInterval = eventLog == null ? 0 : checkpoint;
+				config.profiles = profiles;
 				
-				for (;;) {
-					manager.receiveMessage();
+				if (workers > 0) {
+					DatagramChannel channel = DatagramChannel.open();
+					channel.bind (new InetSocketAddress (host, port));
+					ChannelServer server = new ChannelServer( channel, workers );
+					server.configure( config );
+					if (eventLog != null) {
+						recovered( server.recover( recovery ), recoveryStart );
+					}
+					server.run();
+				}
+				else if (sockets > 1) {
+					ReusePortServer server = new ReusePortServer
+						( new InetSocketAddress( host, port ), sockets );
+					server.configure( config );
+					if (eventLog != null) {
+						recovered( server.recover( recovery ), recoveryStart );
+					}
+					server.run();
+				}
+				else {
+					DatagramSocket mailbox =
+						new DatagramSocket
+							(new InetSocketAddress (host, port));
+					
+					MailboxManager manager = new MailboxManager( mailbox );
+					manager.configure( config );
+					if (eventLog != null) {
+						recovered( manager.recover( recovery ), recoveryStart );
+					}
+					
+					for (;;) {
+						try {
+							manager.receiveMessage();
+						}
+						catch (IOException e) {
+							System.err.println( "IOException: "
+								+ e.getMessage() );
+						}
+						catch (RuntimeException e) {
+							System.err.println( "RuntimeException: " + e );
+						}
+					}
 				}
 			}
 			catch (SocketException e) {
 				System.err.println( "SocketException: " + e.getMessage());
 				System.exit(1);
 			}
+			catch (UnsupportedOperationException e) {
+				System.err.println( "nim.sockets needs SO_REUSEPORT: "
+					+ e.getMessage() );
+				System.exit(1);
+			}
 			
 		} 
 		catch (NumberFormatException e) {
 			System.err.println( "NumberFormatException: " + e.getMessage()
-				+ " must be a valid port number.");
+				+ " must be a valid number.");
+			System.exit(1);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println( "IllegalArgumentException: " + e.getMessage() );
 			System.exit(1);
 		}
 	}
 	
+	/**
+	 * Open the event log, and close it when the server shuts down so the
+	 * events in flight are committed.
+	 */
+	private static EventLog openLog( File dir, long segmentSize,
+									 long commitMillis ) throws IOException {
+		final EventLog eventLog;
+		try {
+			eventLog = new EventLog( dir, segmentSize, commitMillis );
+		} catch (IllegalArgumentException e) {
+			System.err.println( "Bad nim.logSegment: " + e.getMessage() );
+			System.exit( 1 );
+			return null;
+		}
+		Runtime.getRuntime().addShutdownHook( new Thread() {
+			public void run() {
+				try {
+					eventLog.close();
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		return eventLog;
+	}
+	
+	/**
+	 * Open the profile store, and close it when the server shuts down so
+	 * every change is on disk.
+	 */
+	private static ProfileStore openProfiles( File file, int leaderboard )
+			throws IOException {
+		final ProfileStore profiles = new ProfileStore( file, leaderboard );
+		Runtime.getRuntime().addShutdownHook( new Thread() {
+			public void run() {
+				try {
+					profiles.close();
+				} catch (IOException e) {
+				}
+			}
+		});
+		return profiles;
+	}
+	
+	/**
+	 * Report how many sessions were recovered, and how long it took.
+	 */
+	private static void recovered( int sessions, long start ) {
+		if (sessions == 0) return;
+		System.err.println( "Recovered " + sessions + " sessions in " +
+			(System.nanoTime() - start)/1000000L + " ms" );
+	}
+	
 	/**
 	 * Print a usage message and exit.
 	 */
 	private static void usage() {
-		System.err.println( "Usage: java NimServer <host> <port>");
+		System.err.println( "Usage: java NimServer <host> <port> [<workers>]");
 		System.exit( 1 );
 	}
 }
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * NimStress drives thousands of sessions from many threads through a
+ * session manager on a session executor, as the channel server's workers
+ * do, and checks that no player misses or sees out of order an update of
+ * its session. It prints what it checked and exits with status 1 if
+ * anything was wrong.
+ * Usage: java NimStress
+ * <P>
+ * Each player is a view proxy that records, instead of sending, what its
+ * session reports. The two players of a session are driven by different
+ * threads, and both act as soon as their view changes: the player whose
+ * turn it is takes markers, player 1 starts a new game when one is won,
+ * and the other player tries to take markers out of turn, so requests for
+ * one session are always in flight from two threads at once. Every
+ * operation the session accepts moves it to the next version, so each
+ * player must see every version after its first snapshot exactly once and
+ * in order, each update must be one whole take (one heap smaller and the
+ * turn passed) or one new game (the starting heaps, player 1 to move),
+ * and both players must end with the same view. Once every session has
+ * been quit, every player must have been told so exactly once.
+ * <P>
+ * System properties: <TT>nim.stress.sessions</TT> (default 5000),
+ * <TT>nim.stress.threads</TT> driving threads (default 16),
+ * <TT>nim.stress.stripes</TT> session executor stripes (default 4) and
+ * <TT>nim.stress.seconds</TT> (default 5).
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class NimStress {
+
+	// Hidden data members.
+	private static final long SETTLE_MILLIS = 10000;
+	private static final long QUIET_MILLIS = 300;
+	private static final long RETRY_MILLIS = 20;
+
+	private static AtomicLong errors = new AtomicLong();
+
+	/**
+	 * Main program.
+	 */
+	public static void main (String[] args) throws Exception {
+		int sessions = Integer.getInteger ("nim.stress.sessions", 5000);
+		int threads = Integer.getInteger ("nim.stress.threads", 16);
+		int stripes = Integer.getInteger ("nim.stress.stripes", 4);
+		int seconds = Integer.getInteger ("nim.stress.seconds", 5);
+		SessionExecutor executor = new SessionExecutor (stripes);
+		SessionManager manager = new SessionManager (executor);
+
+		// Seat the players in pairs, so each knows its session.
+		Session[] all = new Session [sessions];
+		for (int s = 0; s < sessions; s++) {
+			all[s] = new Session (s);
+			manager.join (all[s].player1, "p" + (2*s));
+			manager.join (all[s].player2, "p" + (2*s + 1));
+		}
+		settle (all);
+
+		// Each thread drives player 1 of some sessions and player 2 of
+		// others, so the two players of a session are on different threads.
+		List<List<Player>> shares = new ArrayList<List<Player>>();
+		for (int t = 0; t < threads; t++) {
+			shares.add (new ArrayList<Player>());
+		}
+		for (int s = 0; s < sessions; s++) {
+			shares.get (s % threads).add (all[s].player1);
+			shares.get ((s + 1) % threads).add (all[s].player2);
+		}
+		final long deadline = System.currentTimeMillis() + seconds*1000L;
+		Thread[] drivers = new Thread [threads];
+		for (int t = 0; t < threads; t++) {
+			final List<Player> share = shares.get (t);
+			drivers[t] = new Thread() {
+				public void run() {
+					drive (share, deadline);
+				}
+			};
+			drivers[t].start();
+		}
+		for (Thread driver : drivers) {
+			driver.join();
+		}
+		if (!settle (all)) {
+			fail ("sessions still changing " + SETTLE_MILLIS + " ms after " +
+				"the last request");
+		}
+
+		long operations = 0;
+		for (Session session : all) {
+			operations += session.player1.updates;
+			session.check();
+		}
+
+		// Quit every session; both players must hear of it once.
+		for (int s = 0; s < sessions; s++) {
+			manager.prepareQuit (s % 2 == 0 ? all[s].player1 : all[s].player2);
+		}
+		long quitDeadline = System.currentTimeMillis() + SETTLE_MILLIS;
+		while (manager.sessionCount() > 0 || !allQuit (all)) {
+			if (System.currentTimeMillis() > quitDeadline) break;
+			Thread.sleep (10);
+		}
+		for (Session session : all) {
+			if (session.player1.quits != 1 || session.player2.quits != 1) {
+				fail ("session " + session.id + " quit " +
+					session.player1.quits + " and " + session.player2.quits +
+					" times");
+			}
+		}
+		executor.shutdown();
+
+		System.out.println ("sessions    " + sessions);
+		System.out.println ("threads     " + threads);
+		System.out.println ("stripes     " + stripes);
+		System.out.println ("operations  " + operations + " (" +
+			operations/Math.max (1, seconds) + "/s)");
+		System.out.println ("errors      " + errors.get());
+		System.exit (errors.get() == 0 ? 0 : 1);
+	}
+
+	// Hidden operations.
+
+	/**
+	 * Play the given players until a deadline. Each acts once per version
+	 * of its view, or again if nothing happened for a while: the player
+	 * whose turn it is takes markers, player 1 starts a new game once the
+	 * game is won, and the other player takes markers out of turn.
+	 */
+	private static void drive (List<Player> share, long deadline) {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			long now;
+			while ((now = System.currentTimeMillis()) < deadline) {
+				for (Player player : share) {
+					int h = -1;
+					int m = 0;
+					boolean newGame = false;
+					synchronized (player) {
+						if (player.version == player.acted &&
+								now - player.actedAt < RETRY_MILLIS) continue;
+						int start = random.nextInt (player.heaps.length);
+						for (int i = 0; i < player.heaps.length; i++) {
+							int k = (start + i) % player.heaps.length;
+							if (player.heaps[k] > 0) {
+								h = k;
+								m = 1 + random.nextInt (player.heaps[k]);
+								break;
+							}
+						}
+						newGame = h < 0 && player == player.session.player1;
+						player.acted = player.version;
+						player.actedAt = now;
+					}
+					if (newGame) {
+						player.getViewListener().newGame();
+					} else if (h >= 0) {
+						player.getViewListener().take (player, h, m);
+					}
+				}
+			}
+		} catch (IOException exc) {
+			fail ("IOException: " + exc.getMessage());
+		}
+	}
+
+	/**
+	 * Wait until no player's view has changed for QUIET_MILLIS. Returns
+	 * false if views are still changing after SETTLE_MILLIS.
+	 */
+	private static boolean settle (Session[] all)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+		long last = -1;
+		for (;;) {
+			long sum = 0;
+			for (Session session : all) {
+				sum += session.player1.version + session.player2.version;
+			}
+			if (sum == last) return true;
+			if (System.currentTimeMillis() > deadline) return false;
+			last = sum;
+			Thread.sleep (QUIET_MILLIS);
+		}
+	}
+
+	/**
+	 * Returns true if every player has been told its session ended.
+	 */
+	private static boolean allQuit (Session[] all) {
+		for (Session session : all) {
+			if (session.player1.quits == 0 || session.player2.quits == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Report a failure.
+	 */
+	private static void fail (String message) {
+		if (errors.incrementAndGet() <= 20) {
+			System.err.println (message);
+		}
+	}
+
+	// Hidden helper classes.
+
+	/**
+	 * Class Session is a pair of players.
+	 */
+	private static class Session {
+		public final int id;
+		public final Player player1;
+		public final Player player2;
+
+		public Session (int id) {
+			this.id = id;
+			player1 = new Player (this, 2*id);
+			player2 = new Player (this, 2*id + 1);
+		}
+
+		/**
+		 * Check the two players ended with the same view, having seen the
+		 * same updates.
+		 */
+		public void check() {
+			synchronized (player1) {
+				synchronized (player2) {
+					if (player1.version != player2.version ||
+							player1.updates != player2.updates ||
+							player1.turn != player2.turn ||
+							!Arrays.equals (player1.heaps, player2.heaps)) {
+						fail ("session " + id + ": players end at versions " +
+							player1.version + " and " + player2.version);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Class Player is a view proxy that keeps the view its session reports
+	 * to it, and counts every update it misses, sees out of order or sees
+	 * only part of.
+	 */
+	private static class Player extends ViewProxy {
+		public final Session session;
+		public volatile int version = -1;
+		public volatile int id;
+		public int turn;
+		public int[] board;
+		public int[] heaps = new int [0];
+		public long updates;
+		public int acted = -1;
+		public long actedAt;
+		public volatile int quits;
+
+		public Player (Session session, int n) {
+			super ((DatagramSocket) null,
+				new InetSocketAddress ("127.0.0.1", 1 + n % 65535));
+			this.session = session;
+		}
+
+		public synchronized void snapshot (int v, int i, int t, int[] h,
+										   String[] names, int[] scores) {
+			if (v <= version) {
+				fail ("player " + i + " of session " + session.id +
+					": snapshot " + v + " after " + version);
+			}
+			version = v;
+			id = i;
+			turn = t;
+			heaps = h.clone();
+			if (board == null) board = h.clone();
+		}
+
+		public synchronized void delta (int base, int v, int t,
+				int[] scores, int n, int[] ids, int[] markers) {
+			if (version < 0 || v != version + 1) {
+				fail ("player " + id + " of session " + session.id +
+					": version " + v + " after " + version);
+			}
+			int[] before = heaps.clone();
+			int turnBefore = turn;
+			if (t >= 0) turn = t;
+			for (int k = 0; k < n; k++) {
+				heaps[ids[k]] = markers[k];
+			}
+			int smaller = 0;
+			int other = 0;
+			for (int h = 0; h < heaps.length; h++) {
+				if (heaps[h] < before[h]) ++ smaller;
+				else if (heaps[h] != before[h]) ++ other;
+			}
+			boolean take = smaller == 1 && other == 0 && turn != turnBefore;
+			boolean newGame = Arrays.equals (heaps, board) &&
+				turn == session.player1.id;
+			if (!take && !newGame) {
+				fail ("player " + id + " of session " + session.id +
+					": version " + v + " is not one take or one new game");
+			}
+			version = v;
+			++ updates;
+		}
+
+		public synchronized void quit() {
+			++ quits;
+		}
+
+		public void id (int i) {}
+		public void name (int i, String n) {}
+		public void score (int i, int s) {}
+		public void heap (int h, int m) {}
+		public void turn (int i) {}
+		public void win (int i) {}
+		public void flush() {}
+	}
+}
@@ -41,6 +41,7 @@ import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
+import javax.swing.JScrollPane;
 import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
 import java.io.IOException;
@@ -70,11 +71,13 @@ public class NimUI
 		{
 		private static final int W = 50;
 		private static final int H = 30;
+		private static final int MAX_HEIGHT = 600;
 		private static final Color FC = Color.RED;
 		private static final Color OC = Color.BLACK;
 
 		private int id;
 		private int maxCount;
+		private int h;
 		private int count;
 		private boolean isEnabled;
 		private HeapListener listener;
@@ -85,20 +88,17 @@ public class NimUI
 			 int maxCount) // Maximum number of markers
 			{
 			this.id = id;
-			this.maxCount = maxCount;
 			this.count = maxCount;
 			this.isEnabled = true;
-			Dimension dim = new Dimension (W, maxCount*H);
-			setMinimumSize (dim);
-			setMaximumSize (dim);
-			setPreferredSize (dim);
+			setMaxCount (maxCount);
 			addMouseListener (new MouseAdapter()
 				{
 				public void mouseClicked (MouseEvent e)
 					{
 					if (isEnabled && listener != null)
 						{
-						int objClicked = maxCount - 1 - e.getY()/H;
+						int objClicked =
+							HeapPanel.this.maxCount - 1 - e.getY()/h;
 						int numRemoved = count - objClicked;
 						if (numRemoved > 0)
 							listener.removeObjects (id, numRemoved);
@@ -118,7 +118,12 @@ public class NimUI
 		public void setCount
 			(int count) // Number of markers
 			{
-			count = Math.max (0, Math.min (count, maxCount));
+			count = Math.max (0, count);
+			if (count > maxCount)
+				{
+				setMaxCount (count);
+				revalidate();
+				}
 			if (this.count != count)
 				{
 				this.count = count;
@@ -126,6 +131,19 @@ public class NimUI
 				}
 			}
 
+		// Size this heap panel for a number of markers, shrinking the
+		// markers of a large heap so it stays on the screen.
+		private void setMaxCount
+			(int maxCount) // Maximum number of markers
+			{
+			this.maxCount = Math.max (1, maxCount);
+			this.h = Math.max (1, Math.min (H, MAX_HEIGHT/this.maxCount));
+			Dimension dim = new Dimension (W, this.maxCount*h);
+			setMinimumSize (dim);
+			setMaximumSize (dim);
+			setPreferredSize (dim);
+			}
+
 		// Enable or disable this heap panel.
 		public void setEnabled
 			(boolean enabled) // True to enable, false to disable
@@ -154,7 +172,7 @@ public class NimUI
 			// For drawing markers.
 			Ellipse2D.Double ellipse = new Ellipse2D.Double();
 			ellipse.width = W - 2;
-			ellipse.height = H - 2;
+			ellipse.height = Math.max (1, h - 2);
 			ellipse.x = 1;
 
 			// If enabled, draw filled markers.
@@ -163,7 +181,7 @@ public class NimUI
 				g2d.setColor (FC);
 				for (int i = 0; i < count; ++ i)
 					{
-					ellipse.y = (maxCount - 1 - i)*H + 1;
+					ellipse.y = (maxCount - 1 - i)*h + 1;
 					g2d.fill (ellipse);
 					}
 				}
@@ -174,7 +192,7 @@ public class NimUI
 				g2d.setColor (OC);
 				for (int i = 0; i < count; ++ i)
 					{
-					ellipse.y = (maxCount - 1 - i)*H + 1;
+					ellipse.y = (maxCount - 1 - i)*h + 1;
 					g2d.draw (ellipse);
 					}
 				}
@@ -183,13 +201,17 @@ public class NimUI
 
 // Hidden data members.
 
+	// The board shown until the server reports the real one.
 	private static final int NUMHEAPS = 3;
 	private static final int NUMOBJECTS = 5;
 	private static final int GAP = 10;
+	private static final int MAX_WIDTH = 800;
 	private static final int COL = 10;
 
 	private JFrame frame;
-	private HeapPanel[] heapPanel;
+	private JPanel heapBox;
+	private JScrollPane heapScroll;
+	private HeapPanel[] heapPanel = new HeapPanel [0];
 	private JTextField myNameField;
 	private JTextField theirNameField;
 	private JTextField whoWonField;
@@ -218,21 +240,16 @@ public class NimUI
 		frame.add (panel);
 		panel.setBorder (BorderFactory.createEmptyBorder (GAP, GAP, GAP, GAP));
 
-		heapPanel = new HeapPanel [NUMHEAPS];
+		heapBox = new JPanel();
+		heapBox.setLayout (new BoxLayout (heapBox, BoxLayout.X_AXIS));
+		heapScroll = new JScrollPane (heapBox);
+		heapScroll.setBorder (BorderFactory.createEmptyBorder());
+		panel.add (heapScroll);
+		panel.add (Box.createHorizontalStrut (GAP));
+		int[] board = new int [NUMHEAPS];
 		for (int h = 0; h < NUMHEAPS; ++ h)
-			{
-			panel.add (heapPanel[h] = new HeapPanel (h, NUMOBJECTS));
-			panel.add (Box.createHorizontalStrut (GAP));
-			heapPanel[h].setListener( new HeapListener() 
-				// Create new anonymous class
-				{
-				public synchronized void removeObjects( int id, int num_rem ) 
-					{
-						take( id, num_rem );
-					}
-				}
-				);
-			}
+			board[h] = NUMOBJECTS - NUMHEAPS + h + 1;
+		setBoard (board);
 
 		JPanel fieldPanel = new JPanel();
 		fieldPanel.setLayout (new BoxLayout (fieldPanel, BoxLayout.Y_AXIS));
@@ -265,8 +282,7 @@ public class NimUI
 		fieldPanel.add (newGameButton);
 		
 		// Default initial view
-		for ( int h = 0; h < NUMHEAPS; h++ ) {
-			heapPanel[h].setCount( NUMOBJECTS - NUMHEAPS + h + 1 );
+		for ( int h = 0; h < heapPanel.length; h++ ) {
 			heapPanel[h].setEnabled(false);
 		}
 		newGameButton.setEnabled( false );
@@ -398,7 +414,8 @@ public class NimUI
 		onSwingThreadDo (new Runnable() {
 				public void run() {
 					whoWonField.setText( "" );
-					heapPanel[h].setCount( m );
+					if (h < heapPanel.length)
+						heapPanel[h].setCount( m );
 				}
 		});
 	}
@@ -413,7 +430,7 @@ public class NimUI
 	public synchronized void turn(int i) {
 		onSwingThreadDo (new Runnable() {
 				public void run() {
-					for ( int h = 0; h < NUMHEAPS; h++) {
+					for ( int h = 0; h < heapPanel.length; h++) {
 						if (i == playerID )
 							heapPanel[h].setEnabled(true);
 						else
@@ -442,6 +459,59 @@ public class NimUI
 		});
 	}
 	
+	/**
+	 * Report the fields of the session that changed.
+	 * @param  base   Version the changes are relative to
+	 * @param  v      Version after the changes
+	 * @param  t      Id of the player whose turn it is, or -1
+	 * @param  scores Player scores, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  heaps  Ids of the heaps that changed
+	 * @param  markers Number of markers left in each heap that changed
+	 */
+	public synchronized void delta(int base, int v, int t, int[] scores,
+								   int n, int[] heaps, int[] markers) {
+		for ( int k = 0; k < n; k++ ) {
+			heap( heaps[k], markers[k] );
+		}
+		for ( int p = 0; p < scores.length; p++ ) {
+			if (scores[p] >= 0) score( p + 1, scores[p] );
+		}
+		if (t >= 0) turn( t );
+	}
+	
+	/**
+	 * Report the whole state of the session at once.
+	 * @param  v      Version
+	 * @param  i      Player id
+	 * @param  t      Id of the player whose turn it is
+	 * @param  heaps  Number of markers left in each heap
+	 * @param  names  Player names
+	 * @param  scores Player scores
+	 */
+	public synchronized void snapshot(int v, int i, int t, int[] heaps,
+									  String[] names, int[] scores) {
+		id( i );
+		for ( int p = 0; p < names.length; p++ ) {
+			if (names[p].length() == 0) continue;
+			name( p + 1, names[p] );
+			score( p + 1, scores[p] );
+		}
+		final int[] board = heaps.clone();
+		onSwingThreadDo (new Runnable() {
+				public void run() {
+					if (board.length != heapPanel.length) {
+						setBoard( board );
+						frame.pack();
+					}
+				}
+		});
+		for ( int h = 0; h < heaps.length; h++ ) {
+			heap( h, heaps[h] );
+		}
+		turn( t );
+	}
+	
 	/**
 	 * Report the game has ended.
 	 *
@@ -455,8 +525,48 @@ public class NimUI
 				}
 		});
 	}	
+	
+	/**
+	 * Deliver the events reported so far. The UI applies every event as it
+	 * arrives, so there is nothing to do.
+	 */
+	public synchronized void flush() {
+	}
 		
 // Hidden operations.
+	/**
+	 * Replace the heap panels with one per heap of a board. Call on the
+	 * Swing thread, or before the frame is shown.
+	 * @param  board	  Markers in each heap
+	 */
+	private void setBoard( int[] board ) {
+		heapBox.removeAll();
+		heapPanel = new HeapPanel [board.length];
+		for (int h = 0; h < board.length; ++ h)
+			{
+			if (h > 0) heapBox.add (Box.createHorizontalStrut (GAP));
+			heapBox.add (heapPanel[h] = new HeapPanel (h, board[h]));
+			heapPanel[h].setListener( new HeapListener() 
+				// Create new anonymous class
+				{
+				public synchronized void removeObjects( int id, int num_rem ) 
+					{
+						take( id, num_rem );
+					}
+				}
+				);
+			}
+		// Scroll through the heaps of a board too wide for the screen.
+		Dimension dim = heapBox.getPreferredSize();
+		if (dim.width > MAX_WIDTH) {
+			dim.width = MAX_WIDTH;
+			dim.height += heapScroll.getHorizontalScrollBar()
+				.getPreferredSize().height;
+		}
+		heapScroll.setPreferredSize (dim);
+		heapBox.revalidate();
+	}
+	
 	/**
 	 * Execute the given runnable object on the Swing thread.
 	 * @param  id	      Player id
@@ -464,7 +574,7 @@ public class NimUI
 	 */
 	private synchronized void take( int id, int num_rem ) {
 		try {
-		viewListener.take( id, num_rem );
+		viewListener.take( null, id, num_rem );
 		}
 		catch (IOException exc) {}
 	}
@@ -0,0 +1,552 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class ProfileStore keeps every player's wins, losses, games played and
+ * rating, by name, in a memory-mapped file, so they outlive sessions and
+ * the server, and keeps a leaderboard of the players with the most wins.
+ * <P>
+ * Each profile is one record in the file: its counts and rating as ints,
+ * then its name as a two-byte length and UTF-8 bytes. Records are appended
+ * and then updated in place, and the file header holds the end of the last
+ * whole record, so a record torn by a crash is never read. The store
+ * keeps a copy of the file on the heap and reads only that, so a lookup
+ * never waits on a page of the file; writes go to both, and reach the disk
+ * when the operating system writes the mapping back, or at close().
+ * Nothing on the join or win path does I/O.
+ * <P>
+ * Profiles are found through an open-addressing table of 64-bit name
+ * hashes and record offsets, probed linearly, with the name compared to
+ * the record's only on a matching hash. A lookup touches the table and the
+ * record, with no String kept per profile. The leaderboard is a small
+ * array kept sorted as each win is recorded: wins only grow, so a player
+ * moves up it or onto it and never has to be looked for elsewhere. Of
+ * players with the same wins, the one that reached them first ranks
+ * higher, or after a restart the one whose profile is older.
+ * <P>
+ * Ratings are Elo ratings, starting at DEFAULT_RATING. A game against the
+ * computer counts for the player, with the computer rated at
+ * DEFAULT_RATING and keeping no profile.
+ * <P>
+ * A profile store is thread safe. A lookup is a few probes under the
+ * store's lock. Recording a game only queues it, so the session thread
+ * that ends the game never waits on the store: a writer thread applies
+ * the queued games in order, each a few field updates under the lock, and
+ * when a new profile needs a larger file, grows and remaps it before
+ * taking the lock, so no lookup waits on the file either. A game shows in
+ * the ratings as soon as the writer gets to it; flush() waits for that.
+ * If the writer falls 65536 games behind, recording blocks until it
+ * catches up. A game the writer fails to record is counted in
+ * ServerMetrics.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ProfileStore {
+
+	/**
+	 * A player's profile as of one moment.
+	 */
+	public static class Profile {
+		public final String name;
+		public final int wins;
+		public final int losses;
+		public final int games;
+		public final int rating;
+
+		public Profile (String name, int wins, int losses, int games,
+						int rating) {
+			this.name = name;
+			this.wins = wins;
+			this.losses = losses;
+			this.games = games;
+			this.rating = rating;
+		}
+	}
+
+	/**
+	 * Rating of a player with no games, and of the computer.
+	 */
+	public static final int DEFAULT_RATING = 1200;
+
+	// Hidden data members.
+	private static final int MAGIC = 0x4e494d50;	// "NIMP"
+	private static final int FORMAT = 1;
+	private static final int HEADER = 16;
+	private static final int WINS = 0;
+	private static final int LOSSES = 4;
+	private static final int GAMES = 8;
+	private static final int RATING = 12;
+	private static final int NAME = 16;
+	private static final int K = 32;
+	private static final int INITIAL_SIZE = 64 << 10;
+	private static final int MAX_PENDING = 1 << 16;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer map;
+	// The file's contents on the heap. Every read uses these; the mapping
+	// is only written.
+	private ByteBuffer records;
+	private int end = HEADER;
+	private int count;
+
+	// Index: each slot's name hash and record offset, 0 for an empty
+	// slot, side by side so a probe touches one cache line.
+	private long[] table = new long [2*1024];
+
+	// Record offsets of the leaders, most wins first.
+	private int[] leaders;
+	private int leaderCount;
+
+	// Games waiting for the writer thread, each its winner and loser, and
+	// how many were queued and applied, guarded by the queue. Only the
+	// writer changes the records, the index and the mapping, so it reads
+	// them without the store's lock.
+	private ArrayDeque<String[]> pending = new ArrayDeque<String[]>();
+	private long queued;
+	private long applied;
+	private boolean closed;
+	private Thread writer;
+
+	// Exported constructors.
+	/**
+	 * Open a profile store, creating its file if there is none.
+	 *
+	 * @param  path             Profile file.
+	 * @param  leaderboardSize  Number of players on the leaderboard.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred, or the file is not a profile
+	 *     file.
+	 */
+	public ProfileStore (File path, int leaderboardSize) throws IOException {
+		leaders = new int [Math.max (leaderboardSize, 0)];
+		file = new RandomAccessFile (path, "rw");
+		long length = file.length();
+		if (length > Integer.MAX_VALUE) {
+			file.close();
+			throw new IOException (path + " is too large");
+		}
+		map (Math.max ((int) length, INITIAL_SIZE));
+		if (length == 0) {
+			records.putInt (0, MAGIC);
+			records.putInt (4, FORMAT);
+			records.putLong (8, end);
+			map.put (0, records.array(), 0, HEADER);
+		} else if (records.getInt (0) != MAGIC ||
+				records.getInt (4) != FORMAT) {
+			file.close();
+			throw new IOException (path + " is not a profile file");
+		} else {
+			load (records.getLong (8));
+		}
+		writer = new Thread ("NimServer-profiles") {
+			public void run() {
+				write();
+			}
+		};
+		writer.setDaemon (true);
+		writer.start();
+	}
+
+	// Exported operations.
+	/**
+	 * Returns a player's rating, or DEFAULT_RATING if the player has no
+	 * profile.
+	 *
+	 * @param  name  Player's name.
+	 */
+	public synchronized int rating (String name) {
+		if (map == null) return DEFAULT_RATING;
+		int offset = find (name);
+		return offset < 0 ? DEFAULT_RATING : records.getInt (offset + RATING);
+	}
+
+	/**
+	 * Returns a player's profile, or null if the player has none.
+	 *
+	 * @param  name  Player's name.
+	 */
+	public synchronized Profile get (String name) {
+		if (map == null) return null;
+		int offset = find (name);
+		return offset < 0 ? null : profile (offset);
+	}
+
+	/**
+	 * Queue the end of a game to be recorded, creating the profiles of
+	 * players new to the store.
+	 *
+	 * @param  winner  Winner's name, or null for the computer.
+	 * @param  loser   Loser's name, or null for the computer.
+	 */
+	public void record (String winner, String loser) {
+		if (winner != null && winner.equals (loser)) return;
+		synchronized (pending) {
+			boolean interrupted = false;
+			while (pending.size() >= MAX_PENDING && !closed &&
+					writer.isAlive()) {
+				try {
+					pending.wait();
+				} catch (InterruptedException exc) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			if (closed) return;
+			pending.add (new String[] { winner, loser });
+			++ queued;
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Wait until every game queued so far has been recorded.
+	 */
+	public void flush() {
+		synchronized (pending) {
+			long target = queued;
+			boolean interrupted = false;
+			while (applied - target < 0 && writer.isAlive()) {
+				try {
+					pending.wait();
+				} catch (InterruptedException exc) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the leaderboard, most wins first.
+	 */
+	public synchronized List<Profile> leaderboard() {
+		List<Profile> board = new ArrayList<Profile> (leaderCount);
+		if (map == null) return board;
+		for (int i = 0; i < leaderCount; i++) {
+			board.add (profile (leaders[i]));
+		}
+		return board;
+	}
+
+	/**
+	 * Returns the number of profiles.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Record the games already queued, write every change to disk and
+	 * close the file. Games ending after this are not recorded.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void close() throws IOException {
+		synchronized (pending) {
+			closed = true;
+			pending.notifyAll();
+		}
+		try {
+			writer.join();
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			if (map == null) return;
+			map.force();
+			map = null;
+			file.close();
+		}
+	}
+
+	// Hidden operations.
+	/**
+	 * Body of the writer thread: record queued games until closed and
+	 * every queued game is recorded.
+	 */
+	private void write() {
+		List<String[]> games = new ArrayList<String[]>();
+		for (;;) {
+			synchronized (pending) {
+				while (pending.isEmpty() && !closed) {
+					try {
+						pending.wait();
+					} catch (InterruptedException exc) {
+						return;
+					}
+				}
+				if (pending.isEmpty()) return;
+				games.addAll (pending);
+				pending.clear();
+				// Recorders may be waiting for room.
+				pending.notifyAll();
+			}
+			for (String[] game : games) {
+				try {
+					apply (game[0], game[1]);
+				} catch (IOException exc) {
+					ServerMetrics.get().profileError();
+					System.err.println ("IOException: " + exc.getMessage());
+				}
+			}
+			synchronized (pending) {
+				applied += games.size();
+				pending.notifyAll();
+			}
+			games.clear();
+		}
+	}
+
+	/**
+	 * Record the end of a game, on the writer thread.
+	 */
+	private void apply (String winner, String loser) throws IOException {
+		if (map == null) return;
+		long start = System.nanoTime();
+		// Grow the file for new profiles before taking the lock; only
+		// this thread changes the records, so they hold still meanwhile.
+		long needed = (long) end + newLength (winner) + newLength (loser);
+		if (needed > Integer.MAX_VALUE) {
+			throw new IOException ("Profile file full");
+		}
+		if (needed > map.capacity()) {
+			grow ((int) Math.min (Integer.MAX_VALUE,
+				Math.max ((long) map.capacity()*2, needed)));
+		}
+		synchronized (this) {
+			if (map == null) return;
+			int w = winner == null ? 0 : offsetOf (winner);
+			int l = loser == null ? 0 : offsetOf (loser);
+			int rw = w == 0 ? DEFAULT_RATING : records.getInt (w + RATING);
+			int rl = l == 0 ? DEFAULT_RATING : records.getInt (l + RATING);
+			// K times the loser's expected score.
+			int delta = (int) Math.round
+				(K / (1 + Math.pow (10, (rw - rl)/400.0)));
+			if (w != 0) {
+				add (w + WINS, 1);
+				add (w + GAMES, 1);
+				add (w + RATING, delta);
+				rank (w);
+			}
+			if (l != 0) {
+				add (l + LOSSES, 1);
+				add (l + GAMES, 1);
+				add (l + RATING, -delta);
+			}
+		}
+		ServerMetrics.get().profileUpdate (System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the length of the record a player would need, or 0 if the
+	 * player is the computer or has a profile already.
+	 */
+	private int newLength (String name) {
+		if (name == null || find (name) >= 0) return 0;
+		return NAME + 2 + name.getBytes (StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * Grow the file and map it at a larger size, with a larger copy on the
+	 * heap, and only then swap both in under the lock. Called on the
+	 * writer thread.
+	 */
+	private void grow (int size) throws IOException {
+		if (file.length() < size) file.setLength (size);
+		MappedByteBuffer larger =
+			file.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, size);
+		byte[] copy = new byte [size];
+		System.arraycopy (records.array(), 0, copy, 0, end);
+		synchronized (this) {
+			map = larger;
+			records = ByteBuffer.wrap (copy);
+		}
+	}
+
+	/**
+	 * Index the records up to a given end, and build the leaderboard.
+	 */
+	private void load (long last) throws IOException {
+		if (last < HEADER || last > records.capacity()) {
+			throw new IOException ("Bad profile file end " + last);
+		}
+		while (end < last) {
+			String name = nameAt (end);
+			int slot = find (name);
+			if (slot < 0) {
+				insert (~ slot, hash (name), end);
+				rank (end);
+			}
+			end += NAME + 2 + (records.getShort (end + NAME) & 0xffff);
+		}
+	}
+
+	/**
+	 * Returns the record offset of a name's profile, or the complement of
+	 * the empty table slot where it would go.
+	 */
+	private int find (String name) {
+		long key = hash (name);
+		int mask = table.length/2 - 1;
+		int slot = (int) (key ^ (key >>> 32)) & mask;
+		int offset;
+		while ((offset = (int) table[2*slot + 1]) != 0) {
+			if (table[2*slot] == key && named (offset, name)) return offset;
+			slot = (slot + 1) & mask;
+		}
+		return ~ slot;
+	}
+
+	/**
+	 * Returns true if the record at an offset has a given name.
+	 */
+	private boolean named (int offset, String name) {
+		int length = records.getShort (offset + NAME) & 0xffff;
+		if (length == name.length()) {
+			int i = 0;
+			for (; i < length; i++) {
+				char c = name.charAt (i);
+				if (c >= 0x80) break;
+				if (records.get (offset + NAME + 2 + i) != c) return false;
+			}
+			if (i == length) return true;
+		} else if (length < name.length()) {
+			// UTF-8 has at least a byte per char.
+			return false;
+		}
+		return name.equals (nameAt (offset));
+	}
+
+	/**
+	 * Returns the record offset of a player's profile, appending a new
+	 * profile if the player has none. The file must have room for it.
+	 */
+	private int offsetOf (String name) throws IOException {
+		int slot = find (name);
+		if (slot >= 0) return slot;
+		// No longer than the name's modified UTF-8 in a join message.
+		byte[] bytes = name.getBytes (StandardCharsets.UTF_8);
+		int length = NAME + 2 + bytes.length;
+		if (end + length > map.capacity()) {
+			throw new IOException ("No room for a new profile");
+		}
+		int offset = end;
+		records.putInt (offset + WINS, 0);
+		records.putInt (offset + LOSSES, 0);
+		records.putInt (offset + GAMES, 0);
+		records.putInt (offset + RATING, DEFAULT_RATING);
+		records.putShort (offset + NAME, (short) bytes.length);
+		records.put (offset + NAME + 2, bytes);
+		map.put (offset, records.array(), offset, length);
+		end += length;
+		records.putLong (8, end);
+		map.putLong (8, end);
+		insert (~ slot, hash (name), offset);
+		return offset;
+	}
+
+	/**
+	 * Put a profile in an empty table slot, growing the table past half
+	 * full.
+	 */
+	private void insert (int slot, long key, int offset) {
+		table[2*slot] = key;
+		table[2*slot + 1] = offset;
+		ServerMetrics.get().profiles (1);
+		if (++ count*4 <= table.length) return;
+		long[] old = table;
+		table = new long [old.length*2];
+		int mask = table.length/2 - 1;
+		for (int i = 0; i < old.length; i += 2) {
+			if (old[i + 1] == 0) continue;
+			int s = (int) (old[i] ^ (old[i] >>> 32)) & mask;
+			while (table[2*s + 1] != 0) s = (s + 1) & mask;
+			table[2*s] = old[i];
+			table[2*s + 1] = old[i + 1];
+		}
+	}
+
+	/**
+	 * Move a profile up the leaderboard, or onto it, after its wins grew.
+	 */
+	private void rank (int offset) {
+		if (leaders.length == 0) return;
+		int wins = records.getInt (offset + WINS);
+		int i = 0;
+		while (i < leaderCount && leaders[i] != offset) i++;
+		if (i == leaderCount) {
+			if (leaderCount < leaders.length) {
+				++ leaderCount;
+			} else if (wins > records.getInt (leaders[--i] + WINS)) {
+				// Bumps the last leader.
+			} else {
+				return;
+			}
+		}
+		while (i > 0 && records.getInt (leaders[i-1] + WINS) < wins) {
+			leaders[i] = leaders[i-1];
+			--i;
+		}
+		leaders[i] = offset;
+	}
+
+	/**
+	 * Returns the profile at a record offset.
+	 */
+	private Profile profile (int offset) {
+		return new Profile (nameAt (offset),
+			records.getInt (offset + WINS), records.getInt (offset + LOSSES),
+			records.getInt (offset + GAMES), records.getInt (offset + RATING));
+	}
+
+	/**
+	 * Returns the name of the record at an offset.
+	 */
+	private String nameAt (int offset) {
+		return new String (records.array(), offset + NAME + 2,
+			records.getShort (offset + NAME) & 0xffff, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Add to an int field of a record.
+	 */
+	private void add (int index, int delta) {
+		int value = records.getInt (index) + delta;
+		records.putInt (index, value);
+		map.putInt (index, value);
+	}
+
+	/**
+	 * Map the file when it is opened, growing it to a given size if need
+	 * be, and read it onto the heap.
+	 */
+	private void map (int size) throws IOException {
+		if (file.length() < size) file.setLength (size);
+		map = file.getChannel().map (FileChannel.MapMode.READ_WRITE, 0, size);
+		byte[] copy = new byte [size];
+		map.get (0, copy);
+		records = ByteBuffer.wrap (copy);
+	}
+
+	/**
+	 * Returns the 64-bit FNV-1a hash of a name's chars.
+	 */
+	private static long hash (String name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h = (h ^ name.charAt (i)) * 0x100000001b3L;
+		}
+		return h;
+	}
+}
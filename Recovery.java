@@ -0,0 +1,377 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Class Recovery rebuilds the live sessions of a server that stopped from
+ * its event log: each session's state at the last complete checkpoint,
+ * brought up to date with the events after it. Sessions that ended, and
+ * events a session made before its checkpoint state, are left out.
+ * <P>
+ * The log is read and decoded once, on the calling thread, and each event
+ * is handed, in batches, to the thread that applies the events of its
+ * share of the sessions, by session id. The appliers share nothing, and
+ * each sees its sessions' events in log order.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class Recovery {
+
+	/**
+	 * How far a recovered session's version jumps past its last logged
+	 * version, so a client that saw events never committed before the
+	 * server stopped still takes the recovered snapshot as newer.
+	 */
+	public static final int VERSION_GAP = 1 << 16;
+
+	/**
+	 * Interface Recovery.Binder specifies the object that gives a
+	 * recovered player a view proxy for its client address.
+	 */
+	public static interface Binder {
+		/**
+		 * Returns the view proxy for a client, creating it if need be.
+		 * @param  address  Client's mailbox address.
+		 * @param  tag      Client's tag, or -1 if untagged.
+		 * @exception  IOException
+		 *     Thrown if an I/O error occurred.
+		 */
+		public ViewProxy bind (SocketAddress address, int tag)
+			throws IOException;
+	}
+
+	/**
+	 * Class Recovery.Session is the recovered state of one session.
+	 * Player 2's name is null if player 1 is still waiting, and an
+	 * address is null for a player on the server.
+	 */
+	public static class Session {
+		public int id;
+		public int version;
+		public int turn;
+		public int[] scores = new int [2];
+		public int[] board;
+		public int[] markers;
+		public String[] names = new String [2];
+		public SocketAddress[] addresses = new SocketAddress [2];
+		public int[] tags = new int[] { -1, -1 };
+
+		public Session (int id, int[] board) {
+			this.id = id;
+			this.board = board;
+			this.markers = board.clone();
+		}
+	}
+
+	// Hidden data members.
+	private static final int BATCH = 4096;
+	private static final int QUEUED = 4;
+
+	private List<HashMap<Integer,Session>> parts;
+
+	// Hidden constructors.
+	private Recovery (List<HashMap<Integer,Session>> parts) {
+		this.parts = parts;
+	}
+
+	// Exported operations.
+	/**
+	 * Replay an event log from its last complete checkpoint.
+	 *
+	 * @param  dir      Directory of segment files.
+	 * @param  threads  Number of threads to apply the events on.
+	 * @return  The recovered sessions.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 * @exception  InterruptedException
+	 *     Thrown if interrupted while waiting for the threads.
+	 */
+	public static Recovery read (File dir, int threads)
+			throws IOException, InterruptedException {
+		int n = Math.max (1, threads);
+		List<HashMap<Integer,Session>> parts =
+			new ArrayList<HashMap<Integer,Session>>();
+		Replayer[] replayers = new Replayer [n];
+		Thread[] appliers = new Thread [n];
+		for (int i = 0; i < n; i++) {
+			replayers[i] = new Replayer();
+			parts.add (replayers[i].sessions);
+			appliers[i] = new Thread (replayers[i], "NimServer-recovery-" + i);
+			appliers[i].start();
+		}
+		Dispatcher dispatcher = new Dispatcher (replayers);
+		try {
+			EventLog.recover (dir, dispatcher);
+		} finally {
+			dispatcher.finish();
+			for (Thread applier : appliers) {
+				applier.join();
+			}
+		}
+		if (dispatcher.interrupted) throw new InterruptedException();
+		for (Replayer replayer : replayers) {
+			if (replayer.failure != null) {
+				throw new IOException ("Cannot replay event log",
+					replayer.failure);
+			}
+		}
+		return new Recovery (parts);
+	}
+
+	/**
+	 * Returns the number of sessions recovered.
+	 */
+	public int size() {
+		int size = 0;
+		for (HashMap<Integer,Session> part : parts) {
+			size += part.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the sessions recovered.
+	 */
+	public List<Session> sessions() {
+		List<Session> sessions = new ArrayList<Session> (size());
+		for (HashMap<Integer,Session> part : parts) {
+			sessions.addAll (part.values());
+		}
+		return sessions;
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Batch is a run of decoded events for one share of the
+	 * sessions: for each, its type, session and two numbers, and two
+	 * objects.
+	 */
+	private static class Batch {
+		public int[] values = new int [4*BATCH];
+		public Object[] objects = new Object [2*BATCH];
+		public int count;
+
+		public boolean isFull() {
+			return count == BATCH;
+		}
+
+		public void add (byte type, int session, int a, int b,
+						 Object x, Object y) {
+			values[4*count] = type;
+			values[4*count+1] = session;
+			values[4*count+2] = a;
+			values[4*count+3] = b;
+			objects[2*count] = x;
+			objects[2*count+1] = y;
+			++ count;
+		}
+	}
+
+	/**
+	 * Class Dispatcher decodes the log's events and batches each for the
+	 * replayer of its session's share.
+	 */
+	private static class Dispatcher implements EventLog.Visitor {
+		private Replayer[] replayers;
+		private Batch[] batches;
+		public boolean interrupted;
+
+		public Dispatcher (Replayer[] replayers) {
+			this.replayers = replayers;
+			this.batches = new Batch [replayers.length];
+			for (int i = 0; i < batches.length; i++) {
+				batches[i] = new Batch();
+			}
+		}
+
+		public void start (int session, int[] board) {
+			add (Replayer.START, session, 0, 0, board, null);
+		}
+
+		public void join (int session, int id, String name,
+						  SocketAddress address, int tag) {
+			add (Replayer.JOIN, session, id, tag, name, address);
+		}
+
+		public void take (int session, int h, int m) {
+			add (Replayer.TAKE, session, h, m, null, null);
+		}
+
+		public void win (int session, int id) {
+			add (Replayer.WIN, session, id, 0, null, null);
+		}
+
+		public void newGame (int session) {
+			add (Replayer.NEW_GAME, session, 0, 0, null, null);
+		}
+
+		public void quit (int session) {
+			add (Replayer.QUIT, session, 0, 0, null, null);
+		}
+
+		public void checkpoint (int session, int version, int turn,
+								int[] scores, int[] board, int[] markers,
+								String[] names, SocketAddress[] addresses,
+								int[] tags) {
+			Session s = new Session (session, board);
+			s.version = version;
+			s.turn = turn;
+			s.scores = scores;
+			s.markers = markers;
+			for (int p = 0; p < names.length && p < 2; p++) {
+				s.names[p] = names[p];
+				s.addresses[p] = addresses[p];
+				s.tags[p] = tags[p];
+			}
+			add (Replayer.CHECKPOINT, session, 0, 0, s, null);
+		}
+
+		/**
+		 * Hand every replayer what is left of its batch, and tell it the
+		 * log has ended.
+		 */
+		public void finish() throws InterruptedException {
+			for (int i = 0; i < replayers.length; i++) {
+				if (batches[i].count > 0) replayers[i].hand (batches[i]);
+				replayers[i].hand (new Batch());
+			}
+		}
+
+		private void add (byte type, int session, int a, int b,
+						  Object x, Object y) {
+			if (interrupted) return;
+			int i = session % replayers.length;
+			Batch batch = batches[i];
+			batch.add (type, session, a, b, x, y);
+			if (batch.isFull()) {
+				try {
+					replayers[i].hand (batch);
+				} catch (InterruptedException exc) {
+					// Drop the rest of the log; read() reports it.
+					interrupted = true;
+				}
+				batches[i] = new Batch();
+			}
+		}
+	}
+
+	/**
+	 * Class Replayer applies the events of its share of the sessions, on
+	 * its own thread, until handed an empty batch.
+	 */
+	private static class Replayer implements Runnable {
+		public static final byte START = 'S';
+		public static final byte JOIN = 'J';
+		public static final byte TAKE = 'T';
+		public static final byte WIN = 'W';
+		public static final byte NEW_GAME = 'N';
+		public static final byte QUIT = 'Q';
+		public static final byte CHECKPOINT = 'C';
+
+		public HashMap<Integer,Session> sessions =
+			new HashMap<Integer,Session>();
+		public volatile RuntimeException failure;
+		private BlockingQueue<Batch> queue =
+			new ArrayBlockingQueue<Batch> (QUEUED);
+
+		public void hand (Batch batch) throws InterruptedException {
+			queue.put (batch);
+		}
+
+		public void run() {
+			for (;;) {
+				Batch batch;
+				try {
+					batch = queue.take();
+				} catch (InterruptedException exc) {
+					return;
+				}
+				if (batch.count == 0) return;
+				// After a failure, keep taking batches so the reader is
+				// not left waiting.
+				if (failure != null) continue;
+				try {
+					apply (batch);
+				} catch (RuntimeException exc) {
+					failure = exc;
+				}
+			}
+		}
+
+		private void apply (Batch batch) {
+			int[] values = batch.values;
+			Object[] objects = batch.objects;
+			for (int k = 0; k < batch.count; k++) {
+				int session = values[4*k+1];
+				int a = values[4*k+2];
+				int b = values[4*k+3];
+				switch (values[4*k]) {
+					case START:
+						sessions.put (session,
+							new Session (session, (int[]) objects[2*k]));
+						break;
+					case JOIN:
+						join (session, a, (String) objects[2*k],
+							(SocketAddress) objects[2*k+1], b);
+						break;
+					case TAKE:
+						take (session, a, b);
+						break;
+					case WIN:
+						win (session, a);
+						break;
+					case NEW_GAME:
+						newGame (session);
+						break;
+					case QUIT:
+						sessions.remove (session);
+						break;
+					case CHECKPOINT:
+						sessions.put (session, (Session) objects[2*k]);
+						break;
+				}
+			}
+		}
+
+		private void join (int session, int id, String name,
+						   SocketAddress address, int tag) {
+			Session s = sessions.get (session);
+			if (s == null || id < 1 || id > 2) return;
+			s.names[id-1] = name;
+			s.addresses[id-1] = address;
+			s.tags[id-1] = tag;
+			s.scores[id-1] = 0;
+			if (id == 2) s.turn = 1;
+			++ s.version;
+		}
+
+		private void take (int session, int h, int m) {
+			Session s = sessions.get (session);
+			if (s == null || h < 0 || h >= s.markers.length) return;
+			s.markers[h] -= m;
+			s.turn = s.turn == 1 ? 2 : 1;
+			++ s.version;
+		}
+
+		private void win (int session, int id) {
+			Session s = sessions.get (session);
+			if (s == null || id < 1 || id > 2) return;
+			++ s.scores[id-1];
+		}
+
+		private void newGame (int session) {
+			Session s = sessions.get (session);
+			if (s == null) return;
+			System.arraycopy (s.board, 0, s.markers, 0, s.board.length);
+			s.turn = 1;
+			++ s.version;
+		}
+	}
+}
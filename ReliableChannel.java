@@ -0,0 +1,426 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class ReliableChannel adds sequencing, acknowledgement, retransmission
+ * and duplicate suppression to the datagrams exchanged with one peer.
+ * <P>
+ * A reliable datagram carries a header after its tag (if any): 'R', the
+ * four-byte epoch of the sending channel, the four-byte sequence number of
+ * its frame (0 for a pure acknowledgement), one byte counting back from it
+ * to the oldest frame the sender still retransmits, the four-byte sequence
+ * number up to which every frame from the peer has been received, and a
+ * four-byte bitmap of which of the 32 frames after that have also been
+ * received. Acknowledgements ride on every datagram going the other way,
+ * so on the happy path a request and its reply cost no extra round trip;
+ * a pure acknowledgement is sent only when nothing goes the other way
+ * within a short delay.
+ * <P>
+ * Unacknowledged frames are kept in a ring of reusable buffers and resent
+ * when their retransmission timeout, adapted from measured round trip
+ * times, expires. Received frames are delivered exactly once and in order;
+ * frames that arrive early are held until the gap before them is filled.
+ * A frame the sender gives up on is skipped once the sender's oldest
+ * retransmitted frame moves past it.
+ * <P>
+ * Delivery is lossy in two cases, both counted in ServerMetrics. A frame
+ * still unacknowledged after MAX_RETRIES retransmissions is given up. And
+ * a sender never blocks: when a whole window of frames is unacknowledged,
+ * because the peer has gone silent, stamp() gives up the oldest one to
+ * make room and returns false. Each given-up frame is lost for good; a
+ * client recovers the session state it carried by syncing, as it does
+ * after a gap in the deltas it receives.
+ * <P>
+ * Each channel picks a random epoch and first sequence number. A channel
+ * that hears from a peer epoch it has not seen before, because it or the
+ * peer is new (after an eviction, a restart or a move to another server),
+ * starts receiving at the sender's oldest retransmitted frame instead of
+ * waiting for frames it will never get, and acknowledgements meant for an
+ * earlier channel almost never match the new one's sequence numbers.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ReliableChannel {
+
+	/**
+	 * Type byte of a reliable header.
+	 */
+	public static final byte RELIABLE = 'R';
+
+	/**
+	 * Length of a reliable header, in bytes.
+	 */
+	public static final int HEADER_LENGTH = 18;
+
+	/**
+	 * Interface Sender puts datagrams built by a reliable channel on the
+	 * wire. It is called without the channel's lock held.
+	 */
+	public static interface Sender {
+		/**
+		 * Send a datagram again.
+		 * @param  datagram  Buffer holding the whole datagram.
+		 */
+		public void resend (ByteBuffer datagram) throws IOException;
+
+		/**
+		 * Send a pure acknowledgement, built with stampAck().
+		 */
+		public void sendAck() throws IOException;
+	}
+
+	// Hidden data members.
+	private static final int WINDOW = 64;
+	private static final int HOLD = 32;
+	private static final long ACK_DELAY = 5;
+	private static final long MIN_RTO = 10;
+	private static final long MAX_RTO = 2000;
+	private static final int MAX_RETRIES = 12;
+
+	private static ScheduledExecutorService timer;
+
+	private Sender sender;
+	private int epoch;
+
+	// Sending side.
+	private int nextSeq;
+	private int base;
+	private byte[][] sentData = new byte [WINDOW][];
+	private int[] sentLength = new int [WINDOW];
+	private long[] sentTime = new long [WINDOW];
+	private int[] retries = new int [WINDOW];
+	private boolean[] acked = new boolean [WINDOW];
+	private int headerOffset;
+	private long srtt = -1;
+	private long rttvar;
+	private long rto = 200;
+	private boolean retransmitPending;
+
+	// Receiving side.
+	private int peerEpoch;
+	private int delivered;
+	private int floor;
+	private byte[][] held = new byte [HOLD][];
+	private int[] heldLength = new int [HOLD];
+	private int heldCount;
+	private boolean ackOwed;
+	private boolean ackPending;
+
+	// Exported constructors.
+	/**
+	 * Construct a new reliable channel.
+	 *
+	 * @param  sender  Puts retransmissions and acknowledgements on the wire.
+	 */
+	public ReliableChannel (Sender sender) {
+		this.sender = sender;
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		do {
+			epoch = random.nextInt();
+		} while (epoch == 0);
+		nextSeq = base = random.nextInt (1 << 16, 1 << 30);
+	}
+
+	// Exported operations.
+	/**
+	 * Write the header of an outgoing frame, acknowledging what has been
+	 * received, and keep a copy of the datagram for retransmission.
+	 *
+	 * @param  datagram  Flipped array-backed buffer holding the whole
+	 *                   datagram, with HEADER_LENGTH bytes left free at
+	 *                   the offset.
+	 * @param  offset    Offset of the header (the tag's length).
+	 * @return  True, or false if the window was full and the oldest frame
+	 *          was given up to make room.
+	 */
+	public synchronized boolean stamp (ByteBuffer datagram, int offset) {
+		boolean room = nextSeq - base < WINDOW;
+		if (!room) {
+			// The peer has gone silent for a whole window; stop waiting
+			// for the oldest frame rather than block the sender.
+			slide (base + 1);
+			ServerMetrics.get().reliableOverflow();
+		}
+		int seq = nextSeq++;
+		putHeader (datagram, offset, seq);
+		int slot = seq & (WINDOW - 1);
+		int length = datagram.limit();
+		if (sentData[slot] == null || sentData[slot].length < length) {
+			sentData[slot] = new byte
+				[Math.max (length, MessageCodec.MAX_FRAME + 16)];
+		}
+		System.arraycopy (datagram.array(), datagram.arrayOffset(),
+			sentData[slot], 0, length);
+		sentLength[slot] = length;
+		sentTime[slot] = System.currentTimeMillis();
+		retries[slot] = 0;
+		acked[slot] = false;
+		headerOffset = offset;
+		ackOwed = false;
+		if (!retransmitPending) {
+			retransmitPending = true;
+			schedule (new Runnable() {
+				public void run() { retransmit(); }
+			}, rto);
+		}
+		return room;
+	}
+
+	/**
+	 * Write the header of a pure acknowledgement.
+	 *
+	 * @param  datagram  Buffer to write the header into, at its position.
+	 */
+	public synchronized void stampAck (ByteBuffer datagram) {
+		putHeader (datagram, datagram.position(), 0);
+		datagram.position (datagram.position() + HEADER_LENGTH);
+		ackOwed = false;
+	}
+
+	/**
+	 * Read the header of an incoming datagram and process its
+	 * acknowledgements.
+	 *
+	 * @param  datagram  Buffer holding the datagram, positioned at the
+	 *                   header; on return positioned at the frame.
+	 * @return  True if the frame should be processed now, false if it is a
+	 *          duplicate, an acknowledgement only, or held for later.
+	 */
+	public synchronized boolean accept (ByteBuffer datagram) {
+		datagram.get();
+		int from = datagram.getInt();
+		int seq = datagram.getInt();
+		int oldest = seq - (datagram.get() & 0xFF);
+		int ack = datagram.getInt();
+		int ackBits = datagram.getInt();
+		processAcks (ack, ackBits);
+		if (seq == 0) return false;
+		owe();
+		if (from != peerEpoch) {
+			// A new peer, or a new channel on our side: start at the
+			// peer's oldest frame.
+			peerEpoch = from;
+			Arrays.fill (held, null);
+			heldCount = 0;
+			delivered = oldest - 1;
+			floor = oldest;
+		} else if (oldest - floor > 0) {
+			// The peer gave up on the frames before its oldest one.
+			floor = oldest;
+			if (heldCount == 0 && floor - delivered > 1) {
+				delivered = floor - 1;
+			}
+		}
+		if (seq - delivered <= 0) {
+			return false;
+		} else if (seq == delivered + 1) {
+			delivered = seq;
+			return true;
+		} else if (seq - delivered <= HOLD) {
+			int slot = seq & (HOLD - 1);
+			if (held[slot] == null) {
+				held[slot] = new byte [datagram.remaining()];
+				heldLength[slot] = datagram.remaining();
+				datagram.get (held[slot]);
+				++ heldCount;
+			}
+			return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the next held frame that is now in order, skipping frames the
+	 * peer gave up on, or null if there is none. Call after each datagram
+	 * accepted, whether or not its frame was to be processed.
+	 */
+	public synchronized ByteBuffer nextHeld() {
+		for (;;) {
+			int slot = (delivered + 1) & (HOLD - 1);
+			byte[] frame = held[slot];
+			if (frame != null) {
+				held[slot] = null;
+				-- heldCount;
+				++ delivered;
+				return ByteBuffer.wrap (frame, 0, heldLength[slot]);
+			}
+			if (floor - delivered <= 1) return null;
+			delivered = heldCount == 0 ? floor - 1 : delivered + 1;
+		}
+	}
+
+	/**
+	 * Returns the current retransmission timeout, in milliseconds.
+	 */
+	public synchronized long getTimeout() {
+		return rto;
+	}
+
+	// Hidden operations.
+	/**
+	 * Write a header at an offset.
+	 */
+	private void putHeader (ByteBuffer datagram, int offset, int seq) {
+		int ackBits = 0;
+		for (int i = 1; i <= HOLD; i++) {
+			if (held[(delivered + i) & (HOLD - 1)] != null) ackBits |= 1 << (i - 1);
+		}
+		datagram.put (offset, RELIABLE);
+		datagram.putInt (offset + 1, epoch);
+		datagram.putInt (offset + 5, seq);
+		datagram.put (offset + 9, (byte) (seq == 0 ? 0 : seq - base));
+		datagram.putInt (offset + 10, delivered);
+		datagram.putInt (offset + 14, ackBits);
+	}
+
+	/**
+	 * Mark frames acknowledged by the peer.
+	 */
+	private void processAcks (int ack, int ackBits) {
+		if (ack - base >= 0 && ack - nextSeq < 0) {
+			sample (ack);
+			slide (ack + 1);
+		}
+		for (int i = 1; i <= HOLD; i++) {
+			if ((ackBits & (1 << (i - 1))) == 0) continue;
+			int seq = ack + i;
+			if (seq - base >= 0 && seq - nextSeq < 0) {
+				acked[seq & (WINDOW - 1)] = true;
+			}
+		}
+		while (base - nextSeq < 0 && acked[base & (WINDOW - 1)]) {
+			++ base;
+		}
+	}
+
+	/**
+	 * Measure a round trip from a frame that was not retransmitted, and
+	 * adapt the retransmission timeout.
+	 */
+	private void sample (int seq) {
+		int slot = seq & (WINDOW - 1);
+		if (retries[slot] != 0) return;
+		long rtt = System.currentTimeMillis() - sentTime[slot];
+		if (srtt < 0) {
+			srtt = rtt;
+			rttvar = rtt/2;
+		} else {
+			rttvar = (3*rttvar + Math.abs (srtt - rtt))/4;
+			srtt = (7*srtt + rtt)/8;
+		}
+		rto = Math.max (MIN_RTO, Math.min (MAX_RTO, srtt + 4*rttvar));
+	}
+
+	/**
+	 * Forget every frame before the given sequence number.
+	 */
+	private void slide (int newBase) {
+		while (base - newBase < 0) {
+			acked[base & (WINDOW - 1)] = true;
+			++ base;
+		}
+	}
+
+	/**
+	 * Note that a frame was received and arrange a pure acknowledgement in
+	 * case no frame goes back soon.
+	 */
+	private void owe() {
+		ackOwed = true;
+		if (!ackPending) {
+			ackPending = true;
+			schedule (new Runnable() {
+				public void run() { acknowledge(); }
+			}, ACK_DELAY);
+		}
+	}
+
+	/**
+	 * Send a pure acknowledgement if one is still owed.
+	 */
+	private void acknowledge() {
+		boolean send;
+		synchronized (this) {
+			ackPending = false;
+			send = ackOwed;
+		}
+		if (!send) return;
+		try {
+			sender.sendAck();
+		} catch (IOException exc) { }
+	}
+
+	/**
+	 * Resend every frame whose timeout has expired.
+	 */
+	private void retransmit() {
+		List<ByteBuffer> due = new ArrayList<ByteBuffer>();
+		synchronized (this) {
+			retransmitPending = false;
+			long now = System.currentTimeMillis();
+			for (int seq = base; seq - nextSeq < 0; seq++) {
+				int slot = seq & (WINDOW - 1);
+				if (acked[slot] || now - sentTime[slot] < rto) continue;
+				if (retries[slot] == MAX_RETRIES) {
+					acked[slot] = true;
+					ServerMetrics.get().reliableGiveUp();
+					continue;
+				}
+				++ retries[slot];
+				sentTime[slot] = now;
+				byte[] copy = new byte [sentLength[slot]];
+				System.arraycopy (sentData[slot], 0, copy, 0, copy.length);
+				ByteBuffer datagram = ByteBuffer.wrap (copy);
+				putHeader (datagram, headerOffset,
+					datagram.getInt (headerOffset + 5));
+				due.add (datagram);
+			}
+			if (!due.isEmpty()) {
+				rto = Math.min (MAX_RTO, 2*rto);
+				ackOwed = false;
+			}
+			while (base - nextSeq < 0 && acked[base & (WINDOW - 1)]) {
+				++ base;
+			}
+			if (base - nextSeq < 0) {
+				retransmitPending = true;
+				schedule (new Runnable() {
+					public void run() { retransmit(); }
+				}, rto);
+			}
+		}
+		for (ByteBuffer datagram : due) {
+			try {
+				sender.resend (datagram);
+			} catch (IOException exc) { }
+		}
+	}
+
+	/**
+	 * Run a task on the shared timer thread after a delay.
+	 */
+	private static void schedule (Runnable task, long millis) {
+		synchronized (ReliableChannel.class) {
+			if (timer == null) {
+				timer = Executors.newSingleThreadScheduledExecutor
+					(new ThreadFactory() {
+						public Thread newThread (Runnable r) {
+							Thread thread = new Thread (r, "Nim-reliable");
+							thread.setDaemon (true);
+							return thread;
+						}
+					});
+			}
+		}
+		timer.schedule (task, millis, TimeUnit.MILLISECONDS);
+	}
+}
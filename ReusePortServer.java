@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class ReusePortServer serves the Nim game from several datagram sockets
+ * bound to the same address with SO_REUSEPORT, each read by its own
+ * thread and MailboxManager. The kernel spreads clients over the sockets
+ * by a hash of their address and port, so every datagram from one client
+ * arrives on the same socket, in order, and the receive work of different
+ * clients runs in parallel instead of queueing on one socket.
+ * <P>
+ * The two players of a session may arrive on different sockets. All the
+ * managers share one session manager, which runs every operation on a
+ * session's model on that session's stripe of a session executor, so a
+ * model is only ever touched by one thread whichever socket its players
+ * use. Proxies of clients recovered from an event log wait in a map the
+ * managers share, for whichever socket the kernel delivers the client to.
+ * <P>
+ * Behind a NimRouter every datagram comes from the router, so the kernel
+ * delivers them all to one socket; the router already spreads clients
+ * over shards.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ReusePortServer {
+
+	// Hidden data members.
+	private DatagramSocket[] sockets;
+	private MailboxManager[] managers;
+	private SessionManager sessionManager;
+	private ConcurrentHashMap<SocketAddress,ViewProxy> unclaimed =
+		new ConcurrentHashMap<SocketAddress,ViewProxy>();
+
+	// Exported constructors.
+	/**
+	 * Construct a new server and bind its sockets.
+	 *
+	 * @param  address     Address every socket binds to.
+	 * @param  numSockets  Number of sockets, each with its own thread.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 * @exception  UnsupportedOperationException
+	 *     Thrown if the platform does not support SO_REUSEPORT.
+	 */
+	public ReusePortServer (InetSocketAddress address, int numSockets)
+			throws IOException {
+		sessionManager = new SessionManager (new SessionExecutor (numSockets));
+		sockets = new DatagramSocket [numSockets];
+		managers = new MailboxManager [numSockets];
+		for (int i = 0; i < numSockets; i++) {
+			sockets[i] = new DatagramSocket (null);
+			sockets[i].setOption (StandardSocketOptions.SO_REUSEPORT, true);
+			sockets[i].bind (address);
+			if (i == 0) {
+				// Bind the others to the port the first got, if it was 0.
+				address = new InetSocketAddress
+					(address.getAddress(), sockets[0].getLocalPort());
+			}
+			managers[i] = new MailboxManager (sockets[i], sessionManager);
+			managers[i].setUnclaimed (unclaimed);
+		}
+	}
+
+	// Exported operations.
+	/**
+	 * Returns the address the sockets are bound to.
+	 */
+	public InetSocketAddress getLocalAddress() {
+		return (InetSocketAddress) sockets[0].getLocalSocketAddress();
+	}
+
+	/**
+	 * Apply a server configuration: its session settings once to the
+	 * session manager the sockets share, and its client settings to each
+	 * socket's manager, which keeps an even share of the proxy limit. Must
+	 * be called before run().
+	 *
+	 * @param  config  Server configuration.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void configure (ServerConfig config) throws IOException {
+		sessionManager.configure (config);
+		int perSocket = (config.maxProxies + managers.length - 1) /
+			managers.length;
+		for (MailboxManager manager : managers) {
+			manager.setMaxProxies (perSocket);
+			manager.setRouter (config.router);
+			manager.setIdleTimeout (config.idleTimeout);
+		}
+	}
+
+	/**
+	 * Restore the sessions recovered from an event log, giving each player
+	 * a proxy for whichever socket first hears from its client, and send
+	 * each player a snapshot. Must be called before run().
+	 *
+	 * @param  recovery  Recovered sessions.
+	 * @return  The number of sessions restored.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public int recover (Recovery recovery) throws IOException {
+		return sessionManager.recover (recovery, new Recovery.Binder() {
+			public ViewProxy bind (SocketAddress address, int tag) {
+				return managers[0].share (address, tag);
+			}
+		});
+	}
+
+	/**
+	 * Returns the number of live proxies.
+	 */
+	public int getProxyCount() {
+		int count = unclaimed.size();
+		for (MailboxManager manager : managers) {
+			count += manager.getProxyCount();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of clients evicted so far.
+	 */
+	public long getEvictions() {
+		long count = 0;
+		for (MailboxManager manager : managers) {
+			count += manager.getEvictions();
+		}
+		return count;
+	}
+
+	/**
+	 * Read every socket on its own thread, the last on the calling thread,
+	 * forever.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void run() throws IOException {
+		for (int i = 1; i < managers.length; i++) {
+			Thread reader = new Reader (managers[i]);
+			reader.setName ("NimServer-socket-" + i);
+			reader.start();
+		}
+		new Reader (managers[0]).run();
+	}
+
+	// Hidden helper classes.
+	/**
+	 * Class Reader receives and processes the datagrams of one socket.
+	 */
+	private static class Reader extends Thread {
+		private MailboxManager manager;
+
+		public Reader (MailboxManager manager) {
+			this.manager = manager;
+			setDaemon (true);
+		}
+
+		public void run() {
+			for (;;) {
+				try {
+					manager.receiveMessage();
+				} catch (IOException exc) {
+					System.err.println ("IOException: " + exc.getMessage());
+				} catch (RuntimeException exc) {
+					System.err.println ("RuntimeException: " + exc);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+import java.net.SocketAddress;
+
+/**
+ * Class ServerConfig holds the settings of a Nim server, which NimServer
+ * reads from system properties and hands unchanged to whichever front end
+ * it runs: a MailboxManager, a ChannelServer or a ReusePortServer. Each
+ * front end applies the session settings once to its session manager and
+ * the client settings to each of its mailbox managers.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ServerConfig {
+
+	/**
+	 * How long a client may stay silent before it is evicted, in
+	 * milliseconds, or 0 for no limit.
+	 */
+	public long idleTimeout;
+
+	/**
+	 * Largest number of clients to keep, shared evenly among a server's
+	 * sockets or workers, or 0 for no limit.
+	 */
+	public int maxProxies;
+
+	/**
+	 * Markers in each heap at the start of a game, or null for the default
+	 * board.
+	 */
+	public int[] board;
+
+	/**
+	 * True to keep the state of every session outside the heap.
+	 */
+	public boolean offHeap;
+
+	/**
+	 * Address of the router the server is a shard behind, or null for
+	 * none.
+	 */
+	public SocketAddress router;
+
+	/**
+	 * Fraction of a computer opponent's moves that are optimal, from 0 to
+	 * 1, or less than 0 for no computer opponents.
+	 */
+	public double computerDifficulty = -1;
+
+	/**
+	 * Time between matchmaking ticks, in milliseconds, or 0 to seat each
+	 * player as it joins.
+	 */
+	public long matchTick;
+
+	/**
+	 * Time a queued player waits before playing the computer, if computer
+	 * opponents are on, in milliseconds.
+	 */
+	public long matchWait = 5000;
+
+	/**
+	 * Width of a rating bucket for matchmaking, or 0 for one bucket.
+	 */
+	public int matchBucket;
+
+	/**
+	 * Event log new sessions are appended to, or null for none.
+	 */
+	public EventLog eventLog;
+
+	/**
+	 * Time between checkpoints of every live session in the event log, in
+	 * milliseconds, or 0 for none.
+	 */
+	public long checkpointInterval;
+
+	/**
+	 * Profile store every game is recorded in, or null for none.
+	 */
+	public ProfileStore profiles;
+}
@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Class ServerMetrics holds the counters and latency histograms of the Nim
+ * server. Counters are striped LongAdders and histograms are lock-free, so
+ * recording from many threads costs a few nanoseconds and never blocks.
+ * There is one instance per process. It can be exported over JMX as
+ * <TT>Nim:type=ServerMetrics</TT> and dumped as text to anyone who
+ * connects to a local TCP port.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+	// Hidden data members.
+	private static final ServerMetrics INSTANCE = new ServerMetrics();
+
+	private LongAdder datagramsIn = new LongAdder();
+	private LongAdder datagramsOut = new LongAdder();
+	private LongAdder badMessages = new LongAdder();
+	private LongAdder rejectedMoves = new LongAdder();
+	private LongAdder liveProxies = new LongAdder();
+	private LongAdder evictions = new LongAdder();
+	private LongAdder reliableOverflows = new LongAdder();
+	private LongAdder reliableGiveUps = new LongAdder();
+	private LongAdder activeSessions = new LongAdder();
+	private LongAdder joins = new LongAdder();
+	private LongAdder quits = new LongAdder();
+	private LongAdder queueDepth = new LongAdder();
+	private LongAdder computerMatches = new LongAdder();
+	private LatencyHistogram matchWait = new LatencyHistogram();
+	private LongAdder eventsLogged = new LongAdder();
+	private LongAdder logBytes = new LongAdder();
+	private LatencyHistogram logCommitLatency = new LatencyHistogram();
+	private LongAdder logBacklog = new LongAdder();
+	private LongAdder logStalls = new LongAdder();
+	private LongAdder profiles = new LongAdder();
+	private LatencyHistogram profileLatency = new LatencyHistogram();
+	private LongAdder profileErrors = new LongAdder();
+	private LatencyHistogram joinLatency = new LatencyHistogram();
+	private LatencyHistogram takeLatency = new LatencyHistogram();
+	private LatencyHistogram newGameLatency = new LatencyHistogram();
+
+	// Hidden constructors.
+	private ServerMetrics() {}
+
+	// Exported operations -- recording.
+
+	/**
+	 * Returns the process's server metrics.
+	 */
+	public static ServerMetrics get() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Count a received datagram.
+	 */
+	public void datagramIn() {
+		datagramsIn.increment();
+	}
+
+	/**
+	 * Count a sent datagram.
+	 */
+	public void datagramOut() {
+		datagramsOut.increment();
+	}
+
+	/**
+	 * Count a message that could not be understood.
+	 */
+	public void badMessage() {
+		badMessages.increment();
+	}
+
+	/**
+	 * Count a take dropped because it was not the sender's turn or not a
+	 * legal move.
+	 */
+	public void rejectedMove() {
+		rejectedMoves.increment();
+	}
+
+	/**
+	 * Count a view proxy created (+1) or dropped (-1).
+	 * @param  delta  Change in live proxies.
+	 */
+	public void proxies (int delta) {
+		liveProxies.add (delta);
+	}
+
+	/**
+	 * Count an evicted client.
+	 */
+	public void eviction() {
+		evictions.increment();
+	}
+
+	/**
+	 * Count a reliable frame given up because the window was full.
+	 */
+	public void reliableOverflow() {
+		reliableOverflows.increment();
+	}
+
+	/**
+	 * Count a reliable frame given up after its last retransmission.
+	 */
+	public void reliableGiveUp() {
+		reliableGiveUps.increment();
+	}
+
+	/**
+	 * Count a session created (+1) or ended (-1).
+	 * @param  delta  Change in live sessions.
+	 */
+	public void sessions (int delta) {
+		activeSessions.add (delta);
+	}
+
+	/**
+	 * Count a join and record its latency.
+	 * @param  nanos  Time taken, in nanoseconds.
+	 */
+	public void join (long nanos) {
+		joins.increment();
+		joinLatency.record (nanos);
+	}
+
+	/**
+	 * Count an ended session.
+	 */
+	public void quit() {
+		quits.increment();
+	}
+
+	/**
+	 * Count a player queued for a match (+1) or taken off the queue (-1).
+	 * @param  delta  Change in queue depth.
+	 */
+	public void queued (int delta) {
+		queueDepth.add (delta);
+	}
+
+	/**
+	 * Record how long a matched player waited in the queue.
+	 * @param  nanos  Time waited, in nanoseconds.
+	 */
+	public void matched (long nanos) {
+		matchWait.record (nanos);
+	}
+
+	/**
+	 * Count a queued player given the computer as an opponent.
+	 */
+	public void computerMatch() {
+		computerMatches.increment();
+	}
+
+	/**
+	 * Count an event appended to the event log.
+	 */
+	public void eventLogged() {
+		eventsLogged.increment();
+	}
+
+	/**
+	 * Count an event log commit and record its size and latency.
+	 * @param  bytes  Bytes written.
+	 * @param  nanos  Time taken, in nanoseconds.
+	 */
+	public void logCommit (long bytes, long nanos) {
+		logBytes.add (bytes);
+		logCommitLatency.record (nanos);
+	}
+
+	/**
+	 * Count buffers of events handed to the event log writer (+n) or taken
+	 * by it to commit (-n).
+	 * @param  delta  Change in buffers waiting.
+	 */
+	public void logBacklog (int delta) {
+		logBacklog.add (delta);
+	}
+
+	/**
+	 * Count an append that had to wait for the event log writer to catch
+	 * up.
+	 */
+	public void logStall() {
+		logStalls.increment();
+	}
+
+	/**
+	 * Count a player profile created.
+	 * @param  delta  Change in profiles.
+	 */
+	public void profiles (int delta) {
+		profiles.add (delta);
+	}
+
+	/**
+	 * Record the time taken to record a game in the player profiles.
+	 * @param  nanos  Time taken, in nanoseconds.
+	 */
+	public void profileUpdate (long nanos) {
+		profileLatency.record (nanos);
+	}
+
+	/**
+	 * Count a game that could not be recorded in the player profiles.
+	 */
+	public void profileError() {
+		profileErrors.increment();
+	}
+
+	/**
+	 * Record the latency of a take.
+	 * @param  nanos  Time taken, in nanoseconds.
+	 */
+	public void take (long nanos) {
+		takeLatency.record (nanos);
+	}
+
+	/**
+	 * Record the latency of a new game.
+	 * @param  nanos  Time taken, in nanoseconds.
+	 */
+	public void newGame (long nanos) {
+		newGameLatency.record (nanos);
+	}
+
+	// Exported operations -- exporting.
+
+	/**
+	 * Register these metrics with the platform MBean server.
+	 *
+	 * @exception  JMException
+	 *     Thrown if registration failed.
+	 */
+	public void registerMBean() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean
+			(this, new ObjectName ("Nim:type=ServerMetrics"));
+	}
+
+	/**
+	 * Serve a text dump of these metrics to each connection on a loopback
+	 * TCP port, on a daemon thread.
+	 *
+	 * @param  port  Port.
+	 *
+	 * @exception  IOException
+	 *     Thrown if the port could not be bound.
+	 */
+	public void serve (int port) throws IOException {
+		final ServerSocket listener = new ServerSocket();
+		listener.bind (new InetSocketAddress
+			(InetAddress.getLoopbackAddress(), port));
+		Thread thread = new Thread ("NimServer-metrics") {
+			public void run() {
+				for (;;) {
+					try (Socket socket = listener.accept()) {
+						OutputStream out = socket.getOutputStream();
+						out.write (dump().getBytes (StandardCharsets.UTF_8));
+					} catch (IOException exc) { }
+				}
+			}
+		};
+		thread.setDaemon (true);
+		thread.start();
+	}
+
+	// Exported operations -- ServerMetricsMBean.
+
+	public long getDatagramsIn() { return datagramsIn.sum(); }
+	public long getDatagramsOut() { return datagramsOut.sum(); }
+	public long getBadMessages() { return badMessages.sum(); }
+	public long getRejectedMoves() { return rejectedMoves.sum(); }
+	public long getLiveProxies() { return liveProxies.sum(); }
+	public long getEvictions() { return evictions.sum(); }
+	public long getReliableOverflows() { return reliableOverflows.sum(); }
+	public long getReliableGiveUps() { return reliableGiveUps.sum(); }
+	public long getActiveSessions() { return activeSessions.sum(); }
+	public long getJoins() { return joins.sum(); }
+	public long getQuits() { return quits.sum(); }
+	public long getQueueDepth() { return queueDepth.sum(); }
+	public long getComputerMatches() { return computerMatches.sum(); }
+	public long getMatchWaitP50() { return matchWait.percentile (0.50); }
+	public long getMatchWaitP99() { return matchWait.percentile (0.99); }
+	public long getEventsLogged() { return eventsLogged.sum(); }
+	public long getLogBytes() { return logBytes.sum(); }
+	public long getLogCommits() { return logCommitLatency.count(); }
+	public long getLogCommitP50() { return logCommitLatency.percentile (0.50); }
+	public long getLogCommitP99() { return logCommitLatency.percentile (0.99); }
+	public long getLogBacklog() { return logBacklog.sum(); }
+	public long getLogStalls() { return logStalls.sum(); }
+	public long getProfiles() { return profiles.sum(); }
+	public long getProfileUpdateP50() { return profileLatency.percentile (0.50); }
+	public long getProfileUpdateP99() { return profileLatency.percentile (0.99); }
+	public long getProfileErrors() { return profileErrors.sum(); }
+	public long getJoinP50() { return joinLatency.percentile (0.50); }
+	public long getJoinP99() { return joinLatency.percentile (0.99); }
+	public long getTakeP50() { return takeLatency.percentile (0.50); }
+	public long getTakeP99() { return takeLatency.percentile (0.99); }
+	public long getNewGameP50() { return newGameLatency.percentile (0.50); }
+	public long getNewGameP99() { return newGameLatency.percentile (0.99); }
+
+	public String dump() {
+		StringBuilder b = new StringBuilder();
+		line (b, "datagrams_in", getDatagramsIn());
+		line (b, "datagrams_out", getDatagramsOut());
+		line (b, "bad_messages", getBadMessages());
+		line (b, "rejected_moves", getRejectedMoves());
+		line (b, "live_proxies", getLiveProxies());
+		line (b, "evictions", getEvictions());
+		line (b, "reliable_overflows", getReliableOverflows());
+		line (b, "reliable_give_ups", getReliableGiveUps());
+		line (b, "active_sessions", getActiveSessions());
+		line (b, "joins", getJoins());
+		line (b, "quits", getQuits());
+		line (b, "queue_depth", getQueueDepth());
+		line (b, "computer_matches", getComputerMatches());
+		line (b, "match_wait_ns_p50", getMatchWaitP50());
+		line (b, "match_wait_ns_p99", getMatchWaitP99());
+		line (b, "log_events", getEventsLogged());
+		line (b, "log_bytes", getLogBytes());
+		line (b, "log_commits", getLogCommits());
+		line (b, "log_commit_ns_p50", getLogCommitP50());
+		line (b, "log_commit_ns_p99", getLogCommitP99());
+		line (b, "log_backlog", getLogBacklog());
+		line (b, "log_stalls", getLogStalls());
+		line (b, "profiles", getProfiles());
+		line (b, "profile_update_ns_p50", getProfileUpdateP50());
+		line (b, "profile_update_ns_p99", getProfileUpdateP99());
+		line (b, "profile_errors", getProfileErrors());
+		line (b, "join_ns_p50", getJoinP50());
+		line (b, "join_ns_p99", getJoinP99());
+		line (b, "take_count", takeLatency.count());
+		line (b, "take_ns_p50", getTakeP50());
+		line (b, "take_ns_p99", getTakeP99());
+		line (b, "new_game_count", newGameLatency.count());
+		line (b, "new_game_ns_p50", getNewGameP50());
+		line (b, "new_game_ns_p99", getNewGameP99());
+		return b.toString();
+	}
+
+	// Hidden operations.
+	private static void line (StringBuilder b, String name, long value) {
+		b.append (name).append (' ').append (value).append ('\n');
+	}
+}
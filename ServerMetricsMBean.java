@@ -0,0 +1,183 @@
+/**
+ * Interface ServerMetricsMBean specifies the server metrics exported over
+ * JMX.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public interface ServerMetricsMBean {
+
+	/**
+	 * Returns the number of datagrams received.
+	 */
+	public long getDatagramsIn();
+
+	/**
+	 * Returns the number of datagrams sent.
+	 */
+	public long getDatagramsOut();
+
+	/**
+	 * Returns the number of messages that could not be understood.
+	 */
+	public long getBadMessages();
+
+	/**
+	 * Returns the number of takes dropped as out of turn or illegal.
+	 */
+	public long getRejectedMoves();
+
+	/**
+	 * Returns the number of live view proxies.
+	 */
+	public long getLiveProxies();
+
+	/**
+	 * Returns the number of clients evicted for idleness or room.
+	 */
+	public long getEvictions();
+
+	/**
+	 * Returns the number of reliable frames given up, unacknowledged,
+	 * because a whole window of frames to the same peer was outstanding.
+	 */
+	public long getReliableOverflows();
+
+	/**
+	 * Returns the number of reliable frames given up, unacknowledged,
+	 * after their last retransmission.
+	 */
+	public long getReliableGiveUps();
+
+	/**
+	 * Returns the number of live sessions.
+	 */
+	public long getActiveSessions();
+
+	/**
+	 * Returns the number of joins.
+	 */
+	public long getJoins();
+
+	/**
+	 * Returns the number of sessions ended.
+	 */
+	public long getQuits();
+
+	/**
+	 * Returns the number of players queued for a match.
+	 */
+	public long getQueueDepth();
+
+	/**
+	 * Returns the number of queued players given the computer as an
+	 * opponent after waiting too long.
+	 */
+	public long getComputerMatches();
+
+	/**
+	 * Returns the median time a matched player waited, in nanoseconds.
+	 */
+	public long getMatchWaitP50();
+
+	/**
+	 * Returns the 99th percentile time a matched player waited, in
+	 * nanoseconds.
+	 */
+	public long getMatchWaitP99();
+
+	/**
+	 * Returns the number of events appended to the event log.
+	 */
+	public long getEventsLogged();
+
+	/**
+	 * Returns the number of bytes committed to the event log.
+	 */
+	public long getLogBytes();
+
+	/**
+	 * Returns the number of event log commits.
+	 */
+	public long getLogCommits();
+
+	/**
+	 * Returns the median event log commit latency, in nanoseconds.
+	 */
+	public long getLogCommitP50();
+
+	/**
+	 * Returns the 99th percentile event log commit latency, in nanoseconds.
+	 */
+	public long getLogCommitP99();
+
+	/**
+	 * Returns the number of buffers of events waiting for the event log
+	 * writer.
+	 */
+	public long getLogBacklog();
+
+	/**
+	 * Returns the number of appends that waited because the event log
+	 * backlog was full.
+	 */
+	public long getLogStalls();
+
+	/**
+	 * Returns the number of player profiles.
+	 */
+	public long getProfiles();
+
+	/**
+	 * Returns the median time to record a game in the player profiles, in
+	 * nanoseconds.
+	 */
+	public long getProfileUpdateP50();
+
+	/**
+	 * Returns the 99th percentile time to record a game in the player
+	 * profiles, in nanoseconds.
+	 */
+	public long getProfileUpdateP99();
+
+	/**
+	 * Returns the number of games that could not be recorded in the
+	 * player profiles.
+	 */
+	public long getProfileErrors();
+
+	/**
+	 * Returns the median join latency, in nanoseconds.
+	 */
+	public long getJoinP50();
+
+	/**
+	 * Returns the 99th percentile join latency, in nanoseconds.
+	 */
+	public long getJoinP99();
+
+	/**
+	 * Returns the median take latency, in nanoseconds.
+	 */
+	public long getTakeP50();
+
+	/**
+	 * Returns the 99th percentile take latency, in nanoseconds.
+	 */
+	public long getTakeP99();
+
+	/**
+	 * Returns the median new game latency, in nanoseconds.
+	 */
+	public long getNewGameP50();
+
+	/**
+	 * Returns the 99th percentile new game latency, in nanoseconds.
+	 */
+	public long getNewGameP99();
+
+	/**
+	 * Returns every metric as text, one "name value" line each.
+	 */
+	public String dump();
+}
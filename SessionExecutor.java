@@ -0,0 +1,61 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Class SessionExecutor runs the operations of Nim sessions on a fixed set
+ * of single-threaded stripes. Every operation on one session runs on the
+ * same stripe in submission order, so a session's model is only ever
+ * touched by one thread and needs no locking, while different sessions run
+ * in parallel on different stripes.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class SessionExecutor {
+
+	// Hidden data members.
+	private ExecutorService[] stripes;
+
+	// Exported constructors.
+	/**
+	 * Construct a new session executor.
+	 *
+	 * @param  numStripes  Number of stripes (threads).
+	 */
+	public SessionExecutor (int numStripes) {
+		stripes = new ExecutorService [numStripes];
+		for (int i = 0; i < numStripes; i++) {
+			final String name = "NimServer-session-" + i;
+			stripes[i] = Executors.newSingleThreadExecutor
+				(new ThreadFactory() {
+					public Thread newThread (Runnable r) {
+						Thread thread = new Thread (r, name);
+						thread.setDaemon (true);
+						return thread;
+					}
+				});
+		}
+	}
+
+	// Exported operations.
+	/**
+	 * Run a task on the stripe that owns the given session.
+	 *
+	 * @param  session  Session the task operates on.
+	 * @param  task     Task to run.
+	 */
+	public void execute (NimModel session, Runnable task) {
+		int hash = System.identityHashCode (session);
+		stripes[(hash & 0x7fffffff) % stripes.length].execute (task);
+	}
+
+	/**
+	 * Stop accepting tasks; tasks already submitted still run.
+	 */
+	public void shutdown() {
+		for (ExecutorService stripe : stripes) {
+			stripe.shutdown();
+		}
+	}
+}
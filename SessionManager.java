@@ -1,7 +1,58 @@
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 /**
- * Mantains the sessions' model objects.
+ * Mantains the sessions' model objects. Sessions waiting for a second
+ * player are kept in arrival order so a join finds its seat in constant
+ * time, and each player's proxy reports to a Seat holding its session and
+ * opponent, so quitting does not scan every session and no map entry is
+ * kept per player.
+ * <P>
+ * If a session executor is given, every operation on a session's model
+ * runs on that session's stripe of the executor, so players handled by
+ * different threads never touch a model concurrently.
+ * <P>
+ * If computer opponents are on, a player who finds no one waiting plays
+ * a ComputerPlayer at once instead of waiting. A computer player's moves
+ * are operations on its session's model like any other: on the session's
+ * stripe, or, without an executor, on the calling thread once the
+ * operation in progress is done.
+ * <P>
+ * If matchmaking is on, a joining player is queued instead, and players
+ * are paired in batches by a Matchmaker each time tick() finds a tick due.
+ * A player left unpaired too long plays the computer, if computer
+ * opponents are on.
+ * <P>
+ * If an event log is set, each new session is started in it, and its
+ * model appends the session's events there. If checkpoints are on, each
+ * tick that finds one due has every live session append its whole state,
+ * on the session's own thread, so recovery can start from there. Sessions
+ * recovered from the log are restored with their players' proxies and
+ * their computer players.
+ * <P>
+ * If a profile store is set, every session records its games there, and
+ * the matchmaker buckets each joining player by its rating there.
+ * <P>
+ * Every session's state is a record in a SessionTable shared by the
+ * sessions on boards of the same number of heaps, on the heap or, if the
+ * off-heap session store is on, outside it, so that the collector's work
+ * does not grow with the number of live sessions. A session's slot is
+ * freed when it quits and reused by the next.
+ * <P>
+ * The number of players waiting for an opponent is kept up to date for a
+ * NimRouter in front of several servers, which sends joining players to
+ * a server where someone is waiting.
  *
  * @author  Martin Suarez
  * @version 12/02/2015
@@ -9,15 +60,281 @@ import java.util.ArrayList;
 public class SessionManager implements ViewListener{
 	
 	// Hidden data members.
-	private ArrayList<NimModel> sessions = 
-		new ArrayList<NimModel>();
+	private LinkedHashMap<NimModel,ViewProxy> waiting = 
+		new LinkedHashMap<NimModel,ViewProxy>();
+	private Set<NimModel> live = Collections.newSetFromMap
+		( new IdentityHashMap<NimModel,Boolean>() );
+	private SessionExecutor executor;
+	// Board of new sessions, shared by their models: replaced, never
+	// changed.
+	private int[] board = NimModel.DEFAULT_BOARD.clone();
+	private double difficulty = -1;
+	private ArrayDeque<Runnable> deferred = new ArrayDeque<Runnable>();
+	private boolean running;
+	private Matchmaker matchmaker;
+	private long tickMillis, fallbackMillis;
+	private int bucketWidth;
+	private volatile long nextTick;
+	private EventLog eventLog;
+	private long checkpointMillis;
+	private volatile long nextCheckpoint;
+	private AtomicInteger checkpointing = new AtomicInteger();
+	private volatile int waitingPlayers;
+	private ProfileStore profiles;
+	private boolean offHeap;
+	private Map<Integer,SessionTable> tables =
+		new HashMap<Integer,SessionTable>();
+	private Matchmaker.Listener starter = new Matchmaker.Listener() {
+		public void match( ViewProxy a, String nameA,
+						   ViewProxy b, String nameB ) {
+			startSession( a, nameA, b, nameB );
+		}
+	};
 	
 	// Exported constructors.
 	/**
-	 * Construct a new session manager.
+	 * Construct a new session manager that runs model operations on the
+	 * calling thread.
 	 */
 	public SessionManager(){}
 	
+	/**
+	 * Construct a new session manager that runs model operations on a
+	 * session executor.
+	 * @param  executor  Session executor.
+	 */
+	public SessionManager( SessionExecutor executor ) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * Set the board new sessions are played on.
+	 * @param  board  Markers in each heap at the start of a game.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the board is not one a model can be played on.
+	 */
+	public synchronized void setBoard( int[] board ) {
+		new NimModel( board );
+		this.board = board.clone();
+	}
+	
+	/**
+	 * Pair a player who finds no one waiting with a computer player, or
+	 * stop doing so. Must be called before the first join.
+	 * @param  difficulty  Fraction of the computer's moves that are
+	 *                     optimal, from 0 to 1, or less than 0 for no
+	 *                     computer opponents.
+	 */
+	public synchronized void setComputerDifficulty( double difficulty ) {
+		this.difficulty = Math.min( difficulty, 1 );
+		configureMatchmaking();
+	}
+	
+	/**
+	 * Append the events of new sessions to an event log. Must be called
+	 * before the first join.
+	 * @param  eventLog  Event log, or null for none.
+	 */
+	public synchronized void setEventLog( EventLog eventLog ) {
+		this.eventLog = eventLog;
+	}
+	
+	/**
+	 * Record every game's winner and loser in a profile store, and queue
+	 * joining players by their rating there. Must be called before the
+	 * first join.
+	 * @param  profiles  Profile store, or null for none.
+	 */
+	public synchronized void setProfiles( ProfileStore profiles ) {
+		this.profiles = profiles;
+	}
+	
+	/**
+	 * Keep the state of new sessions outside the heap, or on it. Must be
+	 * called before the first join.
+	 * @param  offHeap  True to keep session state outside the heap.
+	 */
+	public synchronized void setOffHeap( boolean offHeap ) {
+		this.offHeap = offHeap;
+		tables.clear();
+	}
+	
+	/**
+	 * Checkpoint every live session in the event log periodically, or stop
+	 * doing so.
+	 * @param  millis  Time between checkpoints, in milliseconds, or 0 for
+	 *                 none.
+	 */
+	public synchronized void setCheckpointInterval( long millis ) {
+		this.checkpointMillis = millis;
+		this.nextCheckpoint = System.nanoTime() + millis*1000000L;
+	}
+	
+	/**
+	 * Queue joining players and pair them in batches, or stop doing so.
+	 * Must be called before the first join.
+	 * @param  tickMillis      Time between ticks, in milliseconds, or 0 to
+	 *                         seat each player as it joins.
+	 * @param  fallbackMillis  Time a player waits before playing the
+	 *                         computer, if computer opponents are on.
+	 * @param  bucketWidth     Width of a rating bucket, or 0 for one bucket.
+	 */
+	public synchronized void setMatchmaking( long tickMillis,
+			long fallbackMillis, int bucketWidth ) {
+		this.tickMillis = tickMillis;
+		this.fallbackMillis = fallbackMillis;
+		this.bucketWidth = bucketWidth;
+		configureMatchmaking();
+	}
+	
+	/**
+	 * Apply every session setting of a server configuration at once,
+	 * building the matchmaker, if any, only once. Must be called before
+	 * the first join.
+	 * @param  config  Server configuration.
+	 *
+	 * @exception  IllegalArgumentException
+	 *     Thrown if the board is not one a model can be played on.
+	 */
+	public synchronized void configure( ServerConfig config ) {
+		if (config.board != null) setBoard( config.board );
+		this.offHeap = config.offHeap;
+		tables.clear();
+		this.eventLog = config.eventLog;
+		this.profiles = config.profiles;
+		this.difficulty = Math.min( config.computerDifficulty, 1 );
+		this.tickMillis = config.matchTick;
+		this.fallbackMillis = config.matchWait;
+		this.bucketWidth = config.matchBucket;
+		configureMatchmaking();
+		setCheckpointInterval( config.checkpointInterval );
+	}
+	
+	/**
+	 * Returns the time between ticks, in milliseconds: the shorter of the
+	 * matchmaking tick and the checkpoint interval, or 0 if neither is on.
+	 */
+	public synchronized long tickInterval() {
+		long interval = matchmaker == null ? 0 : tickMillis;
+		if (eventLog != null && checkpointMillis > 0 &&
+				(interval == 0 || checkpointMillis < interval)) {
+			interval = checkpointMillis;
+		}
+		return interval;
+	}
+	
+	/**
+	 * Pair the queued players, if matchmaking is on and a tick is due, and
+	 * begin a checkpoint, if one is due. Cheap when nothing is due, so it
+	 * may be called on every datagram.
+	 */
+	public void tick() {
+		long now = System.nanoTime();
+		if (now >= nextTick) {
+			synchronized (this) {
+				if (matchmaker != null && now >= nextTick) {
+					nextTick = now + tickMillis*1000000L;
+					matchmaker.tick( now, starter );
+					countWaiting();
+				}
+			}
+		}
+		if (checkpointMillis > 0 && now >= nextCheckpoint) {
+			checkpoint();
+		}
+	}
+	
+	/**
+	 * Begin a checkpoint of every live session in the event log, unless
+	 * the last one is still being written. Each session appends its state
+	 * on its own thread; the last to do so ends the checkpoint.
+	 */
+	public void checkpoint() {
+		final List<NimModel> models;
+		final int number;
+		synchronized (this) {
+			nextCheckpoint = System.nanoTime() + checkpointMillis*1000000L;
+			if (eventLog == null || !checkpointing.compareAndSet( 0, 1 ))
+				return;
+			number = eventLog.beginCheckpoint();
+			models = new ArrayList<NimModel>( live );
+			checkpointing.addAndGet( models.size() );
+		}
+		final EventLog log = eventLog;
+		for (final NimModel model : models) {
+			submit( model, new Runnable() {
+				public void run() {
+					model.checkpoint();
+					if (checkpointing.decrementAndGet() == 0)
+						log.endCheckpoint( number );
+				}
+			});
+		}
+		if (checkpointing.decrementAndGet() == 0)
+			log.endCheckpoint( number );
+	}
+	
+	/**
+	 * Restore the sessions recovered from an event log: give each player a
+	 * proxy, seat it as before, and have each session send its players a
+	 * snapshot. Must be called before the first join.
+	 * @param  recovery  Recovered sessions.
+	 * @param  binder    Binder giving each player's client a proxy.
+	 * @return  The number of sessions restored.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public synchronized int recover( Recovery recovery,
+									 Recovery.Binder binder )
+			throws IOException {
+		int restored = 0;
+		for (final Recovery.Session s : recovery.sessions()) {
+			if (s.names[0] == null || s.addresses[0] == null) continue;
+			final ViewProxy a = binder.bind( s.addresses[0], s.tags[0] );
+			ViewProxy b = null;
+			if (s.names[1] != null && s.addresses[1] != null) {
+				b = binder.bind( s.addresses[1], s.tags[1] );
+			}
+			if (seatOf( a ) != null ||
+					(b != null && (b == a || seatOf( b ) != null))) {
+				continue;
+			}
+			final NimModel model = Arrays.equals( s.board, board ) ?
+				new NimModel( board, tableFor( board.length ), true ) :
+				new NimModel( s.board, tableFor( s.board.length ) );
+			if (eventLog != null) model.setEventLog( eventLog, s.id );
+			model.setProfiles( profiles );
+			live.add( model );
+			ServerMetrics.get().sessions( 1 );
+			seat( a, model, b );
+			final ModelListener opponent;
+			if (b != null) {
+				seat( b, model, a );
+				opponent = b;
+			} else if (s.names[1] != null) {
+				opponent = computerFor( model );
+			} else {
+				waiting.put( model, a );
+				opponent = null;
+			}
+			submit( model, new ModelTask() {
+				public void perform() throws IOException {
+					model.restore( s.version + Recovery.VERSION_GAP, s.turn, s.scores,
+						s.markers, a, s.names[0], opponent, s.names[1] );
+				}
+			});
+			++ restored;
+		}
+		if (checkpointMillis > 0) {
+			// Checkpoint the restored sessions at the next tick.
+			nextCheckpoint = 0;
+		}
+		countWaiting();
+		return restored;
+	}
+	
 	/**
 	 * Join a given session.
 	 * @param  proxy    Reference to view proxy object.
@@ -26,34 +343,62 @@ public class SessionManager implements ViewListener{
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void join(ViewProxy proxy, String n) throws IOException {
-		boolean space_found = false; 
-		for( NimModel model : sessions ) {
-			if (model.needsPlayer()) {
-				space_found = true;
-				proxy.setViewListener( model );
-				model.addPlayer(  proxy, false, n );
-			}
+	public synchronized void join(final ViewProxy proxy, final String n)
+			throws IOException {
+		if (seatOf( proxy ) != null) return;
+		long start = System.nanoTime();
+		if (matchmaker != null) {
+			matchmaker.enqueue( proxy, n, profiles == null ?
+				ProfileStore.DEFAULT_RATING : profiles.rating( n ), start );
+			countWaiting();
+			ServerMetrics.get().join( System.nanoTime() - start );
+			return;
+		}
+		Iterator<Map.Entry<NimModel,ViewProxy>> seat =
+			waiting.entrySet().iterator();
+		if (!seat.hasNext() && difficulty >= 0) {
+			startSession( proxy, n, null, null );
+			ServerMetrics.get().join( System.nanoTime() - start );
+			return;
 		}
-		if (!space_found) {
-			NimModel model = new NimModel();
-			proxy.setViewListener( model );
-			model.addPlayer( proxy, true, n );
-			sessions.add( model );
+		final NimModel model;
+		final boolean is_p1;
+		if (seat.hasNext()) {
+			Map.Entry<NimModel,ViewProxy> entry = seat.next();
+			seat.remove();
+			model = entry.getKey();
+			is_p1 = false;
+			seatOf( entry.getValue() ).opponent = proxy;
+			seat( proxy, model, entry.getValue() );
 		}
+		else {
+			model = newModel();
+			is_p1 = true;
+			waiting.put( model, proxy );
+			ServerMetrics.get().sessions( 1 );
+			seat( proxy, model, null );
+		}
+		submit( model, new ModelTask() {
+			public void perform() throws IOException {
+				model.addPlayer( proxy, is_p1, n );
+			}
+		});
+		countWaiting();
+		ServerMetrics.get().join( System.nanoTime() - start );
 	}
 	
 	/**
 	 * Specify number of 
 	 * markers taken from heap h.
 	 *
+	 * @param  proxy    Reference to view proxy object.
 	 * @param  h    Heap number
 	 * @param  m  	Markers number
 	 *
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void take(int h, int m) throws IOException {
+	public void take(ViewProxy proxy, int h, int m) throws IOException {
 	}
 	
 	/**
@@ -65,19 +410,62 @@ public class SessionManager implements ViewListener{
 	public void newGame() throws IOException {
 	}
 	
+	/**
+	 * Check a client's version. A client with no session has nothing to
+	 * catch up on.
+	 *
+	 * @param  proxy    Reference to view proxy object.
+	 * @param  v        Version the client has.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void sync(ViewProxy proxy, int v) throws IOException {
+	}
+	
 	/**
 	 * Prepare to quit the game
 	 *
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void prepareQuit(ViewProxy vp) throws IOException {
-		for( int i = 0; i < sessions.size(); i++ ) {
-			if (vp != null && sessions.get(i).isInGame(vp)) {
-				sessions.get(i).quit();
-				sessions.remove( i );
-			}
+	public synchronized void prepareQuit(ViewProxy vp) throws IOException {
+		if (matchmaker != null && matchmaker.cancel( vp )) {
+			countWaiting();
+			return;
 		}
+		Seat seat = seatOf( vp );
+		if (seat == null) return;
+		final NimModel model = seat.model;
+		vp.setViewListener( this );
+		live.remove( model );
+		ServerMetrics.get().sessions( -1 );
+		ServerMetrics.get().quit();
+		if (waiting.remove( model ) != null) countWaiting();
+		if (seat.opponent != null) {
+			// The opponent's client may join again without reconnecting.
+			seat.opponent.setViewListener( this );
+		}
+		submit( model, new ModelTask() {
+			public void perform() throws IOException {
+				model.quit();
+			}
+		});
+	}
+	
+	/**
+	 * Returns the number of players waiting for an opponent: alone in a
+	 * session, or queued for matchmaking.
+	 */
+	public int waitingCount() {
+		return waitingPlayers;
+	}
+	
+	/**
+	 * Returns the number of live sessions.
+	 */
+	public synchronized int sessionCount() {
+		return live.size();
 	}
 	
 	/**
@@ -89,4 +477,226 @@ public class SessionManager implements ViewListener{
 	public void quit() throws IOException {
 	}
 	
+	// Hidden operations.
+	
+	/**
+	 * Start a session between two players, or a player and the computer.
+	 * @param  a      Player 1's proxy.
+	 * @param  nameA  Player 1's name.
+	 * @param  b      Player 2's proxy, or null for the computer.
+	 * @param  nameB  Player 2's name, or null for the computer.
+	 */
+	private void startSession( final ViewProxy a, final String nameA,
+							   final ViewProxy b, final String nameB ) {
+		final NimModel model = newModel();
+		ServerMetrics.get().sessions( 1 );
+		seat( a, model, b );
+		if (b != null) {
+			seat( b, model, a );
+		}
+		final ComputerPlayer computer = b != null ? null :
+			computerFor( model );
+		submit( model, new ModelTask() {
+			public void perform() throws IOException {
+				model.addPlayer( a, true, nameA );
+				if (b != null) {
+					model.addPlayer( b, false, nameB );
+				} else {
+					model.addPlayer( computer, false, ComputerPlayer.NAME );
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Returns a computer player for a session.
+	 * @param  model  Session.
+	 */
+	private ComputerPlayer computerFor( final NimModel model ) {
+		return new ComputerPlayer( model, new Executor() {
+			public void execute( Runnable task ) {
+				submit( model, task );
+			}
+		}, Math.max( difficulty, 0 ) );
+	}
+	
+	/**
+	 * Returns a model for a new session, started in the event log if there
+	 * is one, and recording its games in the profile store if there is one.
+	 */
+	private NimModel newModel() {
+		NimModel model = new NimModel( board, tableFor( board.length ), true );
+		model.setProfiles( profiles );
+		live.add( model );
+		if (eventLog != null) {
+			model.setEventLog( eventLog, eventLog.start( board ) );
+		}
+		return model;
+	}
+	
+	/**
+	 * Note the number of players waiting for an opponent.
+	 */
+	private void countWaiting() {
+		waitingPlayers = waiting.size() +
+			(matchmaker == null ? 0 : matchmaker.size());
+	}
+	
+	/**
+	 * Returns the session table for boards of a number of heaps.
+	 * @param  heaps  Number of heaps.
+	 */
+	private SessionTable tableFor( int heaps ) {
+		SessionTable table = tables.get( heaps );
+		if (table == null) {
+			table = new SessionTable( heaps, SessionTable.CHUNK, offHeap );
+			tables.put( heaps, table );
+		}
+		return table;
+	}
+	
+	/**
+	 * Create or drop the matchmaker to suit the matchmaking and computer
+	 * settings.
+	 */
+	private void configureMatchmaking() {
+		matchmaker = tickMillis <= 0 ? null : new Matchmaker
+			( tickMillis, difficulty < 0 ? 0 : fallbackMillis, bucketWidth );
+	}
+	
+	/**
+	 * Seat a player in a session: its proxy reports to a seat that knows
+	 * the session and the opponent.
+	 * @param  proxy     Player's proxy.
+	 * @param  model     Player's session.
+	 * @param  opponent  Opponent's proxy, or null if none or the computer.
+	 */
+	private void seat( ViewProxy proxy, NimModel model, ViewProxy opponent ) {
+		Seat seat = new Seat( model );
+		seat.opponent = opponent;
+		proxy.setViewListener( seat );
+	}
+	
+	/**
+	 * Returns a player's seat, or null if the player is in no session.
+	 * @param  proxy     Player's proxy.
+	 */
+	private Seat seatOf( ViewProxy proxy ) {
+		ViewListener listener = proxy.getViewListener();
+		return listener instanceof Seat && ((Seat) listener).owner() == this ?
+			(Seat) listener : null;
+	}
+	
+	/**
+	 * Run a task on a session's model, on the session's stripe if there is
+	 * a session executor and on the calling thread otherwise. A task
+	 * submitted on the calling thread while another runs, such as a
+	 * computer player's move, runs after it.
+	 * @param  model  Session.
+	 * @param  task   Task.
+	 */
+	private void submit( NimModel model, Runnable task ) {
+		if (executor != null) {
+			executor.execute( model, task );
+			return;
+		}
+		if (running) {
+			deferred.add( task );
+			return;
+		}
+		running = true;
+		try {
+			task.run();
+			while ((task = deferred.poll()) != null) {
+				task.run();
+			}
+		} finally {
+			running = false;
+		}
+	}
+	
+	// Hidden helper classes.
+	
+	/**
+	 * Class ModelTask is an operation on a model whose I/O errors are
+	 * reported instead of propagated.
+	 */
+	private static abstract class ModelTask implements Runnable {
+		public abstract void perform() throws IOException;
+		
+		public void run() {
+			try {
+				perform();
+			} catch (IOException exc) {
+				System.err.println( "IOException: " + exc.getMessage() );
+			}
+		}
+	}
+	
+	/**
+	 * Class Seat is a player's place in a session: the session, and the
+	 * opponent's proxy if the opponent is a client. It is all the session
+	 * manager keeps per player. It forwards the player's requests to the
+	 * session, through the session executor or, with computer opponents,
+	 * after the operation in progress; otherwise directly.
+	 */
+	private class Seat implements ViewListener {
+		public NimModel model;
+		public ViewProxy opponent;
+		
+		public Seat( NimModel model ) {
+			this.model = model;
+		}
+		
+		public SessionManager owner() {
+			return SessionManager.this;
+		}
+		
+		public void join(ViewProxy proxy, String n) {
+		}
+		
+		public void take(final ViewProxy proxy, final int h, final int m)
+				throws IOException {
+			// Without an executor, the computer's moves must not run inside
+			// the operation that gave it the turn.
+			if (executor == null && difficulty < 0) {
+				model.take( proxy, h, m );
+				return;
+			}
+			submit( model, new ModelTask() {
+				public void perform() throws IOException {
+					model.take( proxy, h, m );
+				}
+			});
+		}
+		
+		public void newGame() throws IOException {
+			if (executor == null && difficulty < 0) {
+				model.newGame();
+				return;
+			}
+			submit( model, new ModelTask() {
+				public void perform() throws IOException {
+					model.newGame();
+				}
+			});
+		}
+		
+		public void sync(final ViewProxy proxy, final int v)
+				throws IOException {
+			if (executor == null && difficulty < 0) {
+				model.sync( proxy, v );
+				return;
+			}
+			submit( model, new ModelTask() {
+				public void perform() throws IOException {
+					model.sync( proxy, v );
+				}
+			});
+		}
+		
+		public void quit() {
+		}
+	}
+	
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Class SessionTable holds the state of many sessions on boards of one
+ * number of heaps: each session's version, turn, scores, counts, change
+ * log, and each heap's markers and version, as one fixed size record in
+ * a slot of the table. A session's model keeps its slot and reads and
+ * writes its record in place, so a session costs the heap no arrays, and
+ * a live session is a few objects instead of a few objects and an array
+ * per field.
+ * <P>
+ * Records are stored in chunks of a fixed number of slots, allocated as
+ * the table grows and never moved. Chunks are heap buffers, or direct
+ * buffers outside the heap, so that the collector neither copies nor
+ * scans them however many sessions are live. A freed slot is cleared and
+ * given to the next session, so the table is only as large as the most
+ * sessions live at once.
+ * <P>
+ * Allocating and freeing slots is thread safe. A slot's record may be read
+ * and written only by its session's thread, between allocate() and free().
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+public class SessionTable {
+
+	/**
+	 * Offset in a record of the session's version.
+	 */
+	public static final int VERSION = 0;
+
+	/**
+	 * Offset in a record of the id of the player whose turn it is.
+	 */
+	public static final int TURN = 4;
+
+	/**
+	 * Offset in a record of player 1's score.
+	 */
+	public static final int SCORE1 = 8;
+
+	/**
+	 * Offset in a record of player 2's score.
+	 */
+	public static final int SCORE2 = 12;
+
+	/**
+	 * Offset in a record of the number of markers left.
+	 */
+	public static final int REMAINING = 16;
+
+	/**
+	 * Offset in a record of the nim-sum of the heaps.
+	 */
+	public static final int NIM_SUM = 20;
+
+	/**
+	 * Offset in a record of the version at which player 1's score changed.
+	 */
+	public static final int SCORE1_VERSION = 24;
+
+	/**
+	 * Offset in a record of the version at which player 2's score changed.
+	 */
+	public static final int SCORE2_VERSION = 28;
+
+	/**
+	 * Offset in a record of the version at which the turn changed.
+	 */
+	public static final int TURN_VERSION = 32;
+
+	/**
+	 * Offset in a record of the version player 1 acknowledged.
+	 */
+	public static final int ACK1 = 36;
+
+	/**
+	 * Offset in a record of the version player 2 acknowledged.
+	 */
+	public static final int ACK2 = 40;
+
+	/**
+	 * Offset in a record of the number of changes logged.
+	 */
+	public static final int LOG_COUNT = 44;
+
+	/**
+	 * Offset in a record of the oldest version the change log covers.
+	 */
+	public static final int LOG_FLOOR = 48;
+
+	/**
+	 * Offset in a record of the change log: LOG_SIZE longs.
+	 */
+	public static final int LOG = 56;
+
+	/**
+	 * Number of changes in a record's change log.
+	 */
+	public static final int LOG_SIZE = 16;
+
+	/**
+	 * Offset in a record of the markers in each heap: one int per heap,
+	 * followed by the version at which each heap changed.
+	 */
+	public static final int MARKERS = LOG + 8*LOG_SIZE;
+
+	/**
+	 * Slots in each chunk of a table shared by many sessions.
+	 */
+	public static final int CHUNK = 4096;
+
+	// Hidden data members.
+	private final int heaps;
+	private final int recordSize;
+	private final int chunkSlots;
+	private final boolean direct;
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	private int slots;
+	private int[] free = new int[16];
+	private int freeCount;
+
+	// Exported constructors.
+
+	/**
+	 * Construct a new, empty session table.
+	 *
+	 * @param  heaps       Number of heaps on each session's board.
+	 * @param  chunkSlots  Slots in each chunk.
+	 * @param  direct      True to keep the records outside the heap.
+	 */
+	public SessionTable (int heaps, int chunkSlots, boolean direct) {
+		if (heaps < 1 || chunkSlots < 1) {
+			throw new IllegalArgumentException ("Empty session table");
+		}
+		this.heaps = heaps;
+		this.recordSize = (MARKERS + 8*heaps + 7) & ~7;
+		this.chunkSlots = chunkSlots;
+		this.direct = direct;
+	}
+
+	// Exported operations.
+
+	/**
+	 * Returns the number of heaps on each session's board.
+	 */
+	public int heaps() {
+		return heaps;
+	}
+
+	/**
+	 * Returns true if the records are kept outside the heap.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns the offset in a record of a heap's version.
+	 *
+	 * @param  h  Heap id.
+	 */
+	public int heapVersion (int h) {
+		return MARKERS + 4*heaps + 4*h;
+	}
+
+	/**
+	 * Returns a cleared slot for a new session.
+	 */
+	public synchronized int allocate() {
+		if (freeCount > 0) {
+			return free[--freeCount];
+		}
+		int slot = slots;
+		int c = slot / chunkSlots;
+		if (c == chunks.length) {
+			chunks = Arrays.copyOf (chunks, Math.max (1, 2*c));
+		}
+		if (chunks[c] == null) {
+			int size = chunkSlots * recordSize;
+			chunks[c] = (direct ? ByteBuffer.allocateDirect (size) :
+				ByteBuffer.allocate (size)).order (ByteOrder.nativeOrder());
+		}
+		++ slots;
+		return slot;
+	}
+
+	/**
+	 * Returns the buffer holding a slot's record.
+	 *
+	 * @param  slot  Allocated slot.
+	 */
+	public synchronized ByteBuffer chunk (int slot) {
+		return chunks[slot / chunkSlots];
+	}
+
+	/**
+	 * Returns the offset of a slot's record in its buffer.
+	 *
+	 * @param  slot  Allocated slot.
+	 */
+	public int offset (int slot) {
+		return (slot % chunkSlots) * recordSize;
+	}
+
+	/**
+	 * Clear a slot and keep it for the next session. The slot's session
+	 * must not touch its record again.
+	 *
+	 * @param  slot  Allocated slot.
+	 */
+	public synchronized void free (int slot) {
+		ByteBuffer chunk = chunks[slot / chunkSlots];
+		int start = offset (slot);
+		for (int i = 0; i < recordSize; i += 8) {
+			chunk.putLong (start + i, 0L);
+		}
+		if (freeCount == free.length) {
+			free = Arrays.copyOf (free, 2*freeCount);
+		}
+		free[freeCount++] = slot;
+	}
+
+	/**
+	 * Returns the number of slots in use.
+	 */
+	public synchronized int size() {
+		return slots - freeCount;
+	}
+
+	/**
+	 * Returns the bytes held by the table's chunks.
+	 */
+	public synchronized long bytes() {
+		long n = 0;
+		for (ByteBuffer chunk : chunks) {
+			if (chunk != null) n += chunk.capacity();
+		}
+		return n;
+	}
+}
@@ -24,13 +24,14 @@ public interface ViewListener {
 	 * Specify number of 
 	 * markers taken from heap h.
 	 *
+	 * @param  proxy    Reference to view proxy object.
 	 * @param  h    Heap number
 	 * @param  m  	Markers number
 	 *
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void take(int h, int m) throws IOException;
+	public void take(ViewProxy proxy, int h, int m) throws IOException;
 	
 	/**
 	 * Start a new game.
@@ -40,6 +41,19 @@ public interface ViewListener {
 	 */
 	public void newGame() throws IOException;
 	
+	/**
+	 * Check a client's copy of the session against the model's version,
+	 * and send it a snapshot if it is out of date.
+	 *
+	 * @param  proxy    Reference to view proxy object.
+	 * @param  v        Version the client has, or -1 to always get a
+	 *                  snapshot.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public void sync(ViewProxy proxy, int v) throws IOException;
+	
 	/**
 	 * Quit the game
 	 *
@@ -1,15 +1,20 @@
 import java.io.IOException;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
 
 /**
  * Provides network proxy for the view object of the Nim game. It resides
- * in the server program and communicates with the client.
+ * in the server program and communicates with the client. Reported events
+ * are buffered and sent together as one datagram when the model flushes.
+ * A proxy holds a buffer only from its first event to the flush; buffers
+ * are pooled per thread, so an idle client costs no buffer at all.
+ * The proxy of a client reached through a NimRouter sends its datagrams to
+ * the router, each behind a route header naming the client.
  * @author Martin Suarez
  * @version 12/02/2015
  */
@@ -17,8 +22,39 @@ public class ViewProxy implements ModelListener {
 	
 	// Hidden data members
 	private DatagramSocket mailbox;
+	private DatagramChannel channel;
 	private SocketAddress clientAddress;
-	private ViewListener viewListener;
+	// Set by the session manager on whichever thread joins or quits the
+	// opponent, and read by the thread that receives this client's requests.
+	private volatile ViewListener viewListener;
+	private ByteBuffer buffer;
+	private int headerLength;
+	private int tagLength;
+	private int token;
+	private SocketAddress router;
+	private byte[] route = NO_ROUTE;
+	private ReliableChannel reliable;
+	private ByteBuffer ackBuffer;
+	
+	private static final byte[] NO_ROUTE = new byte[0];
+	
+	// Free buffers of each thread that flushes proxies.
+	private static final int POOL = 16;
+	private static final ThreadLocal<ArrayDeque<ByteBuffer>> pool =
+		new ThreadLocal<ArrayDeque<ByteBuffer>>() {
+			protected ArrayDeque<ByteBuffer> initialValue() {
+				return new ArrayDeque<ByteBuffer>( POOL );
+			}
+		};
+	
+	// Packet each thread sends through a mailbox socket, pointed at the
+	// datagram and address of each send rather than allocated per send.
+	private static final ThreadLocal<DatagramPacket> packet =
+		new ThreadLocal<DatagramPacket>() {
+			protected DatagramPacket initialValue() {
+				return new DatagramPacket( NO_ROUTE, 0 );
+			}
+		};
 	
 	// Exported constructors
 	/**
@@ -31,15 +67,94 @@ public class ViewProxy implements ModelListener {
 		this.clientAddress = clientAddress;
 	}
 	
+	/**
+	 * Construct a new view proxy that replies through a datagram channel.
+	 * @param channel			Server's datagram channel.
+	 * @param clientAddress		Client's mailbox address.
+	 */
+	public ViewProxy (DatagramChannel channel, SocketAddress clientAddress) {
+		this.channel = channel;
+		this.clientAddress = clientAddress;
+	}
+	
 	// Exported operations.
 	/**
-	 * Set the view listener object for this view proxy.
+	 * Set the view listener object for this view proxy. May be called from
+	 * any thread; the next request received uses the new listener.
 	 * @param  viewListener  	View listener.
 	 */
 	public void setViewListener( ViewListener viewListener ) {
 		this.viewListener = viewListener;
 	}
 	
+	/**
+	 * Returns the view listener for this view proxy.
+	 */
+	public ViewListener getViewListener() {
+		return viewListener;
+	}
+	
+	/**
+	 * Tag every datagram sent to the client with a token, for a client
+	 * that shares its socket with other clients.
+	 * @param  token  	Client token.
+	 */
+	public synchronized void setTag( int token ) {
+		this.token = token;
+		this.tagLength = MessageCodec.TAG_LENGTH;
+		reset();
+	}
+	
+	/**
+	 * Send every datagram to the client through a router, behind a route
+	 * header naming the client.
+	 * @param  router  	Router's address.
+	 */
+	public synchronized void setRoute( SocketAddress router ) {
+		InetSocketAddress client = (InetSocketAddress) clientAddress;
+		ByteBuffer header = ByteBuffer.allocate
+			( MessageCodec.routeLength( client ) );
+		MessageCodec.encodeRoute( header, client );
+		this.router = router;
+		this.route = header.array();
+		reset();
+	}
+	
+	/**
+	 * Tell the router that this server has dropped the client, so it
+	 * stops sending the client here. Does nothing for a client not reached
+	 * through a router.
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized void sendGone() throws IOException {
+		if (router == null) return;
+		ByteBuffer notice = ByteBuffer.allocate
+			( route.length + tagLength + 1 );
+		notice.put( route );
+		if (tagLength > 0) {
+			MessageCodec.encodeTag( notice, token );
+		}
+		MessageCodec.encodeGone( notice );
+		notice.flip();
+		transmit( notice );
+	}
+	
+	/**
+	 * Returns the client's mailbox address.
+	 */
+	public SocketAddress getClientAddress() {
+		return clientAddress;
+	}
+	
+	/**
+	 * Returns the token datagrams to the client are tagged with, or -1 if
+	 * they are not tagged.
+	 */
+	public synchronized int getTag() {
+		return tagLength > 0 ? token : -1;
+	}
+	
 	/**
 	 * Report the player's id
 	 * @param  i      Player id
@@ -47,14 +162,9 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void id( int i ) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'I' );
-		out.writeByte( i );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void id( int i ) throws IOException {
+		reserve( 2 );
+		MessageCodec.encodeId( buffer, i );
 	}
 	
 	/**
@@ -65,15 +175,9 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void name(int i, String n) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'A' );
-		out.writeByte( i );
-		out.writeUTF( n );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void name(int i, String n) throws IOException {
+		reserve( 4 + 3*n.length() );
+		MessageCodec.encodeName( buffer, i, n );
 	}
 	
 	/**
@@ -84,15 +188,9 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void score(int i, int s) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'S' );
-		out.writeByte( i );
-		out.writeByte( s );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void score(int i, int s) throws IOException {
+		reserve( 3 );
+		MessageCodec.encodeScore( buffer, i, s );
 	}
 	
 	/**
@@ -104,15 +202,9 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void heap(int h, int m) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'H' );
-		out.writeByte( h );
-		out.writeByte( m );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void heap(int h, int m) throws IOException {
+		reserve( 3 );
+		MessageCodec.encodeHeap( buffer, h, m );
 	}
 	
 	/**
@@ -122,14 +214,9 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void turn(int i) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'U' );
-		out.writeByte( i );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void turn(int i) throws IOException {
+		reserve( 2 );
+		MessageCodec.encodeTurn( buffer, i );
 	}
 	
 	/**
@@ -138,14 +225,47 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void win(int i) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'W' );
-		out.writeByte( i );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void win(int i) throws IOException {
+		reserve( 2 );
+		MessageCodec.encodeWin( buffer, i );
+	}
+	
+	/**
+	 * Report the fields of the model's state that changed after a version.
+	 * @param  base   Version the changes are relative to
+	 * @param  v      Version after the changes
+	 * @param  t      Id of the player whose turn it is, or -1
+	 * @param  scores Player scores, or -1
+	 * @param  n      Number of heaps that changed
+	 * @param  heaps  Ids of the heaps that changed
+	 * @param  markers Number of markers left in each heap that changed
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized void delta(int base, int v, int t, int[] scores,
+								   int n, int[] heaps, int[] markers)
+			throws IOException {
+		reserve( MessageCodec.deltaSize( scores, n, heaps, markers ) );
+		MessageCodec.encodeDelta
+			( buffer, base, v, t, scores, n, heaps, markers );
+	}
+	
+	/**
+	 * Report the whole state of the model at once.
+	 * @param  v      Version
+	 * @param  i      Id of the player the snapshot is for
+	 * @param  t      Id of the player whose turn it is
+	 * @param  heaps  Number of markers left in each heap
+	 * @param  names  Player names
+	 * @param  scores Player scores
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	public synchronized void snapshot(int v, int i, int t, int[] heaps,
+									  String[] names, int[] scores)
+			throws IOException {
+		reserve( MessageCodec.snapshotSize( heaps, names ) );
+		MessageCodec.encodeSnapshot( buffer, v, i, t, heaps, names, scores );
 	}
 	
 	/**
@@ -154,13 +274,22 @@ public class ViewProxy implements ModelListener {
 	 * @exception  IOException
 	 *     Thrown if an I/O error occurred.
 	 */
-	public void quit() throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream out = new DataOutputStream( baos );
-		out.writeByte( 'Q' );
-		out.close();
-		byte[] payload = baos.toByteArray();
-		mailbox.send(new DatagramPacket(payload, payload.length, clientAddress));
+	public synchronized void quit() throws IOException {
+		reserve( 1 );
+		MessageCodec.encodeQuit( buffer );
+	}
+	
+	/**
+	 * Send the events reported since the last flush to the client as one
+	 * datagram.
+	 *
+	 * @exception  IOException
+	 *     Thrown if an I/O error occurred.
+	 */
+	public synchronized void flush() throws IOException {
+		if (buffer != null && buffer.position() > headerLength) {
+			send();
+		}
 	}
 	
 	/**
@@ -171,36 +300,202 @@ public class ViewProxy implements ModelListener {
 	 *		Thrown if an I/O error occurred.
 	 **/
 	 public boolean process (DatagramPacket datagram) throws IOException {
-	 	boolean discard = false;
-	 	DataInputStream in =
-			new DataInputStream
-				(new ByteArrayInputStream
-					(datagram.getData(), 0, datagram.getLength()));
-		int h, m;
-		String name;
-		byte b = in.readByte();
-		switch(b)
-			{
-			case 'J':
-				name = in.readUTF();
-				viewListener.join( ViewProxy.this, name );
-				break;
-			case 'T':
-				h = in.readByte();
-				m = in.readByte();
-				viewListener.take( h, m );
-				break;
-			case 'N':
-				viewListener.newGame();
-				break;
-			case 'Q':
-				discard = true;
-				break;
-			default:
-				System.err.println( "Bad message" );
-				break;
-			}
+		return process
+			(ByteBuffer.wrap (datagram.getData(), 0, datagram.getLength()));
+	 }
+	
+	/**
+	 * Process a received message.
+	 * @param 	message 		Buffer holding the message.
+	 * @return	True to discard this view proxy, false otherwise
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 **/
+	 public boolean process (ByteBuffer message) throws IOException {
+		if (!message.hasRemaining() ||
+				message.get (message.position()) != ReliableChannel.RELIABLE)
+			return processRequest( message );
+		if (message.remaining() < ReliableChannel.HEADER_LENGTH) {
+			ServerMetrics.get().badMessage();
+			System.err.println( "Bad message" );
+			return false;
+		}
+		ReliableChannel channel = enableReliable();
+		boolean discard = false;
+		if (channel.accept( message )) {
+			discard = processRequest( message );
+		}
+		ByteBuffer frame;
+		while ((frame = channel.nextHeld()) != null) {
+			discard |= processRequest( frame );
+		}
 		return discard;
 	 }
 	
+	// Hidden operations.
+	/**
+	 * Process the requests in a datagram; a version check may come in front
+	 * of another request.
+	 * @param 	message 		Buffer holding the requests.
+	 * @return	True to discard this view proxy, false otherwise
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 **/
+	private boolean processRequest (ByteBuffer message) throws IOException {
+		while (message.hasRemaining()) {
+			byte b = MessageCodec.decodeRequest
+				( message, ViewProxy.this, viewListener );
+			switch(b)
+				{
+				case 'J':
+				case 'T':
+				case 'N':
+				case 'V':
+					break;
+				case 'Q':
+					return true;
+				default:
+					ServerMetrics.get().badMessage();
+					System.err.println( "Bad message" );
+					return false;
+				}
+		}
+		return false;
+	}
+	
+	/**
+	 * Start delivering reliably to the client, the first time it sends a
+	 * reliable datagram.
+	 * @return	Reliable channel to the client.
+	 */
+	private synchronized ReliableChannel enableReliable() {
+		if (reliable == null) {
+			reliable = new ReliableChannel( new ReliableChannel.Sender() {
+				public void resend (ByteBuffer datagram) throws IOException {
+					synchronized (ViewProxy.this) {
+						transmit( datagram );
+					}
+				}
+				public void sendAck() throws IOException {
+					synchronized (ViewProxy.this) {
+						ackBuffer.clear();
+						ackBuffer.put( route );
+						if (tagLength > 0) {
+							MessageCodec.encodeTag( ackBuffer, token );
+						}
+						reliable.stampAck( ackBuffer );
+						ackBuffer.flip();
+						transmit( ackBuffer );
+					}
+				}
+			});
+			ackBuffer = ByteBuffer.allocate
+				(MessageCodec.MAX_ROUTE + MessageCodec.TAG_LENGTH +
+				 ReliableChannel.HEADER_LENGTH);
+			reset();
+		}
+		return reliable;
+	}
+	
+	/**
+	 * Make room for an event of the given size, sending the events already
+	 * in the buffer if it would not fit.
+	 * @param size 		Largest size of the event, in bytes.
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	private void reserve (int size) throws IOException {
+		if (buffer != null && buffer.remaining() < size &&
+				buffer.position() > headerLength) {
+			send();
+		}
+		if (buffer == null) {
+			buffer = pool.get().poll();
+			if (buffer == null) {
+				buffer = ByteBuffer.allocate (MessageCodec.MAX_FRAME);
+			}
+			reset();
+		}
+		if (buffer.remaining() < size) {
+			// One message larger than a frame, such as the snapshot of a
+			// large board; only clients on such boards pay for the space.
+			ByteBuffer larger = ByteBuffer.allocate
+				(Math.min (MessageCodec.MAX_DATAGRAM, buffer.position() + size));
+			buffer.flip();
+			larger.put( buffer );
+			release();
+			buffer = larger;
+		}
+	}
+	
+	/**
+	 * Send the events encoded in the buffer to the client through the
+	 * socket or channel this proxy was constructed with, then give the
+	 * buffer up.
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	private void send() throws IOException {
+		buffer.flip();
+		try {
+			if (reliable != null) {
+				reliable.stamp( buffer, route.length + tagLength );
+			}
+			transmit( buffer );
+		} finally {
+			release();
+		}
+	}
+	
+	/**
+	 * Put one datagram on the wire.
+	 * @param datagram 		Buffer holding the datagram.
+	 * @exception IOException
+	 *		Thrown if an I/O error occurred.
+	 */
+	private void transmit (ByteBuffer datagram) throws IOException {
+		SocketAddress to = router != null ? router : clientAddress;
+		if (channel != null) {
+			channel.send( datagram, to );
+		} else {
+			DatagramPacket out = packet.get();
+			out.setData
+				(datagram.array(), datagram.arrayOffset() + datagram.position(),
+				 datagram.remaining());
+			out.setSocketAddress( to );
+			mailbox.send( out );
+		}
+		ServerMetrics.get().datagramOut();
+	}
+	
+	/**
+	 * Empty the buffer, if there is one, leaving room for the route, tag
+	 * and reliable header expected in front of the events.
+	 */
+	private void reset() {
+		headerLength = route.length + tagLength;
+		if (reliable != null) {
+			headerLength += ReliableChannel.HEADER_LENGTH;
+		}
+		if (buffer == null) return;
+		buffer.clear();
+		buffer.put( route );
+		if (tagLength > 0) {
+			MessageCodec.encodeTag( buffer, token );
+		}
+		buffer.position( headerLength );
+	}
+	
+	/**
+	 * Give the buffer back to this thread's pool, unless it is one grown
+	 * for a large message.
+	 */
+	private void release() {
+		if (buffer.capacity() == MessageCodec.MAX_FRAME) {
+			ArrayDeque<ByteBuffer> free = pool.get();
+			if (free.size() < POOL) free.push( buffer );
+		}
+		buffer = null;
+	}
+	
 }
\ No newline at end of file
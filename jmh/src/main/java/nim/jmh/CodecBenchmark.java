@@ -0,0 +1,111 @@
+package nim.jmh;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nim.MessageCodec;
+import nim.ViewListener;
+import nim.ViewProxy;
+
+/**
+ * Class CodecBenchmark measures encoding a message into a buffer and
+ * decoding it again, for the events the server sends most and for a take,
+ * the request clients send most.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class CodecBenchmark {
+
+	// Hidden data members.
+	private ByteBuffer buffer = ByteBuffer.allocate (MessageCodec.MAX_FRAME);
+	private Sinks.Listener events = new Sinks.Listener();
+	private Requests requests = new Requests();
+	private int[] heaps = new int[] { 3, 4, 5 };
+	private String[] names = new String[] { "Player", "Opponent" };
+	private int[] scores = new int[] { 2, 1 };
+	private int[] unchanged = new int[] { -1, -1 };
+	private int[] taken = new int[] { 1 };
+	private int[] left = new int[] { 2 };
+	private int i;
+
+	// Exported operations.
+
+	@Benchmark
+	public long heap() throws IOException {
+		buffer.clear();
+		MessageCodec.encodeHeap (buffer, ++ i & 3, 5);
+		buffer.flip();
+		MessageCodec.decodeEvents (buffer, events);
+		return events.sum;
+	}
+
+	@Benchmark
+	public long name() throws IOException {
+		buffer.clear();
+		MessageCodec.encodeName (buffer, 1, "Player");
+		buffer.flip();
+		MessageCodec.decodeEvents (buffer, events);
+		return events.sum;
+	}
+
+	@Benchmark
+	public long snapshot() throws IOException {
+		buffer.clear();
+		MessageCodec.encodeSnapshot (buffer, ++ i, 1, 2, heaps, names, scores);
+		buffer.flip();
+		MessageCodec.decodeEvents (buffer, events);
+		return events.sum;
+	}
+
+	@Benchmark
+	public long delta() throws IOException {
+		buffer.clear();
+		MessageCodec.encodeDelta
+			(buffer, i, ++ i, 2, unchanged, 1, taken, left);
+		buffer.flip();
+		MessageCodec.decodeEvents (buffer, events);
+		return events.sum;
+	}
+
+	@Benchmark
+	public long take() throws IOException {
+		buffer.clear();
+		MessageCodec.encodeTake (buffer, ++ i & 3, 1);
+		buffer.flip();
+		MessageCodec.decodeRequest (buffer, null, requests);
+		return requests.sum;
+	}
+
+	// Hidden helper classes.
+
+	/**
+	 * Class Requests is a view listener that sums the requests it gets.
+	 */
+	private static class Requests implements ViewListener {
+		long sum;
+
+		public void join (ViewProxy proxy, String n) { sum += n.length(); }
+		public void take (ViewProxy proxy, int h, int m) { sum += h + m; }
+		public void newGame() { ++ sum; }
+		public void sync (ViewProxy proxy, int v) { sum += v; }
+		public void quit() { ++ sum; }
+	}
+}
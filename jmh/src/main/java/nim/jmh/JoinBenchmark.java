@@ -0,0 +1,100 @@
+package nim.jmh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nim.SessionManager;
+import nim.ViewProxy;
+
+/**
+ * Class JoinBenchmark measures SessionManager.join with a given number of
+ * live sessions, or of players queued for matchmaking, in place. Each
+ * operation is one join. Against live sessions, every second join fills a
+ * new session, which is then quit; against queued players, every second
+ * join is followed by both new players leaving the queue, so the counts
+ * hold steady. Replies go to the discard port through a non-blocking
+ * channel. A million sessions want a heap of about 1 GiB.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (value = 1, jvmArgsAppend = "-Xmx2g")
+public class JoinBenchmark {
+
+	/**
+	 * Sessions, or queued players, in place before the first join.
+	 */
+	@Param ({ "1000", "100000", "1000000" })
+	public int sessions;
+
+	/**
+	 * What the joins run against: "live" sessions or "queued" players.
+	 */
+	@Param ({ "live", "queued" })
+	public String against;
+
+	// Hidden data members.
+	private DatagramChannel channel;
+	private SocketAddress sink = new InetSocketAddress ("127.0.0.1", 9);
+	private SessionManager manager;
+	private boolean queued;
+	private ViewProxy[] pair = new ViewProxy [2];
+	private int k;
+
+	// Exported operations.
+
+	@Setup
+	public void setUp() throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking (false);
+		queued = against.equals ("queued");
+		manager = new SessionManager();
+		if (queued) manager.setMatchmaking (3600000, 0, 0);
+		int players = queued ? sessions : 2*sessions;
+		for (int i = 0; i < players; i++) {
+			manager.join (new ViewProxy (channel, sink), "p");
+		}
+		int built = queued ? manager.waitingCount() : manager.sessionCount();
+		if (built != sessions) {
+			throw new IllegalStateException
+				("Built " + built + " of " + sessions + " sessions");
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		channel.close();
+	}
+
+	@Benchmark
+	public void join() throws IOException {
+		pair[k] = new ViewProxy (channel, sink);
+		manager.join (pair[k], "p");
+		if (k == 1) {
+			manager.prepareQuit (pair[0]);
+			if (queued) manager.prepareQuit (pair[1]);
+		}
+		k ^= 1;
+	}
+}
@@ -0,0 +1,95 @@
+package nim.jmh;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nim.Matchmaker;
+import nim.ViewProxy;
+
+/**
+ * Class MatchmakerBenchmark measures one matchmaking tick pairing a queue
+ * of waiting players with random ratings and join times. The queue is
+ * refilled before each tick, outside the timing.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class MatchmakerBenchmark {
+
+	/**
+	 * Players queued before each tick.
+	 */
+	@Param ({ "1000", "100000" })
+	public int queued;
+
+	// Hidden data members.
+	private DatagramChannel channel;
+	private ViewProxy[] players;
+	private Matchmaker matchmaker;
+	private long now;
+	private long matches;
+	private Matchmaker.Listener listener = new Matchmaker.Listener() {
+		public void match (ViewProxy a, String nameA,
+						   ViewProxy b, String nameB) {
+			++ matches;
+		}
+	};
+
+	// Exported operations.
+
+	@Setup (Level.Trial)
+	public void setUp() throws IOException {
+		channel = DatagramChannel.open();
+		SocketAddress sink = new InetSocketAddress ("127.0.0.1", 9);
+		players = new ViewProxy [queued];
+		for (int i = 0; i < queued; i++) {
+			players[i] = new ViewProxy (channel, sink);
+		}
+		matchmaker = new Matchmaker (100, 5000, 100);
+	}
+
+	@Setup (Level.Invocation)
+	public void refill() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		now = System.nanoTime();
+		for (ViewProxy player : players) {
+			matchmaker.enqueue (player, "p", random.nextInt (3000),
+				now - random.nextLong (200000000L));
+		}
+	}
+
+	@TearDown (Level.Trial)
+	public void tearDown() throws IOException {
+		channel.close();
+	}
+
+	@Benchmark
+	public long tick() {
+		matchmaker.tick (now, listener);
+		return matches;
+	}
+}
@@ -0,0 +1,82 @@
+package nim.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nim.NimModel;
+
+/**
+ * Class ModelBenchmark measures NimModel.take with players that send
+ * nothing, on boards of several sizes. Each operation is one take of a
+ * single marker by alternate players, each acknowledging its version first
+ * as a client does; a new game starts when the last marker is taken.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (1)
+public class ModelBenchmark {
+
+	/**
+	 * Board, as for nim.board.
+	 */
+	@Param ({ "3,4,5", "100*100", "1000*100" })
+	public String board;
+
+	// Hidden data members.
+	private int[] initial;
+	private int[] left;
+	private NimModel model;
+	private Sinks.Proxy[] players;
+	private int at;
+	private int mover;
+
+	// Exported operations.
+
+	@Setup
+	public void setUp() throws IOException {
+		initial = NimModel.parseBoard (board);
+		left = initial.clone();
+		model = new NimModel (initial);
+		players = new Sinks.Proxy[] { new Sinks.Proxy(), new Sinks.Proxy() };
+		model.addPlayer (players[0], true, "one");
+		model.addPlayer (players[1], false, "two");
+	}
+
+	@Benchmark
+	public long take() throws IOException {
+		int h = at;
+		while (left[h] == 0) {
+			if (++ h == left.length) {
+				model.newGame();
+				System.arraycopy (initial, 0, left, 0, initial.length);
+				h = 0;
+				mover = 0;
+			}
+		}
+		at = h;
+		left[h] --;
+		Sinks.Proxy player = players[mover];
+		mover ^= 1;
+		model.sync (player, player.version);
+		model.take (player, h, 1);
+		return players[mover].sum;
+	}
+}
@@ -0,0 +1,91 @@
+package nim.jmh;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import nim.ModelListener;
+import nim.NimModel;
+import nim.SessionTable;
+
+/**
+ * Class SessionTableBenchmark measures sessions whose state lives in a
+ * session table, on the heap or off it: a take in a random one of many
+ * live sessions, which touches a record the caches have likely lost, and
+ * allocating and freeing a slot, as starting and ending a session does.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+@State (Scope.Thread)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3, time = 1)
+@Measurement (iterations = 5, time = 1)
+@Fork (value = 1, jvmArgsAppend = { "-Xmx2g", "-XX:MaxDirectMemorySize=2g" })
+public class SessionTableBenchmark {
+
+	/**
+	 * Live sessions in the table.
+	 */
+	@Param ({ "1000000" })
+	public int sessions;
+
+	/**
+	 * True to keep the records outside the heap.
+	 */
+	@Param ({ "false", "true" })
+	public boolean direct;
+
+	// Hidden data members.
+	private SessionTable table;
+	private NimModel[] models;
+	private ModelListener[] players =
+		new ModelListener[] { new Sinks.Listener(), new Sinks.Listener() };
+
+	// Exported operations.
+
+	@Setup
+	public void setUp() throws IOException {
+		int[] board = NimModel.DEFAULT_BOARD;
+		table = new SessionTable (board.length, SessionTable.CHUNK, direct);
+		models = new NimModel [sessions];
+		for (int i = 0; i < sessions; i++) {
+			models[i] = new NimModel (board, table);
+			models[i].addPlayer (players[0], true, "one");
+			models[i].addPlayer (players[1], false, "two");
+		}
+	}
+
+	@Benchmark
+	public int take() throws IOException {
+		NimModel model =
+			models[ThreadLocalRandom.current().nextInt (sessions)];
+		if (model.getRemaining() == 0) model.newGame();
+		int h = 0;
+		while (model.getMarkers (h) == 0) h++;
+		ModelListener mover = model.check (players[0], h, 1) ==
+			NimModel.LEGAL ? players[0] : players[1];
+		model.move (mover, h, 1);
+		return model.getRemaining();
+	}
+
+	@Benchmark
+	public int allocateFree() {
+		int slot = table.allocate();
+		table.free (slot);
+		return slot;
+	}
+}
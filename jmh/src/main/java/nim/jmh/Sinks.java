@@ -0,0 +1,80 @@
+package nim.jmh;
+
+import java.nio.channels.DatagramChannel;
+
+import nim.ModelListener;
+import nim.ViewProxy;
+
+/**
+ * Class Sinks holds the stand-ins for clients that the benchmarks give the
+ * code under test: listeners that keep a running sum of what they are told,
+ * so the work of telling them cannot be optimized away, and send nothing.
+ *
+ * @author  Martin Suarez
+ * @version 12/02/2015
+ */
+final class Sinks {
+
+	// Prevent construction.
+	private Sinks() {}
+
+	/**
+	 * Class Sinks.Listener is a model listener that sums what it is told.
+	 */
+	static class Listener implements ModelListener {
+		long sum;
+
+		public void id (int i) { sum += i; }
+		public void name (int i, String n) { sum += n.length(); }
+		public void score (int i, int s) { sum += s; }
+		public void heap (int h, int m) { sum += h + m; }
+		public void turn (int i) { sum += i; }
+		public void win (int i) { sum += i; }
+		public void quit() { ++ sum; }
+		public void flush() {}
+
+		public void delta (int base, int v, int t, int[] scores,
+						   int n, int[] heaps, int[] markers) {
+			sum += v + n;
+		}
+
+		public void snapshot (int v, int i, int t, int[] heaps,
+							  String[] names, int[] scores) {
+			sum += v + heaps.length;
+		}
+	}
+
+	/**
+	 * Class Sinks.Proxy is a view proxy that sends nothing and keeps the
+	 * version its session last reported, so it can acknowledge it as a
+	 * client does.
+	 */
+	static class Proxy extends ViewProxy {
+		int version;
+		long sum;
+
+		Proxy() {
+			super ((DatagramChannel) null, null);
+		}
+
+		public void id (int i) {}
+		public void name (int i, String n) {}
+		public void score (int i, int s) {}
+		public void heap (int h, int m) {}
+		public void turn (int i) {}
+		public void win (int i) {}
+		public void quit() {}
+		public void flush() {}
+
+		public void delta (int base, int v, int t, int[] scores,
+						   int n, int[] heaps, int[] markers) {
+			version = v;
+			sum += n;
+		}
+
+		public void snapshot (int v, int i, int t, int[] heaps,
+							  String[] names, int[] scores) {
+			version = v;
+		}
+	}
+}